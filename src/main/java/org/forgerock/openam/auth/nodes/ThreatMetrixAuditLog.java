@@ -0,0 +1,453 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.appendJsonString;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Structured audit trail of every ThreatMetrix session query and update.
+ * <p>
+ * Nodes hand records to a bounded, lock-free, multi-producer single-consumer ring buffer and return immediately; if
+ * the buffer is full the record is dropped and counted rather than the login being held up. A background thread
+ * drains the buffer in batches into newline-delimited JSON files in the configured directory, starting a new file
+ * when the current one reaches the maximum size and deleting the oldest beyond the maximum number of files. The log
+ * is disabled unless a directory is configured.
+ */
+@Singleton
+class ThreatMetrixAuditLog implements ThreatMetrixAuditLogMXBean {
+
+    static final String DIRECTORY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.auditLog.directory";
+    static final String CAPACITY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.auditLog.capacity";
+    static final String MAX_FILE_SIZE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.auditLog.maxFileSize";
+    static final String MAX_FILES_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.auditLog.maxFiles";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String FILE_PREFIX = "tmx-audit-";
+    private static final String FILE_SUFFIX = ".ndjson";
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    /**
+     * Slot sequence numbers: a slot at index i is free for the producer claiming position p when its sequence is p,
+     * and holds a record for the consumer at position p when its sequence is p + 1.
+     */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /** Callers of {@link #record(Entry)} that may still publish a record, so that the writer waits for them. */
+    private final AtomicInteger producers = new AtomicInteger();
+    private final Thread writer;
+    private volatile long head;
+    private volatile boolean running;
+    private Writer out;
+    private long outSize;
+
+    ThreatMetrixAuditLog() {
+        this(directory(), SystemProperties.getAsLong(MAX_FILE_SIZE_PROPERTY, 100L * 1024 * 1024),
+             SystemProperties.getAsInt(MAX_FILES_PROPERTY, 10), SystemProperties.getAsInt(CAPACITY_PROPERTY, 8192));
+        ThreatMetrixMonitoring.register("AuditLog", this, ThreatMetrixAuditLogMXBean.class);
+    }
+
+    /**
+     * Creates an audit log with the given settings rather than the advanced server properties. It is not published
+     * over JMX.
+     *
+     * @param directory The directory of the log files, or null for a log that records nothing.
+     * @param maxFileSize The size in bytes at which a log file is rotated.
+     * @param maxFiles The number of rotated files kept.
+     * @param queueCapacity The number of records queued for writing, rounded up to a power of two.
+     */
+    ThreatMetrixAuditLog(Path directory, long maxFileSize, int maxFiles, int queueCapacity) {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        int capacity = directory == null ? 1 : Integer.highestOneBit(Math.max(2, queueCapacity) * 2 - 1);
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        if (directory == null) {
+            this.writer = null;
+        } else {
+            this.running = true;
+            this.writer = new Thread(this::drain, "ThreatMetrix audit log writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static Path directory() {
+        String path = SystemProperties.get(DIRECTORY_PROPERTY);
+        return StringUtils.isBlank(path) ? null : Paths.get(path);
+    }
+
+    /**
+     * Whether records are being written. Nodes should not build records when they are not.
+     *
+     * @return True if an audit directory is configured.
+     */
+    boolean isEnabled() {
+        return running;
+    }
+
+    /**
+     * Queues a record for writing without blocking.
+     *
+     * @param entry The record.
+     */
+    void record(Entry entry) {
+        producers.incrementAndGet();
+        try {
+            if (!running) {
+                return;
+            }
+            long position;
+            int index;
+            while (true) {
+                position = tail.get();
+                index = (int) position & mask;
+                long available = sequences.get(index) - position;
+                if (available < 0) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (available == 0 && tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            slots.set(index, entry);
+            sequences.set(index, position + 1);
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private Entry poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        Entry entry = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return entry;
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 256);
+        // a producer that saw the log running before shutdown may still be publishing its record
+        while (running || producers.get() > 0 || sequences.get((int) head & mask) == head + 1) {
+            int count = 0;
+            Entry entry;
+            while (count < BATCH_SIZE && (entry = poll()) != null) {
+                entry.appendTo(batch);
+                batch.append('\n');
+                count++;
+            }
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            write(batch, count);
+            batch.setLength(0);
+        }
+        close();
+    }
+
+    private void write(StringBuilder batch, int count) {
+        try {
+            if (out == null || outSize >= maxFileSize) {
+                rotate();
+            }
+            out.append(batch);
+            out.flush();
+            outSize += batch.length();
+            written.addAndGet(count);
+        } catch (IOException e) {
+            dropped.addAndGet(count);
+            logger.warn("Unable to write ThreatMetrix audit records to " + directory, e);
+            close();
+        }
+    }
+
+    private void rotate() throws IOException {
+        close();
+        Files.createDirectories(directory);
+        String name = FILE_PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + FILE_SUFFIX;
+        out = Files.newBufferedWriter(directory.resolve(name), StandardCharsets.UTF_8);
+        outSize = 0;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // the timestamped names sort in creation order
+        Collections.sort(files);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    private void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close ThreatMetrix audit file", e);
+        }
+        out = null;
+    }
+
+    /**
+     * Writes the records still queued and stops the writer.
+     */
+    void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public long getQueued() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    @Override
+    public long getWritten() {
+        return written.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * One audit record. Built by a single thread with a {@link Builder} once the outcome of the call is known, and not
+     * modified afterwards.
+     */
+    static final class Entry {
+        private final long time;
+        private final String call;
+        private final String requestId;
+        private final String orgId;
+        private final String sessionId;
+        private final String eventType;
+        private final String policy;
+        private final long latency;
+        private final int httpStatus;
+        private final String policyScore;
+        private final String reviewStatus;
+        private final List<String> reasonCodes;
+        private final String source;
+        private final String error;
+
+        private Entry(Builder builder) {
+            this.time = builder.time;
+            this.call = builder.call;
+            this.requestId = builder.requestId;
+            this.orgId = builder.orgId;
+            this.sessionId = builder.sessionId;
+            this.eventType = builder.eventType;
+            this.policy = builder.policy;
+            this.latency = builder.latency;
+            this.httpStatus = builder.httpStatus;
+            this.policyScore = builder.policyScore;
+            this.reviewStatus = builder.reviewStatus;
+            this.reasonCodes = builder.reasonCodes == null ? null
+                    : Collections.unmodifiableList(new ArrayList<>(builder.reasonCodes));
+            this.source = builder.source;
+            this.error = builder.error;
+        }
+
+        private void appendTo(StringBuilder json) {
+            json.append("{\"time\":").append(time).append(",\"call\":\"").append(call).append('"');
+            appendField(json, "request_id", requestId);
+            appendField(json, "org_id", orgId);
+            appendField(json, "session_id", sessionId);
+            appendField(json, "event_type", eventType);
+            appendField(json, "policy", policy);
+            if (latency >= 0) {
+                json.append(",\"latency_ms\":").append(latency);
+            }
+            if (httpStatus > 0) {
+                json.append(",\"http_status\":").append(httpStatus);
+            }
+            appendField(json, "policy_score", policyScore);
+            appendField(json, "review_status", reviewStatus);
+            if (reasonCodes != null) {
+                json.append(",\"reason_code\":[");
+                for (int i = 0; i < reasonCodes.size(); i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    appendJsonString(json, String.valueOf(reasonCodes.get(i)));
+                }
+                json.append(']');
+            }
+            appendField(json, "source", source);
+            appendField(json, "error", error);
+            json.append('}');
+        }
+
+        private static void appendField(StringBuilder json, String name, String value) {
+            if (value != null) {
+                json.append(",\"").append(name).append("\":");
+                appendJsonString(json, value);
+            }
+        }
+
+        /**
+         * Collects the fields of a record.
+         */
+        static final class Builder {
+            private final long time = System.currentTimeMillis();
+            private final String call;
+            private String requestId;
+            private String orgId;
+            private String sessionId;
+            private String eventType;
+            private String policy;
+            private long latency = -1;
+            private int httpStatus;
+            private String policyScore;
+            private String reviewStatus;
+            private List<String> reasonCodes;
+            private String source;
+            private String error;
+
+            /**
+             * Starts a record.
+             *
+             * @param call The ThreatMetrix API called, {@code session_query} or {@code update_review}.
+             */
+            Builder(String call) {
+                this.call = call;
+            }
+
+            Builder requestId(String requestId) {
+                this.requestId = requestId;
+                return this;
+            }
+
+            Builder orgId(String orgId) {
+                this.orgId = orgId;
+                return this;
+            }
+
+            Builder sessionId(String sessionId) {
+                this.sessionId = sessionId;
+                return this;
+            }
+
+            Builder eventType(String eventType) {
+                this.eventType = eventType;
+                return this;
+            }
+
+            Builder policy(String policy) {
+                this.policy = policy;
+                return this;
+            }
+
+            Builder latency(long latency) {
+                this.latency = latency;
+                return this;
+            }
+
+            Builder httpStatus(int httpStatus) {
+                this.httpStatus = httpStatus;
+                return this;
+            }
+
+            Builder policyScore(String policyScore) {
+                this.policyScore = policyScore;
+                return this;
+            }
+
+            Builder reviewStatus(String reviewStatus) {
+                this.reviewStatus = reviewStatus;
+                return this;
+            }
+
+            Builder reasonCodes(List<String> reasonCodes) {
+                this.reasonCodes = reasonCodes;
+                return this;
+            }
+
+            Builder source(String source) {
+                this.source = source;
+                return this;
+            }
+
+            Builder error(String error) {
+                this.error = error;
+                return this;
+            }
+
+            Entry build() {
+                return new Entry(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix audit log.
+ */
+public interface ThreatMetrixAuditLogMXBean {
+
+    /**
+     * The number of records waiting to be written.
+     *
+     * @return The queue depth.
+     */
+    long getQueued();
+
+    /**
+     * The number of records written to the audit files.
+     *
+     * @return The written count.
+     */
+    long getWritten();
+
+    /**
+     * The number of records discarded because the queue was full or the audit file could not be written.
+     *
+     * @return The dropped count.
+     */
+    long getDropped();
+}
@@ -19,11 +19,15 @@ package org.forgerock.openam.auth.nodes;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
+import org.forgerock.openam.plugins.PluginTools;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Map;
 
+import javax.inject.Inject;
+
+import com.google.common.collect.ImmutableMap;
+
 
 /**
  * Definition of an
@@ -60,7 +64,140 @@ import java.util.Map;
  */
 public class ThreatMetrixAuthNodePlugin extends AbstractNodeAmPlugin {
 
-    static private String currentVersion = "1.0.0";
+    static private String currentVersion = "1.1.0";
+
+    private PluginTools pluginTools;
+    private ThreatMetrixKnownBadDeviceFilter knownBadDeviceFilter;
+    private ThreatMetrixEndpointRouter endpointRouter;
+    private ThreatMetrixTracer tracer;
+    private ThreatMetrixWarmUp warmUp;
+    private ThreatMetrixAuditLog auditLog;
+    private ThreatMetrixResponseRecorder recorder;
+    private ThreatMetrixUpdateClient updateClient;
+    private ThreatMetrixResultCache resultCache;
+    private ThreatMetrixExecutor executor;
+    private ThreatMetrixCanaryProber canaryProber;
+    private ThreatMetrixReasonCodeStats reasonCodeStats;
+
+    /**
+     * Injects the plugin tools used to upgrade the schemas of existing nodes.
+     *
+     * @param pluginTools The plugin tools.
+     */
+    @Inject
+    public void setPluginTools(PluginTools pluginTools) {
+        this.pluginTools = pluginTools;
+    }
+
+    /**
+     * Injects the known bad device filter so that it can be persisted on shutdown.
+     *
+     * @param knownBadDeviceFilter The known bad device filter.
+     */
+    @Inject
+    public void setKnownBadDeviceFilter(ThreatMetrixKnownBadDeviceFilter knownBadDeviceFilter) {
+        this.knownBadDeviceFilter = knownBadDeviceFilter;
+    }
+
+    /**
+     * Injects the endpoint router so that its health probes can be stopped on shutdown.
+     *
+     * @param endpointRouter The endpoint router.
+     */
+    @Inject
+    public void setEndpointRouter(ThreatMetrixEndpointRouter endpointRouter) {
+        this.endpointRouter = endpointRouter;
+    }
+
+    /**
+     * Injects the tracer so that its exporter can be flushed on shutdown.
+     *
+     * @param tracer The tracer.
+     */
+    @Inject
+    public void setTracer(ThreatMetrixTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Injects the warm-up that is started with the plugin.
+     *
+     * @param warmUp The warm-up.
+     */
+    @Inject
+    public void setWarmUp(ThreatMetrixWarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Injects the audit log that is flushed when the plugin shuts down.
+     *
+     * @param auditLog The audit log.
+     */
+    @Inject
+    public void setAuditLog(ThreatMetrixAuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Injects the response recorder that is flushed when the plugin shuts down.
+     *
+     * @param recorder The response recorder.
+     */
+    @Inject
+    public void setRecorder(ThreatMetrixResponseRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Injects the update client whose queued updates are sent when the plugin shuts down.
+     *
+     * @param updateClient The update client.
+     */
+    @Inject
+    public void setUpdateClient(ThreatMetrixUpdateClient updateClient) {
+        this.updateClient = updateClient;
+    }
+
+    /**
+     * Injects the shared result cache so that its store can be closed on shutdown.
+     *
+     * @param resultCache The result cache.
+     */
+    @Inject
+    public void setResultCache(ThreatMetrixResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Injects the executor of background tasks so that it can be stopped on shutdown.
+     *
+     * @param executor The executor.
+     */
+    @Inject
+    public void setExecutor(ThreatMetrixExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Injects the reason code statistics so that their background counting can be stopped on shutdown.
+     *
+     * @param reasonCodeStats The reason code statistics.
+     */
+    @Inject
+    public void setReasonCodeStats(ThreatMetrixReasonCodeStats reasonCodeStats) {
+        this.reasonCodeStats = reasonCodeStats;
+    }
+
+    /**
+     * Injects the canary prober so that it can be started and stopped with the plugin.
+     *
+     * @param canaryProber The canary prober.
+     */
+    @Inject
+    public void setCanaryProber(ThreatMetrixCanaryProber canaryProber) {
+        this.canaryProber = canaryProber;
+    }
 
     /**
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
@@ -70,13 +207,15 @@ public class ThreatMetrixAuthNodePlugin extends AbstractNodeAmPlugin {
      */
     @Override
     protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
-        return Collections.singletonMap(ThreatMetrixAuthNodePlugin.currentVersion,
-                                        Arrays.asList(ThreatMetrixSessionQueryNode.class,
+        return ImmutableMap.of("1.0.0", Arrays.asList(ThreatMetrixSessionQueryNode.class,
                                                       ThreatMetrixProfilerNode.class,
                                                       ThreatMetrixReviewStatusNode.class,
                                                       ThreatMetrixPolicyScoreNode.class,
                                                       ThreatMetrixReasonCodeNode.class,
-                                                      ThreatMetrixUpdateReviewNode.class));
+                                                      ThreatMetrixUpdateReviewNode.class),
+                               "1.1.0", Arrays.asList(ThreatMetrixReputationNode.class,
+                                                      ThreatMetrixIpBlocklistNode.class,
+                                                      ThreatMetrixKnownBadDeviceNode.class));
     }
 
     /**
@@ -94,12 +233,58 @@ public class ThreatMetrixAuthNodePlugin extends AbstractNodeAmPlugin {
      * Handle plugin startup. This method will be called every time AM starts, after {@link #onInstall()},
      * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant).
      * <p>
-     * No need to implement this unless your AuthNode has specific requirements on startup.
+     * Starts the warm-up of ThreatMetrix connections and node hot paths, and the canary probes of the ThreatMetrix
+     * endpoints, if they are enabled.
      *
      */
     @Override
     public void onStartup() throws PluginException {
         super.onStartup();
+        if (warmUp != null) {
+            warmUp.start();
+        }
+        if (canaryProber != null) {
+            canaryProber.start();
+        }
+    }
+
+    /**
+     * Handle plugin shutdown. Writes the known bad device filter to disk so that it is available on the next startup,
+     * and stops background work.
+     */
+    @Override
+    public void onShutdown() {
+        if (canaryProber != null) {
+            canaryProber.shutdown();
+        }
+        if (knownBadDeviceFilter != null) {
+            knownBadDeviceFilter.shutdown();
+        }
+        if (updateClient != null) {
+            updateClient.shutdown();
+        }
+        if (endpointRouter != null) {
+            endpointRouter.shutdown();
+        }
+        if (tracer != null) {
+            tracer.shutdown();
+        }
+        if (auditLog != null) {
+            auditLog.shutdown();
+        }
+        if (recorder != null) {
+            recorder.shutdown();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (resultCache != null) {
+            resultCache.shutdown();
+        }
+        if (reasonCodeStats != null) {
+            reasonCodeStats.shutdown();
+        }
+        super.onShutdown();
     }
 
     /**
@@ -112,6 +297,11 @@ public class ThreatMetrixAuthNodePlugin extends AbstractNodeAmPlugin {
      */
     @Override
     public void upgrade(String fromVersion) throws PluginException {
+        if (fromVersion.equals("1.0.0")) {
+            pluginTools.upgradeAuthNode(ThreatMetrixProfilerNode.class);
+            pluginTools.upgradeAuthNode(ThreatMetrixSessionQueryNode.class);
+            pluginTools.upgradeAuthNode(ThreatMetrixUpdateReviewNode.class);
+        }
         super.upgrade(fromVersion);
     }
 
@@ -0,0 +1,145 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Bulk update of the review status and trust tags of ThreatMetrix requests, for fraud analysts and post-login jobs.
+ * <p>
+ * Reads one update per line from a file, or standard input if no file is given, as
+ * {@code request_id,final_review_status,tag_name,tag_context,line_of_business,notes}, where every column after the
+ * first may be empty and the notes may contain commas. A line without a request ID fails without being sent. Updates
+ * are sent through {@link ThreatMetrixUpdateClient}, so repeated updates of a request within the coalescing window are
+ * sent once with the last values, and one line is written to standard output per input line as
+ * {@code request_id,status,http_status,error}. The API key is read from the {@code TMX_API_KEY} environment variable
+ * so that it does not appear in the process list. Run it with the plugin and the AM libraries on the classpath:
+ * <pre>
+ * TMX_API_KEY=... java -cp threatmetrix-auth-tree-nodes.jar:am/WEB-INF/lib/* \
+ *     org.forgerock.openam.auth.nodes.ThreatMetrixBulkUpdate --org-id=ORG_ID updates.csv
+ * </pre>
+ */
+public final class ThreatMetrixBulkUpdate {
+
+    private static final String USAGE = "Usage: TMX_API_KEY=... ThreatMetrixBulkUpdate --org-id=ORG_ID "
+            + "[--uri=UPDATE_URI] [--failover-uri=UPDATE_URI]... [UPDATES_FILE]";
+    private static final String DEFAULT_URI = "https://h-api.online-metrix.net/api/update";
+    private static final int COLUMNS = 6;
+
+    private ThreatMetrixBulkUpdate() {
+    }
+
+    /**
+     * Sends the updates and prints their results. Exits with status 1 if any update failed.
+     *
+     * @param args The options and the updates file.
+     * @throws Exception If the updates cannot be read or the HTTP client cannot be created.
+     */
+    public static void main(String[] args) throws Exception {
+        String orgId = null;
+        String file = null;
+        String uri = DEFAULT_URI;
+        List<String> endpoints = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--org-id=")) {
+                orgId = arg.substring("--org-id=".length());
+            } else if (arg.startsWith("--uri=")) {
+                uri = arg.substring("--uri=".length());
+            } else if (arg.startsWith("--failover-uri=")) {
+                endpoints.add(arg.substring("--failover-uri=".length()) + "?output_format=json");
+            } else if (arg.startsWith("--") || file != null) {
+                usage();
+            } else {
+                file = arg;
+            }
+        }
+        String apiKey = System.getenv("TMX_API_KEY");
+        if (StringUtils.isEmpty(orgId) || StringUtils.isEmpty(apiKey)) {
+            usage();
+        }
+        endpoints.add(0, uri + "?output_format=json");
+
+        HttpClientHandler clientHandler = new HttpClientHandler();
+        ThreatMetrixEndpointRouter router = new ThreatMetrixEndpointRouter(clientHandler);
+        ThreatMetrixUpdateClient client = new ThreatMetrixUpdateClient(router, new ThreatMetrixErrorCache());
+        List<Promise<ThreatMetrixUpdateClient.Result, NeverThrowsException>> results = new ArrayList<>();
+        try (BufferedReader reader = file == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+                String[] columns = line.split(",", COLUMNS);
+                String requestId = columns[0].trim();
+                if (requestId.isEmpty()) {
+                    results.add(newResultPromise(ThreatMetrixUpdateClient.Result.rejected(
+                            requestId, "no request_id on line " + lineNumber)));
+                    continue;
+                }
+                ThreatMetrixUpdateClient.Update update =
+                        new ThreatMetrixUpdateClient.Update(orgId, apiKey, requestId)
+                                .finalReviewStatus(column(columns, 1))
+                                .lineOfBusiness(column(columns, 4))
+                                .notes(column(columns, 5));
+                if (StringUtils.isNotEmpty(column(columns, 2))) {
+                    update.trustTag(column(columns, 2), column(columns, 3));
+                }
+                results.add(client.submit(endpoints, update));
+            }
+        }
+        client.flush();
+
+        boolean failed = false;
+        for (Promise<ThreatMetrixUpdateClient.Result, NeverThrowsException> promise : results) {
+            ThreatMetrixUpdateClient.Result result = promise.getOrThrowUninterruptibly();
+            failed |= result.getStatus() == ThreatMetrixUpdateClient.Result.Status.FAILED;
+            System.out.println(result.getRequestId() + ',' + result.getStatus() + ',' + result.getHttpStatus() + ','
+                                       + StringUtils.defaultString(result.getError()).replace('\n', ' '));
+        }
+        client.shutdown();
+        router.shutdown();
+        clientHandler.close();
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static String column(String[] columns, int index) {
+        return index < columns.length ? columns[index].trim() : "";
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.API_KEY;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.EVENT_TYPE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_RESULT;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_RESULT_SUCCESS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SERVICE_TYPE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Sends synthetic session queries and updates to the ThreatMetrix endpoints, so that a slow or misbehaving endpoint
+ * is noticed, and routed around, before logins depend on it.
+ * <p>
+ * When configured, a background thread queries a dedicated test session on each session query endpoint and then
+ * updates the request it got back on each update endpoint, once per interval. The latency and validity of each
+ * response are recorded per endpoint and fed into the {@link ThreatMetrixEndpointRouter}: timeouts, server errors and
+ * malformed responses count as endpoint failures, well formed responses as successes. Client errors and failed
+ * request results point at the canary configuration rather than the endpoint, so they are only counted here. Probes
+ * are sent one at a time, never more often than the interval allows and never more than a fixed number a minute,
+ * whatever the number of endpoints.
+ */
+@Singleton
+class ThreatMetrixCanaryProber implements ThreatMetrixCanaryProberMXBean {
+
+    static final String INTERVAL_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.intervalSeconds";
+    static final String MAX_PROBES_PER_MINUTE_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.canary.maxProbesPerMinute";
+    static final String TIMEOUT_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.timeoutMillis";
+    static final String ORG_ID_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.orgId";
+    static final String API_KEY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.apiKey";
+    static final String SESSION_ID_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.sessionId";
+    static final String POLICY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.policy";
+    static final String SESSION_QUERY_URIS_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.canary.sessionQueryUris";
+    static final String UPDATE_URIS_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.canary.updateUris";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final long MIN_INTERVAL_SECONDS = 30;
+    private static final int WINDOW_INTERVALS = 20;
+    private static final String DEFAULT_SESSION_QUERY_URI = "https://h-api.online-metrix.net/api/session-query";
+    private static final String DEFAULT_UPDATE_URI = "https://h-api.online-metrix.net/api/update";
+    private static final String CANARY_NOTES = "ThreatMetrix auth node canary probe";
+
+    private final HttpClientHandler clientHandler;
+    private final ThreatMetrixEndpointRouter endpointRouter;
+    private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLong rateLimitedProbes = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+    private long windowMillis;
+    private int maxProbesPerMinute;
+    private long timeoutMillis;
+    private String orgId;
+    private String apiKey;
+    private long minuteStart;
+    private int probesThisMinute;
+    private volatile String lastRequestId;
+
+    @Inject
+    ThreatMetrixCanaryProber(HttpClientHandler clientHandler, ThreatMetrixEndpointRouter endpointRouter) {
+        this.clientHandler = clientHandler;
+        this.endpointRouter = endpointRouter;
+        ThreatMetrixMonitoring.register("CanaryProber", this, ThreatMetrixCanaryProberMXBean.class);
+    }
+
+    /**
+     * Starts probing on a background thread, if an interval, org ID and API key are configured.
+     */
+    synchronized void start() {
+        long interval = SystemProperties.getAsLong(INTERVAL_PROPERTY, 0);
+        orgId = SystemProperties.get(ORG_ID_PROPERTY);
+        apiKey = SystemProperties.get(API_KEY_PROPERTY);
+        if (interval <= 0 || scheduler != null) {
+            return;
+        }
+        if (StringUtils.isBlank(orgId) || StringUtils.isBlank(apiKey)) {
+            logger.warn("ThreatMetrix canary probes need " + ORG_ID_PROPERTY + " and " + API_KEY_PROPERTY
+                                + ", not starting them");
+            return;
+        }
+        if (interval < MIN_INTERVAL_SECONDS) {
+            logger.warn("ThreatMetrix canary interval of " + interval + "s is too short, using "
+                                + MIN_INTERVAL_SECONDS + "s");
+            interval = MIN_INTERVAL_SECONDS;
+        }
+        List<Probe> probes = new ArrayList<>();
+        String sessionId = SystemProperties.get(SESSION_ID_PROPERTY, "threatmetrix-canary");
+        String policy = SystemProperties.get(POLICY_PROPERTY, "default");
+        for (URI uri : uris(SESSION_QUERY_URIS_PROPERTY, DEFAULT_SESSION_QUERY_URI)) {
+            probes.add(new Probe(uri, sessionQuery(sessionId, policy), true));
+        }
+        for (URI uri : uris(UPDATE_URIS_PROPERTY, DEFAULT_UPDATE_URI)) {
+            probes.add(new Probe(uri, null, false));
+        }
+        windowMillis = TimeUnit.SECONDS.toMillis(interval * WINDOW_INTERVALS);
+        maxProbesPerMinute = SystemProperties.getAsInt(MAX_PROBES_PER_MINUTE_PROPERTY, 10);
+        timeoutMillis = SystemProperties.getAsLong(TIMEOUT_PROPERTY, 5000);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ThreatMetrix canary prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> probeAll(probes), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops probing.
+     */
+    synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static List<URI> uris(String property, String defaultUri) {
+        List<URI> uris = new ArrayList<>();
+        for (String uri : SystemProperties.get(property, defaultUri).split(",")) {
+            if (StringUtils.isBlank(uri)) {
+                continue;
+            }
+            try {
+                // the same form as the nodes use, so that the router state is shared with them
+                uris.add(new URI(uri.trim() + "?output_format=json"));
+            } catch (URISyntaxException e) {
+                logger.warn("Ignoring invalid ThreatMetrix canary endpoint " + uri, e);
+            }
+        }
+        return uris;
+    }
+
+    private Form sessionQuery(String sessionId, String policy) {
+        Form form = new Form();
+        form.add(ORG_ID, orgId);
+        form.add(API_KEY, apiKey);
+        form.add(SESSION_ID, sessionId);
+        form.add(SERVICE_TYPE, ThreatMetrixSessionQueryNode.ServiceType.SESSION_POLICY.toString());
+        form.add(EVENT_TYPE, ThreatMetrixSessionQueryNode.EventType.LOGIN.toString());
+        form.add(POLICY, policy);
+        return form;
+    }
+
+    private void probeAll(List<Probe> probes) {
+        for (Probe probe : probes) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            Form form = probe.form;
+            if (form == null) {
+                String requestId = lastRequestId;
+                if (requestId == null) {
+                    // nothing to update until a session query probe has succeeded
+                    continue;
+                }
+                form = new ThreatMetrixUpdateClient.Update(orgId, apiKey, requestId).notes(CANARY_NOTES).toForm();
+            }
+            if (!acquire()) {
+                rateLimitedProbes.incrementAndGet();
+                continue;
+            }
+            try {
+                probe(probe, form);
+            } catch (RuntimeException e) {
+                logger.warn("ThreatMetrix canary probe of " + probe.uri + " failed", e);
+            }
+        }
+    }
+
+    private boolean acquire() {
+        long now = System.currentTimeMillis();
+        if (now - minuteStart >= TimeUnit.MINUTES.toMillis(1)) {
+            minuteStart = now;
+            probesThisMinute = 0;
+        }
+        if (probesThisMinute >= maxProbesPerMinute) {
+            return false;
+        }
+        probesThisMinute++;
+        return true;
+    }
+
+    private void probe(Probe probe, Form form) {
+        String uri = probe.uri.toString();
+        EndpointStats stats = endpoints.computeIfAbsent(uri, key -> new EndpointStats(windowMillis));
+        Request request = new Request().setUri(probe.uri);
+        form.toRequestEntity(request);
+        long start = System.nanoTime();
+        Promise<Response, NeverThrowsException> promise = clientHandler.handle(new RootContext(), request);
+        try (Response response = promise.getOrThrow(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            stats.latencies.record(latency);
+            switch (validate(probe, response, stats)) {
+            case NONE:
+                stats.valid.incrementAndGet();
+                endpointRouter.recordSuccess(uri, latency);
+                break;
+            case ENDPOINT:
+                endpointRouter.recordFailure(uri, latency);
+                break;
+            default:
+                break;
+            }
+        } catch (TimeoutException e) {
+            promise.cancel(true);
+            stats.latencies.record(timeoutMillis);
+            stats.invalid("timed out after " + timeoutMillis + "ms");
+            endpointRouter.recordFailure(uri, timeoutMillis);
+        } catch (InterruptedException e) {
+            promise.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (NeverThrowsException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            request.close();
+        }
+    }
+
+    /**
+     * Checks a probe response, and records why it is invalid if it is.
+     *
+     * @param probe The probe.
+     * @param response The response.
+     * @param stats The statistics of the probed endpoint.
+     * @return The kind of failure, or {@link Failure#NONE} if the response is valid.
+     */
+    private Failure validate(Probe probe, Response response, EndpointStats stats) {
+        if (!response.getStatus().isSuccessful()) {
+            stats.invalid("TMX returned " + response.getStatus());
+            return response.getStatus().isServerError() ? Failure.ENDPOINT : Failure.CONFIGURATION;
+        }
+        JsonValue json;
+        try {
+            json = JsonValue.json(response.getEntity().getJson());
+        } catch (Exception e) {
+            stats.invalid("malformed response: " + e.getMessage());
+            return Failure.ENDPOINT;
+        }
+        if (!json.isMap()) {
+            stats.invalid("malformed response: not a JSON object");
+            return Failure.ENDPOINT;
+        }
+        String requestResult = json.get(REQUEST_RESULT).asString();
+        if (!REQUEST_RESULT_SUCCESS.equals(requestResult)) {
+            stats.invalid("request_result " + requestResult);
+            return Failure.CONFIGURATION;
+        }
+        if (probe.sessionQuery) {
+            String requestId = json.get(REQUEST_ID).asString();
+            if (StringUtils.isEmpty(requestId)) {
+                stats.invalid("malformed response: no request_id");
+                return Failure.ENDPOINT;
+            }
+            lastRequestId = requestId;
+        }
+        return Failure.NONE;
+    }
+
+    private Map<String, Long> collect(Function<EndpointStats, Long> value) {
+        return endpoints.entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> value.apply(entry.getValue())));
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    @Override
+    public Map<String, Long> getMedianLatencies() {
+        return collect(stats -> stats.latencies.percentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getP99Latencies() {
+        return collect(stats -> stats.latencies.percentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getValidResponses() {
+        return collect(stats -> stats.valid.get());
+    }
+
+    @Override
+    public Map<String, Long> getInvalidResponses() {
+        return collect(stats -> stats.invalid.get());
+    }
+
+    @Override
+    public Map<String, String> getLastErrors() {
+        return endpoints.entrySet().stream()
+                        .filter(entry -> entry.getValue().lastError != null)
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().lastError));
+    }
+
+    @Override
+    public long getRateLimitedProbes() {
+        return rateLimitedProbes.get();
+    }
+
+    /**
+     * What a probe response says about the probed endpoint.
+     */
+    private enum Failure {
+        /** The response is valid. */
+        NONE,
+        /** A server error or a malformed response, which counts as a failure of the endpoint. */
+        ENDPOINT,
+        /**
+         * A client error or a failed request result, such as {@code fail_access}, which points at the canary
+         * configuration rather than the endpoint.
+         */
+        CONFIGURATION
+    }
+
+    private static final class Probe {
+        private final URI uri;
+        private final Form form;
+        private final boolean sessionQuery;
+
+        private Probe(URI uri, Form form, boolean sessionQuery) {
+            this.uri = uri;
+            this.form = form;
+            this.sessionQuery = sessionQuery;
+        }
+    }
+
+    private static final class EndpointStats {
+        private final ThreatMetrixLatencyHistogram latencies;
+        private final AtomicLong valid = new AtomicLong();
+        private final AtomicLong invalid = new AtomicLong();
+        private volatile String lastError;
+
+        private EndpointStats(long windowMillis) {
+            this.latencies = new ThreatMetrixLatencyHistogram(windowMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void invalid(String error) {
+            invalid.incrementAndGet();
+            lastError = error;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Map;
+
+/**
+ * Monitoring view of the ThreatMetrix canary prober.
+ */
+public interface ThreatMetrixCanaryProberMXBean {
+
+    /**
+     * Whether canary probes are being sent.
+     *
+     * @return True if the prober is configured and running.
+     */
+    boolean isRunning();
+
+    /**
+     * The median latency of the canary probes of each endpoint, over the last complete window.
+     *
+     * @return The latency in milliseconds by endpoint URI, or -1 for an endpoint with no probes in the window.
+     */
+    Map<String, Long> getMedianLatencies();
+
+    /**
+     * The 99th percentile latency of the canary probes of each endpoint, over the last complete window.
+     *
+     * @return The latency in milliseconds by endpoint URI, or -1 for an endpoint with no probes in the window.
+     */
+    Map<String, Long> getP99Latencies();
+
+    /**
+     * The number of canary probes of each endpoint that returned a well formed response.
+     *
+     * @return The count by endpoint URI.
+     */
+    Map<String, Long> getValidResponses();
+
+    /**
+     * The number of canary probes of each endpoint that failed, timed out or returned a malformed response.
+     *
+     * @return The count by endpoint URI.
+     */
+    Map<String, Long> getInvalidResponses();
+
+    /**
+     * Why the last invalid canary probe of each endpoint was counted as invalid.
+     *
+     * @return The reason by endpoint URI.
+     */
+    Map<String, String> getLastErrors();
+
+    /**
+     * The number of canary probes that were not sent because the probe rate limit was reached.
+     *
+     * @return The count.
+     */
+    long getRateLimitedProbes();
+}
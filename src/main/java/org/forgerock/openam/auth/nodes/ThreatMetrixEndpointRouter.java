@@ -0,0 +1,283 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.util.Closeables.closeSilentlyAsync;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Routes ThreatMetrix API calls across a set of equivalent endpoints.
+ * <p>
+ * Each endpoint's latency and error rate are tracked as exponentially weighted moving averages, and calls go to the
+ * endpoint with the best combination of the two. A call that fails with a server error or a connection failure is
+ * retried on the next endpoint. An endpoint that fails repeatedly is routed around until a background health probe
+ * finds it responding again.
+ */
+@Singleton
+class ThreatMetrixEndpointRouter implements ThreatMetrixEndpointRouterMXBean {
+
+    static final String PROBE_INTERVAL_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.endpointRouter.probeIntervalSeconds";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final double ALPHA = 0.2;
+    private static final double ERROR_PENALTY = 10;
+    private static final int FAILURES_BEFORE_UNHEALTHY = 3;
+
+    private final Handler clientHandler;
+    private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober;
+
+    @Inject
+    ThreatMetrixEndpointRouter(HttpClientHandler clientHandler) {
+        this(clientHandler, SystemProperties.getAsLong(PROBE_INTERVAL_PROPERTY, 10));
+        ThreatMetrixMonitoring.register("EndpointRouter", this, ThreatMetrixEndpointRouterMXBean.class);
+    }
+
+    /**
+     * Creates a router that sends requests through any handler, such as the canned responses of
+     * {@link ThreatMetrixOfflineNodes}. It is not published over JMX.
+     *
+     * @param clientHandler The handler that sends requests.
+     * @param probeIntervalSeconds How often unhealthy endpoints are probed, or zero to never probe them.
+     */
+    ThreatMetrixEndpointRouter(Handler clientHandler, long probeIntervalSeconds) {
+        this.clientHandler = clientHandler;
+        if (probeIntervalSeconds <= 0) {
+            this.prober = null;
+        } else {
+            this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ThreatMetrix endpoint health probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            prober.scheduleWithFixedDelay(this::probeUnhealthyEndpoints, probeIntervalSeconds, probeIntervalSeconds,
+                                          TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Sends a request to the best endpoint, failing over to the others in order of preference when an endpoint
+     * returns a server error.
+     *
+     * @param uris The equivalent endpoint URIs, in configured order.
+     * @param requestFactory Creates the request to send to an endpoint.
+     * @return The response of the first endpoint that did not fail, or the last failure.
+     * @throws NodeProcessException If an endpoint URI is invalid.
+     */
+    Promise<Response, NeverThrowsException> send(List<String> uris, RequestFactory requestFactory)
+            throws NodeProcessException {
+        List<String> ordered = order(uris);
+        List<URI> parsed = new ArrayList<>(ordered.size());
+        for (String uri : ordered) {
+            try {
+                parsed.add(new URI(uri));
+            } catch (URISyntaxException e) {
+                throw new NodeProcessException(e);
+            }
+        }
+        return attempt(ordered, parsed, 0, requestFactory);
+    }
+
+    private Promise<Response, NeverThrowsException> attempt(List<String> uris, List<URI> parsed, int index,
+            RequestFactory requestFactory) {
+        String uri = uris.get(index);
+        Request request = requestFactory.apply(parsed.get(index));
+        long start = System.nanoTime();
+        return clientHandler.handle(new RootContext(), request)
+                            .thenAlways(closeSilentlyAsync(request))
+                            .thenAsync(response -> {
+                                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                                if (!response.getStatus().isServerError()) {
+                                    recordSuccess(uri, latency);
+                                    return newResultPromise(response);
+                                }
+                                recordFailure(uri, latency);
+                                if (index + 1 == uris.size()) {
+                                    return newResultPromise(response);
+                                }
+                                logger.warn("TMX endpoint " + uri + " returned " + response.getStatus()
+                                                    + ", failing over to " + uris.get(index + 1));
+                                response.close();
+                                return attempt(uris, parsed, index + 1, requestFactory);
+                            });
+    }
+
+    /**
+     * Orders endpoints by preference: healthy endpoints first, by latency penalised by error rate, then unhealthy
+     * endpoints as a last resort.
+     *
+     * @param uris The endpoint URIs.
+     * @return The endpoint URIs in the order they should be tried.
+     */
+    List<String> order(List<String> uris) {
+        if (uris.size() == 1) {
+            return uris;
+        }
+        return uris.stream()
+                   .distinct()
+                   .sorted(Comparator.comparing((String uri) -> stats(uri).isUnhealthy())
+                                     .thenComparingDouble(uri -> stats(uri).score()))
+                   .collect(Collectors.toList());
+    }
+
+    /**
+     * Records a call that reached the endpoint.
+     *
+     * @param uri The endpoint URI.
+     * @param latency The call latency in milliseconds.
+     */
+    void recordSuccess(String uri, long latency) {
+        stats(uri).record(latency, false);
+    }
+
+    /**
+     * Records a call that failed because of the endpoint.
+     *
+     * @param uri The endpoint URI.
+     * @param latency The call latency in milliseconds.
+     */
+    void recordFailure(String uri, long latency) {
+        stats(uri).record(latency, true);
+    }
+
+    /**
+     * Stops the background health probes.
+     */
+    void shutdown() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+    }
+
+    private EndpointStats stats(String uri) {
+        return endpoints.computeIfAbsent(uri, key -> new EndpointStats());
+    }
+
+    private void probeUnhealthyEndpoints() {
+        endpoints.forEach((uri, stats) -> {
+            if (!stats.isUnhealthy()) {
+                return;
+            }
+            try {
+                Request request = new Request().setMethod("GET").setUri(uri);
+                long start = System.nanoTime();
+                clientHandler.handle(new RootContext(), request)
+                             .thenAlways(closeSilentlyAsync(request))
+                             .thenOnResult(response -> {
+                                 long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                                 // any answer other than a server error shows the endpoint is serving again
+                                 if (!response.getStatus().isServerError()) {
+                                     logger.info("TMX endpoint " + uri + " is healthy again");
+                                     stats.markHealthy(latency);
+                                 }
+                                 response.close();
+                             });
+            } catch (URISyntaxException e) {
+                logger.warn("Unable to probe TMX endpoint " + uri, e);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        return endpoints.entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().latency));
+    }
+
+    @Override
+    public Map<String, Double> getErrorRates() {
+        return endpoints.entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().errorRate));
+    }
+
+    @Override
+    public Set<String> getUnhealthyEndpoints() {
+        return endpoints.entrySet().stream()
+                        .filter(entry -> entry.getValue().isUnhealthy())
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toSet());
+    }
+
+    /**
+     * Creates the request to send to an endpoint, so that the same call can be retried on another endpoint.
+     */
+    interface RequestFactory extends Function<URI, Request> {
+    }
+
+    private static final class EndpointStats {
+        private volatile double latency;
+        private volatile double errorRate;
+        private int consecutiveFailures;
+        private boolean seen;
+
+        synchronized void record(long sample, boolean failure) {
+            if (!seen) {
+                latency = sample;
+                seen = true;
+            } else {
+                latency += ALPHA * (sample - latency);
+            }
+            errorRate += ALPHA * ((failure ? 1 : 0) - errorRate);
+            consecutiveFailures = failure ? consecutiveFailures + 1 : 0;
+        }
+
+        synchronized void markHealthy(long sample) {
+            latency = sample;
+            errorRate = 0;
+            consecutiveFailures = 0;
+        }
+
+        synchronized boolean isUnhealthy() {
+            return consecutiveFailures >= FAILURES_BEFORE_UNHEALTHY;
+        }
+
+        synchronized double score() {
+            return latency * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+}
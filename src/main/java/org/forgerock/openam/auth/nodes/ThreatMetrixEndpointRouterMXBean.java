@@ -0,0 +1,47 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Monitoring view of the ThreatMetrix endpoint router.
+ */
+public interface ThreatMetrixEndpointRouterMXBean {
+
+    /**
+     * The exponentially weighted moving average latency, in milliseconds, of each endpoint.
+     *
+     * @return The latency by endpoint URI.
+     */
+    Map<String, Double> getLatencies();
+
+    /**
+     * The exponentially weighted moving average error rate, between 0 and 1, of each endpoint.
+     *
+     * @return The error rate by endpoint URI.
+     */
+    Map<String, Double> getErrorRates();
+
+    /**
+     * The endpoints that are currently routed around.
+     *
+     * @return The unhealthy endpoint URIs.
+     */
+    Set<String> getUnhealthyEndpoints();
+}
@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+
+import com.google.common.hash.Hashing;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Short-lived cache of the authentication and configuration errors returned by ThreatMetrix, per org, API key and
+ * endpoint.
+ * <p>
+ * A wrong or revoked API key, or a wrong URI, makes every call fail in the same way. Once an endpoint has answered
+ * 401, 403 or 404 for an org and API key, further calls with them that would go to that endpoint first fail straight
+ * away until the TTL has passed, and the first call after that goes to ThreatMetrix again. Errors are kept against
+ * the endpoint that returned them, so a wrong failover URI does not fail calls that the primary endpoint answers. The
+ * API key is part of the key, as the first characters of its SHA-256 hash, so that a corrected key is used at once
+ * and a node with a wrong key does not fail the calls of a node with the right one. Other client errors can depend on
+ * the request, so they are not cached. Errors and fast failures are counted per org so the misconfiguration shows up
+ * in monitoring.
+ */
+@Singleton
+class ThreatMetrixErrorCache implements ThreatMetrixErrorCacheMXBean {
+
+    static final String TTL_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.errorCache.ttlSeconds";
+
+    private static final int MAX_ORGS = 1000;
+    private static final String OTHER_ORGS = "other";
+
+    private final long ttlMillis;
+    private final ConcurrentMap<String, CachedError> errors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> errorCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> failedFastCounts = new ConcurrentHashMap<>();
+
+    ThreatMetrixErrorCache() {
+        this(SystemProperties.getAsLong(TTL_PROPERTY, 30));
+        ThreatMetrixMonitoring.register("ErrorCache", this, ThreatMetrixErrorCacheMXBean.class);
+    }
+
+    /**
+     * Creates a cache that keeps errors for the given time and is not published over JMX.
+     *
+     * @param ttlSeconds How long an error is kept, or zero to keep none.
+     */
+    ThreatMetrixErrorCache(long ttlSeconds) {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, ttlSeconds));
+    }
+
+    /**
+     * Returns the error cached for an org, API key and endpoint, counting the call as failed fast.
+     *
+     * @param orgId The ThreatMetrix org ID.
+     * @param apiKey The API key of the call.
+     * @param endpoint The endpoint URI the call would be sent to first.
+     * @return The HTTP status ThreatMetrix last returned, or null if the call should be made.
+     */
+    Status getCachedError(String orgId, String apiKey, String endpoint) {
+        if (ttlMillis == 0 || errors.isEmpty()) {
+            return null;
+        }
+        String key = key(orgId, apiKey, endpoint);
+        CachedError error = errors.get(key);
+        if (error == null) {
+            return null;
+        }
+        if (error.expires < System.currentTimeMillis()) {
+            errors.remove(key, error);
+            return null;
+        }
+        increment(failedFastCounts, orgId);
+        return error.status;
+    }
+
+    /**
+     * Caches the error of a response, if it is an authentication or configuration error.
+     *
+     * @param orgId The ThreatMetrix org ID.
+     * @param apiKey The API key of the call.
+     * @param endpoint The endpoint URI that returned the response.
+     * @param response The response.
+     */
+    void record(String orgId, String apiKey, String endpoint, Response response) {
+        Status status = response.getStatus();
+        if (!isConfigurationError(status)) {
+            return;
+        }
+        increment(errorCounts, orgId);
+        if (ttlMillis > 0) {
+            errors.put(key(orgId, apiKey, endpoint), new CachedError(status, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    private static boolean isConfigurationError(Status status) {
+        int code = status.getCode();
+        return code == 401 || code == 403 || code == 404;
+    }
+
+    private static String key(String orgId, String apiKey, String endpoint) {
+        String keyHash = Hashing.sha256().hashString(StringUtils.defaultString(apiKey), StandardCharsets.UTF_8)
+                                .toString();
+        return StringUtils.defaultString(orgId) + ' ' + keyHash.substring(0, 8) + ' ' + endpoint;
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counts, String orgId) {
+        String org = StringUtils.defaultString(orgId);
+        AtomicLong count = counts.get(org);
+        if (count == null) {
+            count = counts.computeIfAbsent(counts.size() < MAX_ORGS ? org : OTHER_ORGS, key -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return snapshot(errorCounts);
+    }
+
+    @Override
+    public Map<String, Long> getFailedFastCounts() {
+        return snapshot(failedFastCounts);
+    }
+
+    @Override
+    public Map<String, Integer> getCachedErrors() {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> cached = new TreeMap<>();
+        errors.forEach((key, error) -> {
+            if (error.expires >= now) {
+                cached.put(key, error.status.getCode());
+            }
+        });
+        return cached;
+    }
+
+    @Override
+    public void clearCachedErrors() {
+        errors.clear();
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counts) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((org, count) -> snapshot.put(org, count.get()));
+        return snapshot;
+    }
+
+    private static final class CachedError {
+        private final Status status;
+        private final long expires;
+
+        private CachedError(Status status, long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Map;
+
+/**
+ * Monitoring view of the ThreatMetrix authentication and configuration errors, per org.
+ */
+public interface ThreatMetrixErrorCacheMXBean {
+
+    /**
+     * The number of authentication and configuration errors returned by ThreatMetrix, per org ID. A growing count
+     * usually means a wrong or revoked API key, or a wrong URI.
+     *
+     * @return The error counts.
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * The number of calls failed without contacting ThreatMetrix because of a cached error, per org ID. A session
+     * query failed this way fails the login, as the call that returned the error did.
+     *
+     * @return The failed fast counts.
+     */
+    Map<String, Long> getFailedFastCounts();
+
+    /**
+     * The errors currently cached, as the HTTP status per org ID, API key and the endpoint that returned it.
+     *
+     * @return The cached errors, keyed by org ID, the first 8 hex digits of the SHA-256 hash of the API key, and
+     * endpoint, separated by spaces.
+     */
+    Map<String, Integer> getCachedErrors();
+
+    /**
+     * Drops the cached errors, for example once the API key has been corrected, so the next call goes to
+     * ThreatMetrix.
+     */
+    void clearCachedErrors();
+}
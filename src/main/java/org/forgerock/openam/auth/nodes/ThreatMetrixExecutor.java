@@ -0,0 +1,176 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Executor for the blocking work the plugin does off the authentication threads, such as writes to a remote result
+ * store.
+ * <p>
+ * When virtual threads are enabled and the JVM supports them (Java 21 and later), each task runs on its own virtual
+ * thread, so tasks that block on I/O do not hold a platform thread. Virtual threads are looked up reflectively, so the
+ * plugin still runs on older JVMs, where it falls back to a bounded pool of platform threads. A task that the pool
+ * has no room for is refused rather than run on the caller's thread, which is usually an authentication thread.
+ */
+@Singleton
+class ThreatMetrixExecutor {
+
+    static final String VIRTUAL_THREADS_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.executor.virtualThreads";
+    static final String MAX_PLATFORM_THREADS_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.executor.maxPlatformThreads";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String THREAD_NAME = "ThreatMetrix worker ";
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    ThreatMetrixExecutor() {
+        this(SystemProperties.getAsBoolean(VIRTUAL_THREADS_PROPERTY, false),
+             SystemProperties.getAsInt(MAX_PLATFORM_THREADS_PROPERTY, 32));
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param virtualThreads Whether to use virtual threads if the JVM supports them.
+     * @param maxPlatformThreads The size of the platform thread pool used otherwise.
+     */
+    ThreatMetrixExecutor(boolean virtualThreads, int maxPlatformThreads) {
+        ThreadFactory virtualThreadFactory = virtualThreads ? virtualThreadFactory(THREAD_NAME) : null;
+        if (virtualThreadFactory != null) {
+            this.executor = newThreadPerTaskExecutor(virtualThreadFactory);
+        } else {
+            if (virtualThreads) {
+                logger.warn("Virtual threads are not supported by this JVM, ThreatMetrix tasks use platform threads");
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, maxPlatformThreads),
+                                                             Math.max(1, maxPlatformThreads), 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(1024),
+                                                             platformThreadFactory(THREAD_NAME),
+                                                             new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        }
+        this.virtual = virtualThreadFactory != null;
+    }
+
+    /**
+     * Returns a factory of named virtual threads, if the JVM supports them.
+     *
+     * @param prefix The prefix of the thread names, followed by a sequence number.
+     * @return The factory, or null if virtual threads are not supported.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // preview API on Java 19 and 20 without --enable-preview
+            return null;
+        }
+    }
+
+    /**
+     * Returns a factory of named daemon platform threads.
+     *
+     * @param prefix The prefix of the thread names, followed by a sequence number.
+     * @return The factory.
+     */
+    static ThreadFactory platformThreadFactory(String prefix) {
+        AtomicInteger sequence = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + sequence.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                                                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are supported but not their executor", e);
+        }
+    }
+
+    /**
+     * Runs a task, unless the platform thread pool and its queue are full or the executor has been shut down.
+     * Exceptions thrown by the task are logged.
+     *
+     * @param task The task.
+     * @return False if the task was refused and will not run.
+     */
+    boolean tryExecute(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("ThreatMetrix background task failed", e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether tasks run on virtual threads.
+     *
+     * @return True if virtual threads are in use.
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Stops accepting tasks and waits briefly for the running ones to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * {@link ThreatMetrixResultStore} kept as one file per key in a directory, for test deployments that run several
+ * servers on one host or share a directory between them.
+ * <p>
+ * Each file holds the expiry time on its first line and the value on the second, and is replaced atomically. Changes
+ * made by other servers are picked up with a {@link WatchService} and passed to the invalidation listener. The
+ * store's own writes are not reported back: for a few seconds after each write, the file is compared with what was
+ * written, so that however many events the write raises, only a different file is reported. Expired files are
+ * deleted when they are read and by a sweep every minute.
+ */
+public class ThreatMetrixFileResultStore implements ThreatMetrixResultStore {
+
+    static final String DIRECTORY_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.resultCache.file.directory";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /** The own write marker of a deleted file, outside the range of content hashes. */
+    private static final long DELETED = Long.MIN_VALUE;
+
+    private final Path directory;
+    /** The hash of the content of each file recently written by this store, or {@link #DELETED}. */
+    private final Cache<String, Long> ownWrites = CacheBuilder.newBuilder()
+                                                                 .maximumSize(10000)
+                                                                 .expireAfterWrite(10, TimeUnit.SECONDS)
+                                                                 .build();
+    private final WatchService watcher;
+    private final Thread watchThread;
+    private volatile Consumer<String> listener;
+
+    /**
+     * Creates the store in the directory named by the {@value #DIRECTORY_PROPERTY} advanced server property.
+     *
+     * @throws IOException If the directory is not set or cannot be created.
+     */
+    public ThreatMetrixFileResultStore() throws IOException {
+        String path = SystemProperties.get(DIRECTORY_PROPERTY);
+        if (StringUtils.isBlank(path)) {
+            throw new IOException(DIRECTORY_PROPERTY + " is not set");
+        }
+        this.directory = Files.createDirectories(Paths.get(path));
+        this.watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        this.watchThread = new Thread(this::watch, "ThreatMetrix result store watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @Override
+    public String get(String key) {
+        Path file = directory.resolve(key);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String expires = reader.readLine();
+            String value = reader.readLine();
+            if (expires == null || value == null) {
+                return null;
+            }
+            if (Long.parseLong(expires) < System.currentTimeMillis()) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+            return value;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Unable to read ThreatMetrix result from " + file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) {
+        try {
+            Path temporary = Files.createTempFile(directory, key, TEMPORARY_SUFFIX);
+            String content = (System.currentTimeMillis() + ttlMillis) + "\n" + value + "\n";
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writer.write(content);
+            }
+            ownWrites.put(key, (long) content.hashCode());
+            Files.move(temporary, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write ThreatMetrix result to " + directory, e);
+        }
+    }
+
+    @Override
+    public void invalidate(String key) {
+        try {
+            ownWrites.put(key, DELETED);
+            Files.deleteIfExists(directory.resolve(key));
+        } catch (IOException e) {
+            logger.warn("Unable to delete ThreatMetrix result from " + directory, e);
+        }
+    }
+
+    @Override
+    public void setInvalidationListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+            watchThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (IOException e) {
+            logger.warn("Unable to close ThreatMetrix result store watcher", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+        try {
+            while (true) {
+                WatchKey watchKey = watcher.poll(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (watchKey != null) {
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            changed(event.context().toString());
+                        }
+                    }
+                    watchKey.reset();
+                }
+                if (System.currentTimeMillis() >= nextSweep) {
+                    sweep();
+                    nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed on shutdown
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void changed(String key) {
+        Consumer<String> current = listener;
+        if (current == null || key.endsWith(TEMPORARY_SUFFIX)) {
+            return;
+        }
+        Long written = ownWrites.getIfPresent(key);
+        if (written != null && written == contentHash(key)) {
+            return;
+        }
+        current.accept(key);
+    }
+
+    /**
+     * The hash of the content of a file as {@link #put(String, String, long)} computes it.
+     *
+     * @param key The key of the file.
+     * @return The hash, or {@link #DELETED} if there is no file.
+     */
+    private long contentHash(String key) {
+        try {
+            return new String(Files.readAllBytes(directory.resolve(key)), StandardCharsets.UTF_8).hashCode();
+        } catch (NoSuchFileException e) {
+            return DELETED;
+        } catch (IOException e) {
+            // matches no marker, so an unreadable file is reported as changed
+            return DELETED + 1;
+        }
+    }
+
+    private void sweep() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                    get(file.getFileName().toString());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to sweep ThreatMetrix result store " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+/**
+ * Decides when a slow session query should be hedged with a second, identical, request.
+ * <p>
+ * The hedge delay is a percentile of the session query latencies observed over the last minute, and the number of
+ * hedges sent in a minute is capped at a percentage of the queries made, so hedging can never more than marginally
+ * increase the load on ThreatMetrix.
+ */
+@Singleton
+class ThreatMetrixHedging {
+
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MIN_SAMPLES = 20;
+
+    private final ThreatMetrixLatencyHistogram latencies = new ThreatMetrixLatencyHistogram(1, TimeUnit.MINUTES);
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Records a session query and its latency, excluding the effect of any hedge.
+     *
+     * @param latencyMillis The latency in milliseconds.
+     */
+    void recordQuery(long latencyMillis) {
+        latencies.record(latencyMillis);
+    }
+
+    /**
+     * Returns how long to wait for the first request before hedging.
+     *
+     * @param percentile The latency percentile to wait for.
+     * @return The delay in milliseconds, or -1 if too few queries have been seen to estimate it.
+     */
+    long hedgeDelay(int percentile) {
+        rotate();
+        queries.incrementAndGet();
+        if (latencies.count() < MIN_SAMPLES) {
+            return -1;
+        }
+        return latencies.percentile(percentile);
+    }
+
+    /**
+     * Claims a hedge from the budget of the current window.
+     *
+     * @param budgetPercent The maximum number of hedges as a percentage of queries.
+     * @return False if the budget is spent and the query should not be hedged.
+     */
+    boolean tryHedge(int budgetPercent) {
+        if (budgetPercent <= 0) {
+            return false;
+        }
+        long allowed = Math.max(1, queries.get() * budgetPercent / 100);
+        long sent;
+        do {
+            sent = hedges.get();
+            if (sent >= allowed) {
+                return false;
+            }
+        } while (!hedges.compareAndSet(sent, sent + 1));
+        return true;
+    }
+
+    private void rotate() {
+        long start = windowStart.get();
+        long now = System.currentTimeMillis();
+        if (now - start >= WINDOW_MILLIS && windowStart.compareAndSet(start, now)) {
+            queries.set(0);
+            hedges.set(0);
+        }
+    }
+}
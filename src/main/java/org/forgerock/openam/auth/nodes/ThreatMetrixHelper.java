@@ -1,8 +1,16 @@
 package org.forgerock.openam.auth.nodes;
 
+import java.io.IOException;
+
+import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 class ThreatMetrixHelper {
     static final String ORG_ID = "org_id";
@@ -12,6 +20,7 @@ class ThreatMetrixHelper {
     static final String EVENT_TYPE = "event_type";
     static final String POLICY = "policy";
     static final String SESSION_QUERY_RESPONSE = "session_query_response";
+    static final String SESSION_QUERY_CHALLENGER_RESPONSES = "session_query_challenger_responses";
     static final String UPDATE_RESPONSE = "update_response";
     static final String REVIEW_STATUS = "review_status";
     static final String POLICY_SCORE = "policy_score";
@@ -19,6 +28,8 @@ class ThreatMetrixHelper {
     static final String NONE_TRIGGERED = "None Triggered";
     static final String TMX_SESSION_QUERY_PARAMETERS = "tmx_session_query_parameters";
     static final String REQUEST_ID = "request_id";
+    static final String REQUEST_RESULT = "request_result";
+    static final String REQUEST_RESULT_SUCCESS = "success";
     static final String FINAL_REVIEW_STATUS = "final_review_status";
     static final String ACTION = "action";
     static final String UPDATE_REVIEW_STATUS = "update_review_status";
@@ -26,13 +37,137 @@ class ThreatMetrixHelper {
     static final String TAG_NAME = "tag_name";
     static final String TAG_CONTEXT = "tag_context";
     static final String LINE_OF_BUSINESS = "line_of_business";
+    static final String EXACT_ID = "exact_id";
+    static final String SMART_ID = "smart_id";
+    static final String TRUE_IP = "true_ip";
+    static final String TMX_DEVICE_ID = "tmx_device_id";
+    static final String TMX_VERDICT_SOURCE = "tmx_verdict_source";
+    static final String VERDICT_SOURCE_REMOTE = "remote";
+    static final String VERDICT_SOURCE_CACHE = "cache";
+    static final String VERDICT_SOURCE_SHARED_CACHE = "shared_cache";
+    static final String VERDICT_SOURCE_DEGRADED = "degraded";
+    static final String VERDICT_SOURCE_CHALLENGER = "challenger";
+    static final String TMX_DEADLINE = "tmx_deadline";
+    static final String NEXT_OUTCOME = "outcome";
+    static final String BUDGET_EXHAUSTED_OUTCOME = "BUDGET_EXHAUSTED";
+    static final String TMX_TRACE_PARENT = "tmx_traceparent";
+    static final String TMX_TRACE_ROOT = "tmx_trace_root";
+    static final String TMX_PROFILER_STARTED = "tmx_profiler_started";
+
+    /**
+     * Decoded and indexed session query responses, keyed by the encoded shared state value they were read from. The
+     * keys are compared by identity and weakly held, so an entry lives only as long as the shared state that holds its
+     * value, and the nodes that run in the same request read the response once. Callers must not modify them.
+     */
+    private static final Cache<String, JsonValue> DECODED = CacheBuilder.newBuilder().weakKeys().build();
 
     static JsonValue getSessionQueryResponse(TreeContext context) throws NodeProcessException {
-        if (!context.sharedState.isDefined(SESSION_QUERY_RESPONSE)) {
+        return getSessionQueryResponse(context.sharedState);
+    }
+
+    static JsonValue getSessionQueryResponse(JsonValue sharedState) throws NodeProcessException {
+        if (!sharedState.isDefined(SESSION_QUERY_RESPONSE)) {
             throw new NodeProcessException("Unable to find ThreatMetrix" + SESSION_QUERY_RESPONSE +
                                                    " in sharedState. Does the ThreatMetrix Session Query node precede" +
                                                    " this node and return a successful response?");
         }
-        return context.sharedState.get(SESSION_QUERY_RESPONSE);
+        JsonValue response = sharedState.get(SESSION_QUERY_RESPONSE);
+        boolean raw = ThreatMetrixRawResponse.isEncoded(response);
+        if (!raw && !ThreatMetrixSharedStateCodec.isEncoded(response)) {
+            return response;
+        }
+        String encoded = response.asString();
+        JsonValue decoded = DECODED.getIfPresent(encoded);
+        if (decoded == null) {
+            try {
+                decoded = raw ? new JsonValue(ThreatMetrixRawResponse.of(encoded))
+                        : ThreatMetrixSharedStateCodec.decode(encoded);
+            } catch (IOException e) {
+                throw new NodeProcessException(e);
+            }
+            DECODED.put(encoded, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Reads one attribute of the session query response in shared state. When the response is held raw, only that
+     * attribute is decoded.
+     *
+     * @param sharedState The tree shared state.
+     * @param attribute The name of the response attribute.
+     * @return The attribute value, which is null if the response does not have the attribute.
+     * @throws NodeProcessException If there is no session query response in shared state.
+     */
+    static JsonValue getSessionQueryAttribute(JsonValue sharedState, String attribute) throws NodeProcessException {
+        return getSessionQueryResponse(sharedState).get(attribute);
+    }
+
+    /**
+     * The HTTP status of a response, if it has arrived.
+     *
+     * @param response The response.
+     * @return The status code, or 0 if the response has not arrived.
+     */
+    static int httpStatus(Promise<Response, NeverThrowsException> response) {
+        if (!response.isDone()) {
+            return 0;
+        }
+        try {
+            return response.getOrThrow().getStatus().getCode();
+        } catch (NeverThrowsException | InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The time left before the login deadline set by the ThreatMetrix Profiler Node.
+     *
+     * @param sharedState The tree shared state.
+     * @return The remaining time in milliseconds, negative once the deadline has passed, or {@link Long#MAX_VALUE} if
+     * no deadline was set.
+     */
+    static long remainingLoginTime(JsonValue sharedState) {
+        if (!sharedState.isDefined(TMX_DEADLINE)) {
+            return Long.MAX_VALUE;
+        }
+        return sharedState.get(TMX_DEADLINE).asLong() - System.currentTimeMillis();
+    }
+
+    /**
+     * Appends a string to a JSON document as a quoted and escaped JSON string.
+     *
+     * @param json The JSON document.
+     * @param value The string.
+     */
+    static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        json.append('"');
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+/**
+ * Counts the ThreatMetrix calls in flight from this server so that nodes can shed load when the provider backs up.
+ */
+@Singleton
+class ThreatMetrixInFlightCalls implements ThreatMetrixInFlightCallsMXBean {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    ThreatMetrixInFlightCalls() {
+        this(true);
+    }
+
+    /**
+     * Creates a counter, published over JMX only if it counts the calls of the server.
+     *
+     * @param monitored Whether to register the counter as the server's in-flight calls MXBean.
+     */
+    ThreatMetrixInFlightCalls(boolean monitored) {
+        if (monitored) {
+            ThreatMetrixMonitoring.register("InFlightCalls", this, ThreatMetrixInFlightCallsMXBean.class);
+        }
+    }
+
+    /**
+     * Registers a new call unless the limit has been reached. Every successful acquire must be followed by a
+     * {@link #release()}.
+     *
+     * @param limit The maximum number of calls in flight, or zero or less for no limit.
+     * @return False if the call should not be made.
+     */
+    boolean tryAcquire(int limit) {
+        int current;
+        do {
+            current = inFlight.get();
+            if (limit > 0 && current >= limit) {
+                shed.incrementAndGet();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Marks a call as complete.
+     */
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.get();
+    }
+}
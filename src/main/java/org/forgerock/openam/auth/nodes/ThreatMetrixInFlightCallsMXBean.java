@@ -0,0 +1,37 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix calls in flight from this server.
+ */
+public interface ThreatMetrixInFlightCallsMXBean {
+
+    /**
+     * The number of ThreatMetrix calls currently awaiting a response.
+     *
+     * @return The in-flight count.
+     */
+    int getInFlight();
+
+    /**
+     * The number of calls that were not made because too many were already in flight.
+     *
+     * @return The shed count.
+     */
+    long getShed();
+}
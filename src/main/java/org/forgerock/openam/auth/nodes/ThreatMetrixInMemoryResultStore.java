@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * {@link ThreatMetrixResultStore} held in the memory of this server. It is the default, and only shares results
+ * between the nodes of one server; it is also the reference for other implementations.
+ */
+public class ThreatMetrixInMemoryResultStore implements ThreatMetrixResultStore {
+
+    static final String MAX_ENTRIES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.resultCache.memory.maxEntries";
+
+    private final Cache<String, Entry> entries;
+
+    /**
+     * Creates the store, bounded by the {@value #MAX_ENTRIES_PROPERTY} advanced server property.
+     */
+    public ThreatMetrixInMemoryResultStore() {
+        this(SystemProperties.getAsInt(MAX_ENTRIES_PROPERTY, 100000));
+    }
+
+    /**
+     * Creates the store with an explicit bound.
+     *
+     * @param maxEntries The maximum number of results kept.
+     */
+    ThreatMetrixInMemoryResultStore(int maxEntries) {
+        this.entries = CacheBuilder.newBuilder()
+                                   .maximumSize(maxEntries)
+                                   .expireAfterWrite(ThreatMetrixResultCache.MAX_TTL_SECONDS, TimeUnit.SECONDS)
+                                   .build();
+    }
+
+    @Override
+    public String get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) {
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    @Override
+    public void invalidate(String key) {
+        entries.invalidate(key);
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long expires;
+
+        private Entry(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REASON_CODE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TRUE_IP;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * The networks known to be bad, made up of the ranges learnt from flagged session query responses and the static
+ * ranges configured on ThreatMetrix IP Blocklist Nodes.
+ * <p>
+ * Learned ranges are kept in two generations, since the trie cannot remove ranges. New ranges go into the current
+ * generation, lookups check both, and once the current generation is a TTL old, or full, it becomes the previous one
+ * and the old previous generation is dropped. A learned range is therefore blocked for between one and two TTLs.
+ */
+@Singleton
+class ThreatMetrixIpBlocklist {
+
+    static final String MAX_NODES_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.ipBlocklist.maxNodes";
+    static final String LEARNED_TTL_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.ipBlocklist.learnedTtlSeconds";
+
+    static final int MIN_LEARNED_IPV4_PREFIX_LENGTH = 16;
+    static final int MIN_LEARNED_IPV6_PREFIX_LENGTH = 32;
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final int MAX_STATIC_LISTS = 16;
+    private static final long WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final int maxNodes;
+    private final long learnedTtlMillis;
+    private final Map<List<String>, ThreatMetrixIpRangeIndex> staticRanges = new ConcurrentHashMap<>();
+    private final AtomicLong lastWarning = new AtomicLong();
+    private final AtomicLong suppressedWarnings = new AtomicLong();
+    private volatile ThreatMetrixIpRangeIndex learned;
+    private volatile ThreatMetrixIpRangeIndex previouslyLearned = new ThreatMetrixIpRangeIndex(1);
+    private volatile long generationStart = System.currentTimeMillis();
+
+    ThreatMetrixIpBlocklist() {
+        this(SystemProperties.getAsInt(MAX_NODES_PROPERTY, 1 << 20),
+             SystemProperties.getAsLong(LEARNED_TTL_PROPERTY, 86400));
+    }
+
+    /**
+     * Creates a blocklist sized by the given limits rather than the advanced server properties.
+     *
+     * @param maxNodes The maximum number of trie nodes of each index.
+     * @param learnedTtlSeconds How long a learned range is kept, at least.
+     */
+    ThreatMetrixIpBlocklist(int maxNodes, long learnedTtlSeconds) {
+        this.maxNodes = maxNodes;
+        this.learnedTtlMillis = TimeUnit.SECONDS.toMillis(learnedTtlSeconds);
+        this.learned = new ThreatMetrixIpRangeIndex(maxNodes);
+    }
+
+    /**
+     * Adds the true IP of a session query response to the learned ranges if any of the given reason codes fired.
+     *
+     * @param response The session query response.
+     * @param reasonCodes The reason codes that flag the true IP as bad.
+     * @param ipv4PrefixLength The prefix length of the range learned for an IPv4 address, from
+     * {@link #MIN_LEARNED_IPV4_PREFIX_LENGTH} to 32.
+     * @param ipv6PrefixLength The prefix length of the range learned for an IPv6 address, from
+     * {@link #MIN_LEARNED_IPV6_PREFIX_LENGTH} to 128.
+     */
+    void learn(JsonValue response, List<String> reasonCodes, int ipv4PrefixLength, int ipv6PrefixLength) {
+        String trueIp = response.get(TRUE_IP).asString();
+        List<String> fired = response.get(REASON_CODE).asList(String.class);
+        if (StringUtils.isEmpty(trueIp) || fired == null) {
+            return;
+        }
+        for (String reasonCode : reasonCodes) {
+            if (fired.contains(reasonCode)) {
+                learn(trueIp, ipv4PrefixLength, ipv6PrefixLength);
+                return;
+            }
+        }
+    }
+
+    private void learn(String trueIp, int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (ipv4PrefixLength < MIN_LEARNED_IPV4_PREFIX_LENGTH || ipv4PrefixLength > 32
+                || ipv6PrefixLength < MIN_LEARNED_IPV6_PREFIX_LENGTH || ipv6PrefixLength > 128) {
+            warn("Not adding " + trueIp + " to the ThreatMetrix IP blocklist, the blocklist prefix lengths /"
+                         + ipv4PrefixLength + " and /" + ipv6PrefixLength + " must be between /"
+                         + MIN_LEARNED_IPV4_PREFIX_LENGTH + " and /32 and between /" + MIN_LEARNED_IPV6_PREFIX_LENGTH
+                         + " and /128");
+            return;
+        }
+        if (!ThreatMetrixIpRangeIndex.isAddress(trueIp)) {
+            warn("Not adding invalid address " + trueIp + " to the ThreatMetrix IP blocklist");
+            return;
+        }
+        rotateIfExpired();
+        ThreatMetrixIpRangeIndex current = learned;
+        if (current.add(trueIp, ipv4PrefixLength, ipv6PrefixLength)) {
+            return;
+        }
+        // the current generation is full, so start the next one early
+        rotate(current);
+        if (!learned.add(trueIp, ipv4PrefixLength, ipv6PrefixLength)) {
+            warn("Unable to add " + trueIp + " to the ThreatMetrix IP blocklist");
+        }
+    }
+
+    /**
+     * Returns whether the address is blocked.
+     *
+     * @param address The client IP address.
+     * @param ranges Static CIDR ranges that are blocked in addition to the learned ones.
+     * @param includeLearned Whether ranges learned from session query responses are blocked.
+     * @return True if the address is in a blocked range.
+     */
+    boolean isBlocked(String address, List<String> ranges, boolean includeLearned) {
+        if (includeLearned) {
+            rotateIfExpired();
+            if (learned.contains(address) || previouslyLearned.contains(address)) {
+                return true;
+            }
+        }
+        return !ranges.isEmpty() && staticIndex(ranges).contains(address);
+    }
+
+    private void rotateIfExpired() {
+        if (System.currentTimeMillis() - generationStart >= learnedTtlMillis) {
+            rotate(learned);
+        }
+    }
+
+    /**
+     * Starts a new generation of learned ranges, unless another thread already has.
+     *
+     * @param current The generation the caller saw as current.
+     */
+    private synchronized void rotate(ThreatMetrixIpRangeIndex current) {
+        if (learned != current) {
+            return;
+        }
+        previouslyLearned = current;
+        learned = new ThreatMetrixIpRangeIndex(maxNodes);
+        generationStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Logs a warning at most once a minute, so that a misconfiguration does not flood the log from the login path.
+     *
+     * @param message The warning.
+     */
+    private void warn(String message) {
+        long now = System.currentTimeMillis();
+        long last = lastWarning.get();
+        if (now - last < WARNING_INTERVAL_MILLIS || !lastWarning.compareAndSet(last, now)) {
+            suppressedWarnings.incrementAndGet();
+            return;
+        }
+        long suppressed = suppressedWarnings.getAndSet(0);
+        logger.warn(suppressed == 0 ? message : message + " (" + suppressed + " similar warnings suppressed)");
+    }
+
+    private ThreatMetrixIpRangeIndex staticIndex(List<String> ranges) {
+        ThreatMetrixIpRangeIndex index = staticRanges.get(ranges);
+        if (index != null) {
+            return index;
+        }
+        if (staticRanges.size() >= MAX_STATIC_LISTS) {
+            // node configuration has changed many times, drop the stale indexes
+            staticRanges.clear();
+        }
+        return staticRanges.computeIfAbsent(ImmutableList.copyOf(ranges), key -> {
+            ThreatMetrixIpRangeIndex built = new ThreatMetrixIpRangeIndex(maxNodes);
+            for (String range : key) {
+                if (!built.add(range)) {
+                    logger.warn("Ignoring invalid ThreatMetrix IP blocklist range: " + range);
+                }
+            }
+            return built;
+        });
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+
+import java.util.List;
+import java.util.ResourceBundle;
+
+import javax.inject.Inject;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.i18n.PreferredLocales;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.assistedinject.Assisted;
+
+@Node.Metadata(outcomeProvider = ThreatMetrixIpBlocklistNode.ThreatMetrixIpBlocklistOutcomeProvider.class,
+        configClass = ThreatMetrixIpBlocklistNode.Config.class, tags = {"risk"})
+public class ThreatMetrixIpBlocklistNode implements Node {
+
+    private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixIpBlocklistNode";
+    private final Config config;
+    private final ThreatMetrixIpBlocklist blocklist;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+
+        /**
+         * IPv4 and IPv6 ranges, in CIDR notation, that are always blocked
+         */
+        @Attribute(order = 100)
+        default List<String> blockedRanges() {
+            return emptyList();
+        }
+
+        /**
+         * Should networks learned from flagged ThreatMetrix session query responses be blocked
+         */
+        @Attribute(order = 200)
+        default boolean blockLearnedRanges() {
+            return true;
+        }
+    }
+
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param config The service config.
+     * @param blocklist The known bad networks.
+     */
+    @Inject
+    public ThreatMetrixIpBlocklistNode(@Assisted Config config, ThreatMetrixIpBlocklist blocklist) {
+        this.config = config;
+        this.blocklist = blocklist;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        if (blocklist.isBlocked(context.request.clientIp, config.blockedRanges(), config.blockLearnedRanges())) {
+            return Action.goTo(ThreatMetrixIpBlocklistOutcome.BLOCKED.name()).build();
+        }
+        return Action.goTo(ThreatMetrixIpBlocklistOutcome.NOT_BLOCKED.name()).build();
+    }
+
+    /**
+     * The possible outcomes for the ThreatMetrix IP Blocklist Node.
+     */
+    private enum ThreatMetrixIpBlocklistOutcome {
+        BLOCKED,
+        NOT_BLOCKED
+    }
+
+    /**
+     * Defines the possible outcomes from this ThreatMetrix IP Blocklist Node.
+     */
+    public static class ThreatMetrixIpBlocklistOutcomeProvider implements OutcomeProvider {
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+                                                                       ThreatMetrixIpBlocklistNode.class
+                                                                               .getClassLoader());
+            return ImmutableList.of(
+                    new Outcome(ThreatMetrixIpBlocklistOutcome.BLOCKED.name(), bundle.getString("blockedOutcome")),
+                    new Outcome(ThreatMetrixIpBlocklistOutcome.NOT_BLOCKED.name(),
+                                bundle.getString("notBlockedOutcome")));
+        }
+    }
+}
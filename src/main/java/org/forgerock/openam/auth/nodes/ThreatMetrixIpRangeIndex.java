@@ -0,0 +1,307 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Arrays;
+
+/**
+ * A binary radix trie of IPv4 and IPv6 CIDR ranges.
+ * <p>
+ * Nodes are stored in flat {@code int} arrays and addresses are parsed straight from their string form, so
+ * {@link #contains(String)} does not allocate. Inserts are serialized; lookups are lock-free and may miss a range that
+ * is being inserted concurrently, which is acceptable for a blocklist that is only ever added to.
+ */
+final class ThreatMetrixIpRangeIndex {
+
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+
+    private static final ThreadLocal<long[]> ADDRESS = ThreadLocal.withInitial(() -> new long[2]);
+    private static final ThreadLocal<int[]> GROUPS = ThreadLocal.withInitial(() -> new int[8]);
+
+    private final Trie ipv4;
+    private final Trie ipv6;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param maxNodes The maximum number of trie nodes per address family, bounding the memory used.
+     */
+    ThreatMetrixIpRangeIndex(int maxNodes) {
+        this.ipv4 = new Trie(maxNodes);
+        this.ipv6 = new Trie(maxNodes);
+    }
+
+    /**
+     * Adds a range in CIDR notation. A bare address is added as a single host.
+     *
+     * @param cidr The range, for example {@code 192.0.2.0/24} or {@code 2001:db8::/32}.
+     * @return False if the range could not be parsed or the index is full.
+     */
+    boolean add(String cidr) {
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr.trim() : cidr.substring(0, slash).trim();
+        int prefixLength = -1;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return add(address, prefixLength, prefixLength);
+    }
+
+    /**
+     * Adds the range of the given prefix length around an address.
+     *
+     * @param address The IPv4 or IPv6 address.
+     * @param ipv4PrefixLength The prefix length to use if the address is IPv4, or -1 for a single host.
+     * @param ipv6PrefixLength The prefix length to use if the address is IPv6, or -1 for a single host.
+     * @return False if the address could not be parsed or the index is full.
+     */
+    boolean add(String address, int ipv4PrefixLength, int ipv6PrefixLength) {
+        long[] parsed = ADDRESS.get();
+        if (address.indexOf(':') < 0) {
+            long ipv4Address = parseIpv4(address, 0, address.length());
+            int prefixLength = ipv4PrefixLength < 0 ? IPV4_BITS : ipv4PrefixLength;
+            return ipv4Address >= 0 && prefixLength <= IPV4_BITS
+                    && ipv4.insert(ipv4Address << IPV4_BITS, 0L, prefixLength);
+        }
+        int prefixLength = ipv6PrefixLength < 0 ? IPV6_BITS : ipv6PrefixLength;
+        return parseIpv6(address, parsed) && prefixLength <= IPV6_BITS
+                && ipv6.insert(parsed[0], parsed[1], prefixLength);
+    }
+
+    /**
+     * Returns whether the address falls within any range in the index.
+     *
+     * @param address The IPv4 or IPv6 address. May be null.
+     * @return True if the address is covered by a range.
+     */
+    boolean contains(String address) {
+        if (address == null || address.isEmpty()) {
+            return false;
+        }
+        if (address.indexOf(':') < 0) {
+            long ipv4Address = parseIpv4(address, 0, address.length());
+            return ipv4Address >= 0 && ipv4.matches(ipv4Address << IPV4_BITS, 0L, IPV4_BITS);
+        }
+        long[] parsed = ADDRESS.get();
+        return parseIpv6(address, parsed) && ipv6.matches(parsed[0], parsed[1], IPV6_BITS);
+    }
+
+    /**
+     * Returns whether a string is an IPv4 or IPv6 address.
+     *
+     * @param address The string. May be null.
+     * @return True if it can be added to or looked up in an index.
+     */
+    static boolean isAddress(String address) {
+        if (address == null || address.isEmpty()) {
+            return false;
+        }
+        return address.indexOf(':') < 0 ? parseIpv4(address, 0, address.length()) >= 0
+                : parseIpv6(address, ADDRESS.get());
+    }
+
+    /**
+     * Parses a dotted quad.
+     *
+     * @return The address as an unsigned 32-bit value, or -1 if it is not a valid IPv4 address.
+     */
+    private static long parseIpv4(String address, int start, int end) {
+        long result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                if (value < 0 || octets == 3) {
+                    return -1;
+                }
+                result = (result << 8) | value;
+                octets++;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+        if (value < 0 || octets != 3) {
+            return -1;
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * Parses an IPv6 address, including the {@code ::} shorthand, an embedded IPv4 suffix and a zone index.
+     *
+     * @param out Receives the high and low 64 bits of the address.
+     * @return False if it is not a valid IPv6 address.
+     */
+    private static boolean parseIpv6(String address, long[] out) {
+        int[] groups = GROUPS.get();
+        int end = address.indexOf('%');
+        if (end < 0) {
+            end = address.length();
+        }
+        int count = 0;
+        int gap = -1;
+        int i = 0;
+        if (address.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < end) {
+            if (count == 8) {
+                return false;
+            }
+            int groupEnd = i;
+            int value = 0;
+            while (groupEnd < end && address.charAt(groupEnd) != ':') {
+                if (address.charAt(groupEnd) == '.') {
+                    long ipv4Address = parseIpv4(address, i, end);
+                    if (ipv4Address < 0 || count > 6) {
+                        return false;
+                    }
+                    groups[count++] = (int) (ipv4Address >>> 16);
+                    groups[count++] = (int) (ipv4Address & 0xffff);
+                    groupEnd = end;
+                    value = -1;
+                    break;
+                }
+                int digit = Character.digit(address.charAt(groupEnd), 16);
+                if (digit < 0 || groupEnd - i == 4) {
+                    return false;
+                }
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+            if (value >= 0) {
+                if (groupEnd == i) {
+                    return false;
+                }
+                groups[count++] = value;
+            }
+            i = groupEnd;
+            if (i < end) {
+                i++;
+                if (i < end && address.charAt(i) == ':') {
+                    if (gap >= 0) {
+                        return false;
+                    }
+                    gap = count;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+        if (gap < 0 ? count != 8 : count == 8) {
+            return false;
+        }
+        long high = 0;
+        long low = 0;
+        int shift = gap < 0 ? 0 : 8 - count;
+        for (int g = 0; g < 8; g++) {
+            int value;
+            if (gap < 0 || g < gap) {
+                value = groups[g];
+            } else if (g < gap + shift) {
+                value = 0;
+            } else {
+                value = groups[g - shift];
+            }
+            if (g < 4) {
+                high = (high << 16) | value;
+            } else {
+                low = (low << 16) | value;
+            }
+        }
+        out[0] = high;
+        out[1] = low;
+        return true;
+    }
+
+    private static int bit(long high, long low, int index) {
+        return (int) (index < 64 ? (high >>> (63 - index)) & 1L : (low >>> (127 - index)) & 1L);
+    }
+
+    /**
+     * Binary trie over address bits. Node {@code n} has children at {@code children[2n]} and {@code children[2n+1]},
+     * with 0 meaning no child since the root can never be a child.
+     */
+    private static final class Trie {
+        private final int maxNodes;
+        private volatile int[] children = new int[2 * 64];
+        private volatile boolean[] terminal = new boolean[64];
+        private int size = 1;
+
+        private Trie(int maxNodes) {
+            this.maxNodes = maxNodes;
+        }
+
+        synchronized boolean insert(long high, long low, int prefixLength) {
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                if (terminal[node]) {
+                    // already covered by a shorter prefix
+                    return true;
+                }
+                int index = 2 * node + bit(high, low, i);
+                int child = children[index];
+                if (child == 0) {
+                    if (size == maxNodes) {
+                        return false;
+                    }
+                    if (size == terminal.length) {
+                        int length = Math.min(terminal.length * 2, maxNodes);
+                        terminal = Arrays.copyOf(terminal, length);
+                        children = Arrays.copyOf(children, 2 * length);
+                    }
+                    child = size++;
+                    children[index] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+            return true;
+        }
+
+        boolean matches(long high, long low, int bits) {
+            int[] children = this.children;
+            boolean[] terminal = this.terminal;
+            int node = 0;
+            for (int i = 0; i < bits; i++) {
+                if (terminal[node]) {
+                    return true;
+                }
+                int index = 2 * node + bit(high, low, i);
+                node = index < children.length ? children[index] : 0;
+                if (node == 0 || node >= terminal.length) {
+                    return false;
+                }
+            }
+            return terminal[node];
+        }
+    }
+}
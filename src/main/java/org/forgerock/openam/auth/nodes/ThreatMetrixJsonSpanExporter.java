@@ -0,0 +1,211 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.appendJsonString;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline span exporter that writes each span as one line of OTLP JSON, either to the {@code amAuth} debug log or
+ * appended to a file, from which it can be replayed into an OpenTelemetry collector.
+ * <p>
+ * Ended spans are handed to a bounded queue and the authentication thread returns straight away; if the queue is full
+ * the span is dropped and counted. A background thread formats and writes the queued spans in batches, flushing the
+ * file once per batch.
+ */
+final class ThreatMetrixJsonSpanExporter implements ThreatMetrixSpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final int STATUS_CODE_ERROR = 2;
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final Writer writer;
+    private final BlockingQueue<ThreatMetrixSpan> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread exporter;
+    private volatile boolean running = true;
+
+    private ThreatMetrixJsonSpanExporter(Writer writer) {
+        this.writer = writer;
+        this.exporter = new Thread(this::drain, "ThreatMetrix span writer");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    /**
+     * Creates an exporter that logs spans at info level.
+     *
+     * @return The exporter.
+     */
+    static ThreatMetrixJsonSpanExporter toLog() {
+        return new ThreatMetrixJsonSpanExporter(null);
+    }
+
+    /**
+     * Creates an exporter that appends spans to a file, falling back to the log if the file cannot be opened.
+     *
+     * @param file The file.
+     * @return The exporter.
+     */
+    static ThreatMetrixJsonSpanExporter toFile(Path file) {
+        try {
+            return new ThreatMetrixJsonSpanExporter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                                                            StandardOpenOption.CREATE,
+                                                                            StandardOpenOption.APPEND));
+        } catch (IOException e) {
+            logger.warn("Unable to open ThreatMetrix span file " + file + ", logging spans instead", e);
+            return toLog();
+        }
+    }
+
+    @Override
+    public void export(ThreatMetrixSpan span) {
+        if (!running || !queue.offer(span)) {
+            if (dropped.getAndIncrement() == 0) {
+                logger.warn("ThreatMetrix span queue is full, dropping spans");
+            }
+        }
+    }
+
+    private void drain() {
+        List<ThreatMetrixSpan> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder lines = new StringBuilder(BATCH_SIZE * 256);
+        while (running || !queue.isEmpty()) {
+            ThreatMetrixSpan first;
+            try {
+                first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            for (ThreatMetrixSpan span : batch) {
+                if (writer == null) {
+                    logger.info(toJson(span));
+                } else {
+                    lines.append(toJson(span)).append('\n');
+                }
+            }
+            if (writer != null) {
+                write(lines);
+                lines.setLength(0);
+            }
+            batch.clear();
+        }
+        close();
+    }
+
+    private void write(StringBuilder lines) {
+        try {
+            writer.append(lines);
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn("Unable to write ThreatMetrix spans", e);
+        }
+    }
+
+    private void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close ThreatMetrix span file", e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // not interrupted, which would close the file channel under a write, the writer sees the flag within a poll
+        running = false;
+        try {
+            exporter.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static String toJson(ThreatMetrixSpan span) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"traceId\":\"").append(span.getTraceId())
+            .append("\",\"spanId\":\"").append(span.getSpanId()).append('"');
+        if (span.getParentSpanId() != null) {
+            json.append(",\"parentSpanId\":\"").append(span.getParentSpanId()).append('"');
+        }
+        json.append(",\"name\":");
+        appendJsonString(json, span.getName());
+        json.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(span.getStartEpochNanos())
+            .append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos())
+            .append("\",\"attributes\":[");
+        boolean first = true;
+        for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"key\":");
+            appendJsonString(json, attribute.getKey());
+            json.append(",\"value\":");
+            appendValue(json, attribute.getValue());
+            json.append('}');
+        }
+        json.append(']');
+        if (span.isError()) {
+            json.append(",\"status\":{\"code\":").append(STATUS_CODE_ERROR).append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value instanceof Boolean) {
+            json.append("{\"boolValue\":").append(value).append('}');
+        } else if (value instanceof Integer || value instanceof Long) {
+            // OTLP JSON encodes 64 bit integers as strings
+            json.append("{\"intValue\":\"").append(value).append("\"}");
+        } else if (value instanceof Number) {
+            json.append("{\"doubleValue\":").append(value).append('}');
+        } else {
+            json.append("{\"stringValue\":");
+            appendJsonString(json, String.valueOf(value));
+            json.append('}');
+        }
+    }
+}
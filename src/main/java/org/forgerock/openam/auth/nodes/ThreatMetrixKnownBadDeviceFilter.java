@@ -0,0 +1,208 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.EXACT_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REVIEW_STATUS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SMART_ID;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Bloom filter of the devices that ThreatMetrix returned with a reject review status.
+ * <p>
+ * The filter is sized from the expected number of devices and the acceptable false positive rate. If a file is
+ * configured, the filter is loaded from it on startup, written back to it periodically by a background thread when it
+ * has changed, so that a crash loses at most one interval of learned devices, and written once more when the plugin
+ * shuts down.
+ */
+@Singleton
+class ThreatMetrixKnownBadDeviceFilter implements ThreatMetrixKnownBadDeviceFilterMXBean {
+
+    static final String EXPECTED_DEVICES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.knownBadDeviceFilter.expectedDevices";
+    static final String FALSE_POSITIVE_RATE_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.knownBadDeviceFilter.falsePositiveRate";
+    static final String FILE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.knownBadDeviceFilter.file";
+    static final String PERSIST_INTERVAL_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.knownBadDeviceFilter.persistIntervalSeconds";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String REJECT = "reject";
+
+    private final BloomFilter<CharSequence> filter;
+    private final Path file;
+    private final ScheduledExecutorService persister;
+    private volatile boolean dirty;
+
+    ThreatMetrixKnownBadDeviceFilter() {
+        this(file(), SystemProperties.getAsLong(EXPECTED_DEVICES_PROPERTY, 1000000), falsePositiveRate(),
+             SystemProperties.getAsLong(PERSIST_INTERVAL_PROPERTY, 300));
+        ThreatMetrixMonitoring.register("KnownBadDeviceFilter", this, ThreatMetrixKnownBadDeviceFilterMXBean.class);
+    }
+
+    /**
+     * Creates an empty filter that is never persisted nor published over JMX.
+     *
+     * @param expectedDevices The number of devices the filter is sized for.
+     * @param falsePositiveRate The false positive rate at that number of devices.
+     */
+    ThreatMetrixKnownBadDeviceFilter(long expectedDevices, double falsePositiveRate) {
+        this(null, expectedDevices, falsePositiveRate, 0);
+    }
+
+    private ThreatMetrixKnownBadDeviceFilter(Path file, long expectedDevices, double falsePositiveRate,
+            long persistIntervalSeconds) {
+        this.file = file;
+        BloomFilter<CharSequence> loaded = file == null ? null : load(file);
+        if (loaded == null) {
+            loaded = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedDevices,
+                                        falsePositiveRate);
+        }
+        this.filter = loaded;
+        if (file == null || persistIntervalSeconds <= 0) {
+            this.persister = null;
+        } else {
+            this.persister = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ThreatMetrix known bad device filter writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            persister.scheduleWithFixedDelay(this::persist, persistIntervalSeconds, persistIntervalSeconds,
+                                             TimeUnit.SECONDS);
+        }
+    }
+
+    private static Path file() {
+        String path = SystemProperties.get(FILE_PROPERTY);
+        return StringUtils.isBlank(path) ? null : Paths.get(path);
+    }
+
+    private static double falsePositiveRate() {
+        try {
+            return Double.parseDouble(SystemProperties.get(FALSE_POSITIVE_RATE_PROPERTY, "0.001"));
+        } catch (NumberFormatException e) {
+            return 0.001;
+        }
+    }
+
+    private static BloomFilter<CharSequence> load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return BloomFilter.readFrom(in, Funnels.stringFunnel(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Unable to read ThreatMetrix known bad device filter from " + file + ", starting empty", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the devices of a session query response to the filter if it was rejected.
+     *
+     * @param response The session query response.
+     */
+    void record(JsonValue response) {
+        if (!REJECT.equals(response.get(REVIEW_STATUS).asString())) {
+            return;
+        }
+        String exactId = response.get(EXACT_ID).asString();
+        if (StringUtils.isNotEmpty(exactId)) {
+            dirty |= filter.put(exactId);
+        }
+        String smartId = response.get(SMART_ID).asString();
+        if (StringUtils.isNotEmpty(smartId)) {
+            dirty |= filter.put(smartId);
+        }
+    }
+
+    /**
+     * Returns whether the device may have been rejected before. False positives are possible, false negatives are
+     * not.
+     *
+     * @param deviceId The {@code exact_id} or {@code smart_id} of the device.
+     * @return True if the device is probably known bad.
+     */
+    boolean mightBeKnownBad(String deviceId) {
+        return StringUtils.isNotEmpty(deviceId) && filter.mightContain(deviceId);
+    }
+
+    /**
+     * Stops the periodic writes and writes the filter to its file one last time.
+     */
+    void shutdown() {
+        if (persister != null) {
+            persister.shutdownNow();
+        }
+        persist();
+    }
+
+    /**
+     * Writes the filter to its file, if one is configured and the filter has changed since it was last written.
+     */
+    synchronized void persist() {
+        if (file == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(),
+                                                  ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                filter.writeTo(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            logger.warn("Unable to write ThreatMetrix known bad device filter to " + file, e);
+        }
+    }
+
+    @Override
+    public long getApproximateElementCount() {
+        return filter.approximateElementCount();
+    }
+
+    @Override
+    public double getExpectedFalsePositiveRate() {
+        return filter.expectedFpp();
+    }
+}
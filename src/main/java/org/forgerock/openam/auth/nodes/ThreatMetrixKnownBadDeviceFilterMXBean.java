@@ -0,0 +1,37 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix known bad device filter.
+ */
+public interface ThreatMetrixKnownBadDeviceFilterMXBean {
+
+    /**
+     * An estimate of the number of distinct devices added to the filter.
+     *
+     * @return The approximate element count.
+     */
+    long getApproximateElementCount();
+
+    /**
+     * The probability that a device that was never added is reported as known bad, given the current fill.
+     *
+     * @return The expected false positive rate.
+     */
+    double getExpectedFalsePositiveRate();
+}
@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEVICE_ID;
+
+import java.util.List;
+import java.util.ResourceBundle;
+
+import javax.inject.Inject;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.InputState;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.i18n.PreferredLocales;
+
+import com.google.common.collect.ImmutableList;
+
+@Node.Metadata(outcomeProvider = ThreatMetrixKnownBadDeviceNode.ThreatMetrixKnownBadDeviceOutcomeProvider.class,
+        configClass = ThreatMetrixKnownBadDeviceNode.Config.class, tags = {"risk"})
+public class ThreatMetrixKnownBadDeviceNode implements Node {
+
+    private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixKnownBadDeviceNode";
+    private final ThreatMetrixKnownBadDeviceFilter filter;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+
+    }
+
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param filter The filter of devices previously rejected by ThreatMetrix.
+     */
+    @Inject
+    public ThreatMetrixKnownBadDeviceNode(ThreatMetrixKnownBadDeviceFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        if (filter.mightBeKnownBad(context.sharedState.get(TMX_DEVICE_ID).asString())) {
+            return Action.goTo(ThreatMetrixKnownBadDeviceOutcome.MATCH.name()).build();
+        }
+        return Action.goTo(ThreatMetrixKnownBadDeviceOutcome.NO_MATCH.name()).build();
+    }
+
+    /**
+     * The possible outcomes for the ThreatMetrix Known Bad Device Node.
+     */
+    private enum ThreatMetrixKnownBadDeviceOutcome {
+        MATCH,
+        NO_MATCH
+    }
+
+    /**
+     * Defines the possible outcomes from this ThreatMetrix Known Bad Device Node.
+     */
+    public static class ThreatMetrixKnownBadDeviceOutcomeProvider implements OutcomeProvider {
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+                                                                       ThreatMetrixKnownBadDeviceNode.class
+                                                                               .getClassLoader());
+            return ImmutableList.of(
+                    new Outcome(ThreatMetrixKnownBadDeviceOutcome.MATCH.name(), bundle.getString("matchOutcome")),
+                    new Outcome(ThreatMetrixKnownBadDeviceOutcome.NO_MATCH.name(), bundle.getString("noMatchOutcome")));
+        }
+    }
+
+    @Override
+    public InputState[] getInputs() {
+        return new InputState[] {new InputState(TMX_DEVICE_ID, true)};
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Windowed histogram of call latencies with fixed memory.
+ * <p>
+ * Latencies are counted in logarithmic buckets four to a power of two, from one millisecond to about a minute, so
+ * percentiles are accurate to within 19%. Samples are counted into the current window, and percentiles are read from
+ * the last complete window, so recent behaviour is reported without the histogram being skewed by old samples.
+ */
+final class ThreatMetrixLatencyHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKETS = 16 * BUCKETS_PER_DOUBLING;
+
+    private final long windowMillis;
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile long[] previous = new long[BUCKETS];
+    private volatile long previousCount;
+
+    /**
+     * Creates a histogram.
+     *
+     * @param window The length of a window.
+     * @param unit The unit of the window length.
+     */
+    ThreatMetrixLatencyHistogram(long window, TimeUnit unit) {
+        this.windowMillis = unit.toMillis(window);
+    }
+
+    /**
+     * Records a latency sample.
+     *
+     * @param latencyMillis The latency in milliseconds.
+     */
+    void record(long latencyMillis) {
+        rotate();
+        current.incrementAndGet(bucket(latencyMillis));
+    }
+
+    /**
+     * The number of samples in the last complete window.
+     *
+     * @return The sample count.
+     */
+    long count() {
+        rotate();
+        return previousCount;
+    }
+
+    /**
+     * Returns a percentile of the last complete window.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound, in milliseconds, of the bucket containing the percentile, or -1 if there were no samples.
+     */
+    long percentile(double percentile) {
+        rotate();
+        long[] counts = previous;
+        long total = previousCount;
+        if (total == 0) {
+            return -1;
+        }
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(target, 1)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private void rotate() {
+        long start = windowStart.get();
+        long now = System.currentTimeMillis();
+        if (now - start < windowMillis || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        AtomicLongArray completed = current;
+        current = new AtomicLongArray(BUCKETS);
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = completed.get(i);
+            total += counts[i];
+        }
+        previous = counts;
+        previousCount = total;
+    }
+
+    private static int bucket(long latencyMillis) {
+        if (latencyMillis <= 1) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log(latencyMillis) / Math.log(2));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.floor(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the ThreatMetrix plugin's runtime metrics as MXBeans on the platform MBean server, where they are picked
+ * up by AM's JMX monitoring.
+ */
+final class ThreatMetrixMonitoring {
+
+    static final String DOMAIN = "org.forgerock.openam.auth.nodes.threatmetrix";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+
+    private ThreatMetrixMonitoring() {
+    }
+
+    /**
+     * Registers an MXBean under {@code org.forgerock.openam.auth.nodes.threatmetrix:type=<type>}, replacing any
+     * previous registration. Failures are logged and otherwise ignored, as monitoring must never break
+     * authentication.
+     *
+     * @param type The type key of the object name.
+     * @param mxBean The MXBean implementation.
+     * @param mxBeanInterface The MXBean interface to expose.
+     * @param <T> The type of the MXBean interface.
+     */
+    static <T> void register(String type, T mxBean, Class<T> mxBeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN, "type", type);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(mxBean, mxBeanInterface, true), name);
+        } catch (JMException e) {
+            logger.warn("Unable to register ThreatMetrix " + type + " MXBean", e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptySet;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+
+/**
+ * Builds ThreatMetrix nodes that run away from real logins, for the startup warm-up and the offline tools.
+ * <p>
+ * ThreatMetrix is replaced by a {@link CannedResponseHandler}, and each node is given its own small in-memory services
+ * that read no advanced server properties, write no files and are not published over JMX. Nothing the nodes do here
+ * reaches the verdicts, reputations, statistics or monitoring of the server or tool they run in.
+ */
+final class ThreatMetrixOfflineNodes {
+
+    private static final String API_KEY = "offline";
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_SECONDS = 60;
+
+    private ThreatMetrixOfflineNodes() {
+    }
+
+    /**
+     * Creates a tracer that samples nothing and so never writes to shared state.
+     *
+     * @return The tracer.
+     */
+    static ThreatMetrixTracer tracer() {
+        return new ThreatMetrixTracer(0, null);
+    }
+
+    /**
+     * Creates a Session Query Node that queries the given handler.
+     *
+     * @param config The node configuration, for example a {@link SessionQueryConfig}.
+     * @param handler Answers the session queries.
+     * @param tracer The tracer, normally {@link #tracer()}.
+     * @return The node.
+     */
+    static ThreatMetrixSessionQueryNode sessionQuery(ThreatMetrixSessionQueryNode.Config config, Handler handler,
+            ThreatMetrixTracer tracer) {
+        return new ThreatMetrixSessionQueryNode(config, new ThreatMetrixEndpointRouter(handler, 0),
+                                                new ThreatMetrixVerdictCache(MAX_ENTRIES, TTL_SECONDS),
+                                                new ThreatMetrixReputationStore(MAX_ENTRIES),
+                                                new ThreatMetrixIpBlocklist(MAX_ENTRIES, TTL_SECONDS),
+                                                new ThreatMetrixKnownBadDeviceFilter(MAX_ENTRIES, 0.01),
+                                                new ThreatMetrixInFlightCalls(false), new ThreatMetrixHedging(),
+                                                tracer, new ThreatMetrixAuditLog(null, 0, 1, 1),
+                                                new ThreatMetrixResponseRecorder(null, 1, 0, emptySet()),
+                                                new ThreatMetrixReasonCodeStats(64, 10),
+                                                new ThreatMetrixPolicyScoreStats(10),
+                                                new ThreatMetrixResultCache(new ThreatMetrixExecutor(false, 1),
+                                                        new ThreatMetrixInMemoryResultStore(MAX_ENTRIES), 0, 0),
+                                                new ThreatMetrixErrorCache(0));
+    }
+
+    /**
+     * Creates an Update Review Node that sends its updates to the given handler.
+     *
+     * @param config The node configuration, for example an {@link UpdateReviewConfig}.
+     * @param handler Answers the updates.
+     * @param tracer The tracer, normally {@link #tracer()}.
+     * @return The node.
+     */
+    static ThreatMetrixUpdateReviewNode updateReview(ThreatMetrixUpdateReviewNode.Config config, Handler handler,
+            ThreatMetrixTracer tracer) {
+        ThreatMetrixErrorCache errorCache = new ThreatMetrixErrorCache(0);
+        return new ThreatMetrixUpdateReviewNode(config, new ThreatMetrixUpdateClient(
+                new ThreatMetrixEndpointRouter(handler, 0), errorCache, 0, 1), tracer,
+                                                new ThreatMetrixAuditLog(null, 0, 1, 1));
+    }
+
+    /**
+     * Creates a Profiler Node.
+     *
+     * @param config The node configuration, for example a {@link ProfilerConfig}.
+     * @param tracer The tracer, normally {@link #tracer()}.
+     * @return The node.
+     */
+    static ThreatMetrixProfilerNode profiler(ThreatMetrixProfilerNode.Config config, ThreatMetrixTracer tracer) {
+        return new ThreatMetrixProfilerNode(config, tracer);
+    }
+
+    /**
+     * Answers every request in place of the ThreatMetrix API with the next of a list of response bodies, round robin,
+     * optionally after a delay.
+     */
+    static final class CannedResponseHandler implements Handler {
+        private final byte[][] bodies;
+        private final AtomicLong next = new AtomicLong();
+        private final long latencyMillis;
+        private final ScheduledExecutorService delayer;
+
+        /**
+         * Creates a handler that answers at once with the same body.
+         *
+         * @param body The response body.
+         */
+        CannedResponseHandler(String body) {
+            this(Collections.singletonList(body.getBytes(StandardCharsets.UTF_8)), 0);
+        }
+
+        /**
+         * Creates a handler that answers with each body in turn.
+         *
+         * @param bodies The response bodies.
+         * @param latencyMillis How long each response is held back, as a slow ThreatMetrix would.
+         */
+        CannedResponseHandler(List<byte[]> bodies, long latencyMillis) {
+            this.bodies = bodies.toArray(new byte[0][]);
+            this.latencyMillis = latencyMillis;
+            this.delayer = latencyMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(
+                    ThreatMetrixExecutor.platformThreadFactory("ThreatMetrix canned response latency "));
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+            Response response = new Response(Status.OK);
+            response.getEntity().setBytes(bodies[(int) (next.getAndIncrement() % bodies.length)]);
+            if (delayer == null) {
+                return newResultPromise(response);
+            }
+            PromiseImpl<Response, NeverThrowsException> delayed = PromiseImpl.create();
+            delayer.schedule(() -> delayed.handleResult(response), latencyMillis, TimeUnit.MILLISECONDS);
+            return delayed;
+        }
+
+        /**
+         * Stops holding responses back. Responses already held back are never sent.
+         */
+        void shutdown() {
+            if (delayer != null) {
+                delayer.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * The default Session Query Node configuration, with the given shared state encoding.
+     */
+    static final class SessionQueryConfig implements ThreatMetrixSessionQueryNode.Config {
+        private final ThreatMetrixSessionQueryNode.SharedStateEncoding encoding;
+
+        SessionQueryConfig(ThreatMetrixSessionQueryNode.SharedStateEncoding encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public char[] apiKey() {
+            return API_KEY.toCharArray();
+        }
+
+        @Override
+        public ThreatMetrixSessionQueryNode.SharedStateEncoding sharedStateEncoding() {
+            return encoding;
+        }
+    }
+
+    /**
+     * The default Update Review Node configuration, except that each update is awaited so that a call to
+     * {@code process} does all of its work before it returns.
+     */
+    static final class UpdateReviewConfig implements ThreatMetrixUpdateReviewNode.Config {
+        @Override
+        public char[] apiKey() {
+            return API_KEY.toCharArray();
+        }
+
+        @Override
+        public ThreatMetrixUpdateReviewNode.CompletionMode completionMode() {
+            return ThreatMetrixUpdateReviewNode.CompletionMode.BOUNDED_AWAIT;
+        }
+    }
+
+    /**
+     * A Profiler Node configuration for the given org, which is also used as the page ID.
+     */
+    static final class ProfilerConfig implements ThreatMetrixProfilerNode.Config {
+        private final String orgId;
+
+        ProfilerConfig(String orgId) {
+            this.orgId = orgId;
+        }
+
+        @Override
+        public String orgId() {
+            return orgId;
+        }
+
+        @Override
+        public String pageId() {
+            return orgId;
+        }
+    }
+}
@@ -2,7 +2,7 @@ package org.forgerock.openam.auth.nodes;
 
 
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY_SCORE;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryResponse;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryAttribute;
 
 import java.util.List;
 import java.util.ResourceBundle;
@@ -28,6 +28,7 @@ public class ThreatMetrixPolicyScoreNode implements Node {
 
     private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixPolicyScoreNode";
     private final Config config;
+    private final ThreatMetrixTracer tracer;
 
     /**
      * Configuration for the node.
@@ -49,17 +50,23 @@ public class ThreatMetrixPolicyScoreNode implements Node {
      * from the plugin.
      *
      * @param config The service config.
+     * @param tracer Creates the span of the decision.
      */
     @Inject
-    public ThreatMetrixPolicyScoreNode(@Assisted Config config) {
+    public ThreatMetrixPolicyScoreNode(@Assisted Config config, ThreatMetrixTracer tracer) {
         this.config = config;
+        this.tracer = tracer;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
+        return tracer.trace("tmx.policy_score", context.sharedState, span -> decide(context, span));
+    }
 
-        JsonValue sessionQueryResponse = getSessionQueryResponse(context);
-        int policyScore = Integer.parseInt(sessionQueryResponse.get(POLICY_SCORE).asString());
+    private Action decide(TreeContext context, ThreatMetrixSpan span) throws NodeProcessException {
+        int policyScore = Integer.parseInt(getSessionQueryAttribute(context.sharedState, POLICY_SCORE).asString());
+        span.setAttribute("tmx.policy_score", (long) policyScore)
+            .setAttribute("tmx.policy_score_threshold", (long) config.policyScoreThreshold());
         if (policyScore >= config.policyScoreThreshold()) {
             return Action.goTo(ThreatMetrixPolicyScoreOutcome.GREATER_THAN_OR_EQUAL.name()).build();
         }
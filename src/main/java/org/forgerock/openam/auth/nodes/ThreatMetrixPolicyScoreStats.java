@@ -0,0 +1,179 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY_SCORE;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Live distribution of the policy scores returned by ThreatMetrix, kept separately for each policy and event type, to
+ * help set the threshold of the ThreatMetrix Policy Score Node.
+ * <p>
+ * Policy scores are integers, so each combination keeps an exact count of every score between
+ * {@value #MINIMUM_SCORE} and {@value #MAXIMUM_SCORE}, with scores outside that range counted at its ends. Memory is
+ * fixed per combination, recording a score is a single atomic increment, and histograms from several servers merge by
+ * addition.
+ */
+@Singleton
+class ThreatMetrixPolicyScoreStats implements ThreatMetrixPolicyScoreStatsMXBean {
+
+    static final String MAX_POLICIES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.policyScoreStats.maxPolicies";
+    static final int MINIMUM_SCORE = -1000;
+    static final int MAXIMUM_SCORE = 1000;
+
+    private static final int BUCKETS = MAXIMUM_SCORE - MINIMUM_SCORE + 1;
+
+    private final int maxPolicies;
+    private final ConcurrentMap<String, AtomicLongArray> histograms = new ConcurrentHashMap<>();
+
+    ThreatMetrixPolicyScoreStats() {
+        this(SystemProperties.getAsInt(MAX_POLICIES_PROPERTY, 100));
+        ThreatMetrixMonitoring.register("PolicyScoreStats", this, ThreatMetrixPolicyScoreStatsMXBean.class);
+    }
+
+    /**
+     * Creates histograms that are not published over JMX.
+     *
+     * @param maxPolicies The number of policies tracked.
+     */
+    ThreatMetrixPolicyScoreStats(int maxPolicies) {
+        this.maxPolicies = maxPolicies;
+    }
+
+    /**
+     * Counts the policy score of a session query response.
+     *
+     * @param policy The policy the query was made with.
+     * @param eventType The event type the query was made with.
+     * @param response The session query response.
+     */
+    void record(String policy, String eventType, JsonValue response) {
+        String policyScore = response.get(POLICY_SCORE).asString();
+        if (StringUtils.isEmpty(policyScore)) {
+            return;
+        }
+        int score;
+        try {
+            score = Integer.parseInt(policyScore);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String key = key(policy, eventType);
+        AtomicLongArray histogram = histograms.get(key);
+        if (histogram == null) {
+            if (histograms.size() >= maxPolicies) {
+                return;
+            }
+            histogram = histograms.computeIfAbsent(key, k -> new AtomicLongArray(BUCKETS));
+        }
+        histogram.incrementAndGet(Math.max(MINIMUM_SCORE, Math.min(MAXIMUM_SCORE, score)) - MINIMUM_SCORE);
+    }
+
+    private static String key(String policy, String eventType) {
+        return policy + '|' + eventType;
+    }
+
+    @Override
+    public int getMinimumScore() {
+        return MINIMUM_SCORE;
+    }
+
+    @Override
+    public int getMaximumScore() {
+        return MAXIMUM_SCORE;
+    }
+
+    @Override
+    public Map<String, Long> getResponseCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        histograms.forEach((key, histogram) -> counts.put(key, total(snapshot(histogram))));
+        return counts;
+    }
+
+    @Override
+    public long[] histogram(String policy, String eventType) {
+        AtomicLongArray histogram = histograms.get(key(policy, eventType));
+        return histogram == null ? new long[0] : snapshot(histogram);
+    }
+
+    @Override
+    public double quantile(String policy, String eventType, double quantile) {
+        long[] counts = histogram(policy, eventType);
+        long total = total(counts);
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.max(0, Math.min(1, quantile))));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return i + MINIMUM_SCORE;
+            }
+        }
+        return MAXIMUM_SCORE;
+    }
+
+    @Override
+    public double whatIf(String policy, String eventType, int threshold) {
+        long[] counts = histogram(policy, eventType);
+        long total = total(counts);
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long atOrAbove = 0;
+        for (int i = Math.max(0, threshold - MINIMUM_SCORE); i < counts.length; i++) {
+            atOrAbove += counts[i];
+        }
+        return (double) atOrAbove / total;
+    }
+
+    @Override
+    public void reset() {
+        histograms.clear();
+    }
+
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    private static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+}
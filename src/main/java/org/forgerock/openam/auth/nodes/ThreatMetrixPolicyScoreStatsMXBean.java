@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Map;
+
+/**
+ * Monitoring view of the distribution of ThreatMetrix policy scores, for each policy and event type.
+ */
+public interface ThreatMetrixPolicyScoreStatsMXBean {
+
+    /**
+     * The lowest score counted in its own bucket. Lower scores are counted in the first bucket.
+     *
+     * @return The lowest score.
+     */
+    int getMinimumScore();
+
+    /**
+     * The highest score counted in its own bucket. Higher scores are counted in the last bucket.
+     *
+     * @return The highest score.
+     */
+    int getMaximumScore();
+
+    /**
+     * The number of scored session query responses seen for each policy and event type.
+     *
+     * @return The response count by {@code policy|event_type}.
+     */
+    Map<String, Long> getResponseCounts();
+
+    /**
+     * The count of each score, from the minimum to the maximum score. The histograms of several servers can be merged
+     * by adding them bucket by bucket.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @return The count of each score, or an empty array if the combination has not been seen.
+     */
+    long[] histogram(String policy, String eventType);
+
+    /**
+     * The score below which the given fraction of responses fall.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @param quantile The quantile, between 0 and 1.
+     * @return The score, or NaN if the combination has not been seen.
+     */
+    double quantile(String policy, String eventType, double quantile);
+
+    /**
+     * The fraction of responses that a ThreatMetrix Policy Score Node with the given threshold would send to the
+     * {@code Greater Than or Equal} outcome. The rest would go to {@code Less Than}.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @param threshold The candidate policy score threshold.
+     * @return The fraction, between 0 and 1, or NaN if the combination has not been seen.
+     */
+    double whatIf(String policy, String eventType, int threshold);
+
+    /**
+     * Clears all counts.
+     */
+    void reset();
+}
@@ -3,9 +3,14 @@ package org.forgerock.openam.auth.nodes;
 import static org.forgerock.openam.auth.node.api.Action.send;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEADLINE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_PROFILER_STARTED;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_PARENT;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_ROOT;
 
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.security.auth.callback.TextOutputCallback;
@@ -26,6 +31,7 @@ import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
         configClass = ThreatMetrixProfilerNode.Config.class, tags = {"risk"})
 public class ThreatMetrixProfilerNode extends SingleOutcomeNode {
     private final Config config;
+    private final ThreatMetrixTracer tracer;
 
     /**
      * Configuration for the node.
@@ -60,16 +66,27 @@ public class ThreatMetrixProfilerNode extends SingleOutcomeNode {
         default boolean useClientGeneratedSessionId() {
             return false;
         }
+
+        /**
+         * The time, in seconds, that the ThreatMetrix nodes of the login may take in total, counted from when the
+         * profiled page is submitted. Zero for no limit
+         */
+        @Attribute(order = 500)
+        default int loginTimeBudget() {
+            return 0;
+        }
     }
 
     /**
      * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
      * from the plugin.
      * @param config The service config.
+     * @param tracer Creates the span of the time the user spends on the profiled page.
      */
     @Inject
-    public ThreatMetrixProfilerNode(@Assisted Config config) {
+    public ThreatMetrixProfilerNode(@Assisted Config config, ThreatMetrixTracer tracer) {
         this.config = config;
+        this.tracer = tracer;
     }
 
     @Override
@@ -82,12 +99,31 @@ public class ThreatMetrixProfilerNode extends SingleOutcomeNode {
                 sessionId = context.getCallback(HiddenValueCallback.class).get().getValue();
                 sharedState.put(SESSION_ID, sessionId);
             }
+            if (sharedState.isDefined(TMX_PROFILER_STARTED)) {
+                ThreatMetrixSpan span = tracer.startSpan("tmx.profiler", sharedState,
+                                                         sharedState.get(TMX_PROFILER_STARTED).asLong());
+                try {
+                    span.setAttribute("tmx.org_id", config.orgId())
+                        .setAttribute("tmx.page_id", config.pageId());
+                } finally {
+                    span.end();
+                    sharedState.remove(TMX_PROFILER_STARTED);
+                }
+            }
+            // counted from when the profiled page is submitted, so the time the user spends on it is not included
+            if (config.loginTimeBudget() > 0 && !sharedState.isDefined(TMX_DEADLINE)) {
+                sharedState.put(TMX_DEADLINE,
+                                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.loginTimeBudget()));
+            }
             return goToNext().replaceSharedState(sharedState.put(ORG_ID, config.orgId())).build();
         }
 
 
         sessionId = UUID.randomUUID().toString();
         sharedState.put(SESSION_ID, sessionId);
+        if (tracer.sample(sharedState)) {
+            sharedState.put(TMX_PROFILER_STARTED, System.currentTimeMillis());
+        }
 
         String scriptSrc = String.format("%1$s.js?org_id=%2$s&session_id=%3$s&pageid=%4$s", config.uri(), config.orgId(),
                                          sessionId, config.pageId());
@@ -111,7 +147,8 @@ public class ThreatMetrixProfilerNode extends SingleOutcomeNode {
 
     @Override
     public OutputState[] getOutputs() {
-            return new OutputState[] {new OutputState(SESSION_ID)};
+            return new OutputState[] {new OutputState(SESSION_ID), new OutputState(TMX_DEADLINE),
+                    new OutputState(TMX_TRACE_PARENT), new OutputState(TMX_TRACE_ROOT)};
     }
 }
 
@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The custom session query parameters declared in a node's configuration, with each name form-encoded once.
+ * <p>
+ * Values are looked up by name in the parameter map held in shared state and appended, form-encoded, straight to the
+ * request body, so no copy of the map is made per request. Keys that are not declared are never sent. Values that
+ * are not strings, numbers or booleans, or that are longer than the maximum length, are skipped.
+ */
+final class ThreatMetrixQueryParameters {
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final Cache<List<String>, ThreatMetrixQueryParameters> INSTANCES =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private final String[] names;
+    private final String[] prefixes;
+
+    private ThreatMetrixQueryParameters(List<String> names) {
+        this.names = names.toArray(new String[0]);
+        this.prefixes = new String[this.names.length];
+        for (int i = 0; i < this.names.length; i++) {
+            StringBuilder prefix = new StringBuilder(this.names[i].length() + 2).append('&');
+            appendEncoded(prefix, this.names[i]);
+            prefixes[i] = prefix.append('=').toString();
+        }
+    }
+
+    /**
+     * Returns the parameters for the declared names, encoding them only the first time the names are seen.
+     *
+     * @param names The declared parameter names.
+     * @return The parameters.
+     */
+    static ThreatMetrixQueryParameters of(List<String> names) {
+        ThreatMetrixQueryParameters parameters = INSTANCES.getIfPresent(names);
+        if (parameters == null) {
+            List<String> key = ImmutableList.copyOf(names);
+            parameters = new ThreatMetrixQueryParameters(key);
+            INSTANCES.put(key, parameters);
+        }
+        return parameters;
+    }
+
+    /**
+     * Appends the declared parameters that have a value to a form-encoded request body.
+     *
+     * @param body The request body, which already holds at least one parameter.
+     * @param values The parameter map from shared state, or null if there is none.
+     * @param maxLength The longest value, in characters, that is sent.
+     */
+    void appendTo(StringBuilder body, Object values, int maxLength) {
+        if (!(values instanceof Map)) {
+            return;
+        }
+        Map<?, ?> map = (Map<?, ?>) values;
+        for (int i = 0; i < names.length; i++) {
+            Object value = map.get(names[i]);
+            if (value == null) {
+                continue;
+            }
+            if (!(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                logger.debug("Not sending TMX parameter " + names[i]
+                                     + ", its value is not a string, number or boolean");
+                continue;
+            }
+            String string = value.toString();
+            if (string.length() > maxLength) {
+                logger.debug("Not sending TMX parameter " + names[i] + ", its value is longer than " + maxLength);
+                continue;
+            }
+            appendEncoded(body.append(prefixes[i]), string);
+        }
+    }
+
+    /**
+     * Appends a form-encoded string, copying it as is when it only holds characters that need no encoding.
+     *
+     * @param builder The builder to append to.
+     * @param value The string to encode.
+     */
+    static void appendEncoded(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '.'
+                    || c == '_' || c == '*')) {
+                try {
+                    builder.append(value, 0, i).append(URLEncoder.encode(value.substring(i),
+                                                                         StandardCharsets.UTF_8.name()));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                return;
+            }
+        }
+        builder.append(value);
+    }
+}
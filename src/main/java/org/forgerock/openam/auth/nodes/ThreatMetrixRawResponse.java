@@ -0,0 +1,427 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.forgerock.json.JsonValue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Read-only view of a session query response held as its raw JSON text.
+ * <p>
+ * A single scanning pass records where each top-level attribute's name and value start and end, in a hash table of
+ * offsets. Values are decoded only when asked for: a string value without escapes is a single substring of the text,
+ * and other values are parsed from their own span, so the attributes that are never read cost nothing beyond the
+ * scan. Wrapped in a {@link JsonValue}, the view can be read by any code that reads a parsed response. The text is
+ * stored in shared state with a prefix. The view is immutable once indexed, so it can be shared between threads.
+ * {@link ThreatMetrixHelper#getSessionQueryResponse(JsonValue)} keeps it for as long as the shared state value it was
+ * indexed from, so that the nodes that run in the same request share one index.
+ */
+final class ThreatMetrixRawResponse extends AbstractMap<String, Object> {
+
+    private static final String PREFIX = "tmxraw:";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String text;
+    private int size;
+    private int distinct;
+    /** Per attribute: name start, name end, value start, value end, all exclusive of quotes for names. */
+    private int[] spans = new int[64 * 4];
+    private int[] hashes = new int[64];
+    /** Names that contain escapes, decoded, or null for plain names. Allocated only if needed. */
+    private String[] escapedNames;
+    private int[] table;
+
+    private ThreatMetrixRawResponse(String text) throws IOException {
+        this.text = text;
+        index();
+    }
+
+    /**
+     * Indexes a response received from ThreatMetrix.
+     *
+     * @param json The response body.
+     * @return The view of the response.
+     * @throws IOException If the body is not a JSON object.
+     */
+    static ThreatMetrixRawResponse parse(String json) throws IOException {
+        return of(PREFIX + json);
+    }
+
+    /**
+     * Indexes an encoded shared state value.
+     *
+     * @param encoded A value produced by {@link #encode(JsonValue)}.
+     * @return The view of the response.
+     * @throws IOException If the value is not an encoded JSON object.
+     */
+    static ThreatMetrixRawResponse of(String encoded) throws IOException {
+        return new ThreatMetrixRawResponse(encoded);
+    }
+
+    /**
+     * Encodes a response for shared state. A raw response is stored as it was received, any other is serialized.
+     *
+     * @param response The response.
+     * @return The encoded response.
+     */
+    static String encode(JsonValue response) {
+        if (response.getObject() instanceof ThreatMetrixRawResponse) {
+            return ((ThreatMetrixRawResponse) response.getObject()).text;
+        }
+        try {
+            return PREFIX + MAPPER.writeValueAsString(response.getObject());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode ThreatMetrix response", e);
+        }
+    }
+
+    /**
+     * Whether a shared state value was produced by {@link #encode(JsonValue)}.
+     *
+     * @param value The shared state value.
+     * @return True if the value is a raw response.
+     */
+    static boolean isEncoded(JsonValue value) {
+        return value.isString() && value.asString().startsWith(PREFIX);
+    }
+
+    private void index() throws IOException {
+        int position = skipWhitespace(PREFIX.length());
+        expect(position, '{');
+        position = skipWhitespace(position + 1);
+        if (position < text.length() && text.charAt(position) == '}') {
+            table = new int[1];
+            return;
+        }
+        while (true) {
+            expect(position, '"');
+            int nameStart = position + 1;
+            int nameEnd = skipString(position);
+            position = skipWhitespace(nameEnd + 1);
+            expect(position, ':');
+            int valueStart = skipWhitespace(position + 1);
+            int valueEnd = skipValue(valueStart);
+            add(nameStart, nameEnd, valueStart, valueEnd);
+            position = skipWhitespace(valueEnd);
+            if (position < text.length() && text.charAt(position) == ',') {
+                position = skipWhitespace(position + 1);
+                continue;
+            }
+            expect(position, '}');
+            break;
+        }
+        buildTable();
+    }
+
+    private void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (size == hashes.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            if (escapedNames != null) {
+                escapedNames = Arrays.copyOf(escapedNames, hashes.length);
+            }
+        }
+        int hash;
+        if (hasEscape(nameStart, nameEnd)) {
+            if (escapedNames == null) {
+                escapedNames = new String[hashes.length];
+            }
+            escapedNames[size] = unescape(nameStart, nameEnd);
+            hash = escapedNames[size].hashCode();
+        } else {
+            // the same function as String.hashCode, without creating the name
+            hash = 0;
+            for (int i = nameStart; i < nameEnd; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+        }
+        hashes[size] = hash;
+        spans[size * 4] = nameStart;
+        spans[size * 4 + 1] = nameEnd;
+        spans[size * 4 + 2] = valueStart;
+        spans[size * 4 + 3] = valueEnd;
+        size++;
+    }
+
+    private void buildTable() {
+        table = new int[Integer.highestOneBit(Math.max(1, size) * 2 - 1) * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        // later duplicates win, as they do when the JSON is parsed
+        for (int entry = 0; entry < size; entry++) {
+            int slot = mix(hashes[entry]) & mask;
+            while (table[slot] >= 0 && !sameName(table[slot], entry)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] < 0) {
+                distinct++;
+            }
+            table[slot] = entry;
+        }
+    }
+
+    private boolean sameName(int a, int b) {
+        return hashes[a] == hashes[b] && name(a).equals(name(b));
+    }
+
+    private int find(Object key) {
+        if (!(key instanceof String) || size == 0) {
+            return -1;
+        }
+        String name = (String) key;
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; table[slot] >= 0; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (hashes[entry] == hash && nameEquals(entry, name)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int entry, String name) {
+        if (escapedNames != null && escapedNames[entry] != null) {
+            return escapedNames[entry].equals(name);
+        }
+        int start = spans[entry * 4];
+        int length = spans[entry * 4 + 1] - start;
+        return length == name.length() && text.regionMatches(start, name, 0, length);
+    }
+
+    private String name(int entry) {
+        if (escapedNames != null && escapedNames[entry] != null) {
+            return escapedNames[entry];
+        }
+        return text.substring(spans[entry * 4], spans[entry * 4 + 1]);
+    }
+
+    private Object value(int entry) {
+        int start = spans[entry * 4 + 2];
+        int end = spans[entry * 4 + 3];
+        char first = text.charAt(start);
+        if (first == '"') {
+            return hasEscape(start + 1, end - 1) ? unescape(start + 1, end - 1) : text.substring(start + 1, end - 1);
+        }
+        if (text.startsWith("null", start)) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(text.substring(start, end), Object.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid ThreatMetrix response attribute " + name(entry), e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int entry = find(key);
+        return entry < 0 ? null : value(entry);
+    }
+
+    @Override
+    public int size() {
+        return distinct;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        // skip attributes repeated later in the text, which the table resolves to the last occurrence
+                        while (next < size && find(name(next)) != next) {
+                            next++;
+                        }
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int entry = next++;
+                        return new SimpleImmutableEntry<>(name(entry), value(entry));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return distinct;
+            }
+        };
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private int skipWhitespace(int position) {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private void expect(int position, char expected) throws IOException {
+        if (position >= text.length() || text.charAt(position) != expected) {
+            throw new IOException("Invalid ThreatMetrix response: expected '" + expected + "' at " + position);
+        }
+    }
+
+    /**
+     * Skips a string, checking its unicode escapes so that it can later be unescaped without error.
+     *
+     * @param position The position of the opening quote.
+     * @return The position of the closing quote.
+     */
+    private int skipString(int position) throws IOException {
+        for (int i = position + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length() && text.charAt(i + 1) == 'u') {
+                if (!isHex(i + 2, i + 6)) {
+                    throw new IOException("Invalid ThreatMetrix response: malformed unicode escape at " + i);
+                }
+                i += 5;
+            } else if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        throw new IOException("Invalid ThreatMetrix response: unterminated string at " + position);
+    }
+
+    /**
+     * Skips a value.
+     *
+     * @param position The first character of the value.
+     * @return The position just after the value.
+     */
+    private int skipValue(int position) throws IOException {
+        if (position >= text.length()) {
+            throw new IOException("Invalid ThreatMetrix response: truncated");
+        }
+        char first = text.charAt(position);
+        if (first == '"') {
+            return skipString(position) + 1;
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            for (int i = position; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"') {
+                    i = skipString(i);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            throw new IOException("Invalid ThreatMetrix response: unterminated value at " + position);
+        }
+        int i = position;
+        while (i < text.length() && ",}] \t\r\n".indexOf(text.charAt(i)) < 0) {
+            i++;
+        }
+        if (i == position) {
+            throw new IOException("Invalid ThreatMetrix response: missing value at " + position);
+        }
+        return i;
+    }
+
+    private boolean isHex(int start, int end) {
+        if (end > text.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasEscape(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                value.append(c);
+                continue;
+            }
+            char escaped = text.charAt(++i);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (i + 4 < end) {
+                    value.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                break;
+            default:
+                value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+}
@@ -5,7 +5,7 @@ import static java.util.Collections.emptyList;
 import static org.forgerock.openam.auth.node.api.Action.goTo;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.NONE_TRIGGERED;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REASON_CODE;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryResponse;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryAttribute;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -31,6 +31,7 @@ public class ThreatMetrixReasonCodeNode implements Node {
 
     private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixReasonCodeNode";
     private final Config config;
+    private final ThreatMetrixTracer tracer;
 
     /**
      * Configuration for the node.
@@ -52,17 +53,21 @@ public class ThreatMetrixReasonCodeNode implements Node {
      * from the plugin.
      *
      * @param config The service config.
+     * @param tracer Creates the span of the decision.
      */
     @Inject
-    public ThreatMetrixReasonCodeNode(@Assisted Config config) {
+    public ThreatMetrixReasonCodeNode(@Assisted Config config, ThreatMetrixTracer tracer) {
         this.config = config;
+        this.tracer = tracer;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
+        return tracer.trace("tmx.reason_code", context.sharedState, span -> decide(context));
+    }
 
-        JsonValue sessionQueryResponse = getSessionQueryResponse(context);
-        List<String> reasonCodes = sessionQueryResponse.get(REASON_CODE).asList(String.class);
+    private Action decide(TreeContext context) throws NodeProcessException {
+        List<String> reasonCodes = getSessionQueryAttribute(context.sharedState, REASON_CODE).asList(String.class);
         if (null == reasonCodes) {
             return goTo(NONE_TRIGGERED).build();
         }
@@ -0,0 +1,373 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REASON_CODE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Streaming counts of the reason codes returned by ThreatMetrix, kept separately for each policy and event type, to
+ * help choose the outcomes of the ThreatMetrix Reason Code Node.
+ * <p>
+ * For each combination, the most frequent reason codes and pairs of reason codes are tracked with the Space-Saving
+ * algorithm in a fixed number of counters, and every reason code is counted in a Count-Min sketch so that the
+ * frequency of any code can be estimated. Memory is fixed per combination and the number of combinations is capped.
+ * <p>
+ * A login only copies the reason codes into a bounded buffer, striped by thread so that logins rarely contend, and
+ * drops them if the buffer is full. A background thread folds the buffer into the counters every second, and the
+ * monitoring methods fold it before they read, so the scans of the counters never run on a login thread.
+ */
+@Singleton
+class ThreatMetrixReasonCodeStats implements ThreatMetrixReasonCodeStatsMXBean {
+
+    static final String CAPACITY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.reasonCodeStats.capacity";
+    static final String MAX_POLICIES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.reasonCodeStats.maxPolicies";
+
+    private static final int MAX_CODES_FOR_PAIRS = 8;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1024;
+    private static final int MAX_STRIPES = 64;
+    private static final int STRIPE_CAPACITY = 1024;
+    private static final long FOLD_INTERVAL_MILLIS = 1000;
+
+    private final int capacity;
+    private final int maxPolicies;
+    private final ConcurrentMap<String, Summary> summaries = new ConcurrentHashMap<>();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ArrayBlockingQueue<Sample>[] stripes;
+    private final ScheduledExecutorService folder;
+
+    ThreatMetrixReasonCodeStats() {
+        this(SystemProperties.getAsInt(CAPACITY_PROPERTY, 64), SystemProperties.getAsInt(MAX_POLICIES_PROPERTY, 100),
+             FOLD_INTERVAL_MILLIS);
+        ThreatMetrixMonitoring.register("ReasonCodeStats", this, ThreatMetrixReasonCodeStatsMXBean.class);
+    }
+
+    /**
+     * Creates statistics with the given bounds that are not published over JMX and start no thread. Responses are
+     * counted only when the statistics are read, and those beyond the buffer in the meantime are dropped.
+     *
+     * @param capacity The number of reason codes and pairs tracked exactly per policy.
+     * @param maxPolicies The number of policies tracked.
+     */
+    ThreatMetrixReasonCodeStats(int capacity, int maxPolicies) {
+        this(capacity, maxPolicies, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ThreatMetrixReasonCodeStats(int capacity, int maxPolicies, long foldIntervalMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.maxPolicies = maxPolicies;
+        int stripeCount = Math.min(MAX_STRIPES,
+                                   Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+        this.stripes = new ArrayBlockingQueue[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ArrayBlockingQueue<>(STRIPE_CAPACITY);
+        }
+        if (foldIntervalMillis <= 0) {
+            this.folder = null;
+        } else {
+            this.folder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ThreatMetrix reason code stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            folder.scheduleWithFixedDelay(this::fold, foldIntervalMillis, foldIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Counts the reason codes of a session query response.
+     *
+     * @param policy The policy the query was made with.
+     * @param eventType The event type the query was made with.
+     * @param response The session query response.
+     */
+    void record(String policy, String eventType, JsonValue response) {
+        JsonValue reasonCodes = response.get(REASON_CODE);
+        if (!reasonCodes.isList()) {
+            return;
+        }
+        List<Object> list = reasonCodes.asList();
+        String[] codes = new String[list.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = String.valueOf(list.get(i));
+        }
+        int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        if (!stripes[stripe].offer(new Sample(key(policy, eventType), codes))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts the buffered responses. Only one thread folds at a time.
+     */
+    private synchronized void fold() {
+        for (ArrayBlockingQueue<Sample> stripe : stripes) {
+            Sample sample;
+            while ((sample = stripe.poll()) != null) {
+                count(sample);
+            }
+        }
+    }
+
+    private void count(Sample sample) {
+        Summary summary = summaries.get(sample.key);
+        if (summary == null) {
+            if (summaries.size() >= maxPolicies) {
+                untracked.incrementAndGet();
+                return;
+            }
+            summary = summaries.computeIfAbsent(sample.key, k -> new Summary(capacity));
+        }
+        String[] codes = sample.codes;
+        int pairable = Math.min(codes.length, MAX_CODES_FOR_PAIRS);
+        synchronized (summary) {
+            summary.responses++;
+            for (String code : codes) {
+                summary.codes.offer(code, null);
+                summary.sketch.add(code);
+            }
+            for (int i = 0; i < pairable; i++) {
+                for (int j = i + 1; j < pairable; j++) {
+                    boolean ordered = codes[i].compareTo(codes[j]) <= 0;
+                    summary.pairs.offer(ordered ? codes[i] : codes[j], ordered ? codes[j] : codes[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops folding in the background.
+     */
+    void shutdown() {
+        if (folder != null) {
+            folder.shutdownNow();
+        }
+    }
+
+    private static String key(String policy, String eventType) {
+        return policy + '|' + eventType;
+    }
+
+    @Override
+    public Map<String, Long> getResponseCounts() {
+        fold();
+        Map<String, Long> counts = new TreeMap<>();
+        summaries.forEach((key, summary) -> {
+            synchronized (summary) {
+                counts.put(key, summary.responses);
+            }
+        });
+        return counts;
+    }
+
+    @Override
+    public long getUntracked() {
+        fold();
+        return untracked.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public List<String> topReasonCodes(String policy, String eventType, int count) {
+        return top(policy, eventType, count, false);
+    }
+
+    @Override
+    public List<String> topReasonCodePairs(String policy, String eventType, int count) {
+        return top(policy, eventType, count, true);
+    }
+
+    private List<String> top(String policy, String eventType, int count, boolean pairs) {
+        fold();
+        Summary summary = summaries.get(key(policy, eventType));
+        if (summary == null) {
+            return Collections.emptyList();
+        }
+        synchronized (summary) {
+            return (pairs ? summary.pairs : summary.codes).describe(count, summary.responses);
+        }
+    }
+
+    @Override
+    public long estimateReasonCodeCount(String policy, String eventType, String reasonCode) {
+        fold();
+        Summary summary = summaries.get(key(policy, eventType));
+        if (summary == null) {
+            return 0;
+        }
+        synchronized (summary) {
+            return summary.sketch.estimate(reasonCode);
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (ArrayBlockingQueue<Sample> stripe : stripes) {
+            stripe.clear();
+        }
+        summaries.clear();
+        untracked.set(0);
+        dropped.set(0);
+    }
+
+    /**
+     * The reason codes of one response, waiting to be counted.
+     */
+    private static final class Sample {
+        private final String key;
+        private final String[] codes;
+
+        private Sample(String key, String[] codes) {
+            this.key = key;
+            this.codes = codes;
+        }
+    }
+
+    private static final class Summary {
+        private final SpaceSaving codes;
+        private final SpaceSaving pairs;
+        private final CountMinSketch sketch = new CountMinSketch();
+        private long responses;
+
+        private Summary(int capacity) {
+            this.codes = new SpaceSaving(capacity);
+            this.pairs = new SpaceSaving(capacity);
+        }
+    }
+
+    /**
+     * Space-Saving top-k counters. An item that is not counted replaces the least counted item and inherits its
+     * count, which is recorded as the maximum overestimate of the new item.
+     */
+    private static final class SpaceSaving {
+        private final String[] first;
+        private final String[] second;
+        private final long[] counts;
+        private final long[] errors;
+        private int size;
+
+        private SpaceSaving(int capacity) {
+            this.first = new String[capacity];
+            this.second = new String[capacity];
+            this.counts = new long[capacity];
+            this.errors = new long[capacity];
+        }
+
+        private void offer(String a, String b) {
+            int minimum = 0;
+            for (int i = 0; i < size; i++) {
+                if (first[i].equals(a) && (b == null || b.equals(second[i]))) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[minimum]) {
+                    minimum = i;
+                }
+            }
+            int slot;
+            if (size < counts.length) {
+                slot = size++;
+                errors[slot] = 0;
+            } else {
+                slot = minimum;
+                errors[slot] = counts[slot];
+            }
+            counts[slot] = errors[slot] + 1;
+            first[slot] = a;
+            second[slot] = b;
+        }
+
+        private List<String> describe(int count, long responses) {
+            List<Integer> order = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                order.add(i);
+            }
+            order.sort((x, y) -> Long.compare(counts[y], counts[x]));
+            List<String> result = new ArrayList<>(Math.min(count, size));
+            for (int i = 0; i < Math.min(count, size); i++) {
+                int slot = order.get(i);
+                StringBuilder line = new StringBuilder(first[slot]);
+                if (second[slot] != null) {
+                    line.append('+').append(second[slot]);
+                }
+                line.append(' ').append(counts[slot])
+                    .append(String.format(" %.2f%%", responses == 0 ? 0 : 100.0 * counts[slot] / responses));
+                if (errors[slot] > 0) {
+                    line.append(" (error ").append(errors[slot]).append(')');
+                }
+                result.add(line.toString());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Count-Min sketch of reason code frequencies.
+     */
+    private static final class CountMinSketch {
+        private final long[] counts = new long[SKETCH_DEPTH * SKETCH_WIDTH];
+
+        private void add(String item) {
+            int hash = item.hashCode();
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                counts[row * SKETCH_WIDTH + index(hash, row)]++;
+            }
+        }
+
+        private long estimate(String item) {
+            int hash = item.hashCode();
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                estimate = Math.min(estimate, counts[row * SKETCH_WIDTH + index(hash, row)]);
+            }
+            return estimate;
+        }
+
+        private static int index(int hash, int row) {
+            // a different odd multiplier per row makes the rows close to independent
+            int mixed = (hash ^ (hash >>> 16)) * (0x9E3779B1 + 2 * row * 0x632BE5AB);
+            return (mixed >>> 16) & (SKETCH_WIDTH - 1);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Monitoring view of the reason codes returned by ThreatMetrix, for each policy and event type.
+ */
+public interface ThreatMetrixReasonCodeStatsMXBean {
+
+    /**
+     * The number of session query responses seen for each policy and event type.
+     *
+     * @return The response count by {@code policy|event_type}.
+     */
+    Map<String, Long> getResponseCounts();
+
+    /**
+     * The number of responses that were not counted because the maximum number of policy and event type combinations
+     * was reached.
+     *
+     * @return The number of uncounted responses.
+     */
+    long getUntracked();
+
+    /**
+     * The number of responses that were not counted because they arrived faster than they could be counted.
+     *
+     * @return The number of dropped responses.
+     */
+    long getDropped();
+
+    /**
+     * The reason codes that fired most often, most frequent first, as {@code code count rate%}. Counts may be
+     * overestimated by at most the stated error for codes near the bottom of the list.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @param count The maximum number of reason codes to list.
+     * @return The most frequent reason codes.
+     */
+    List<String> topReasonCodes(String policy, String eventType, int count);
+
+    /**
+     * The pairs of reason codes that fired together most often, most frequent first, as
+     * {@code code+code count rate%}.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @param count The maximum number of pairs to list.
+     * @return The most frequent pairs.
+     */
+    List<String> topReasonCodePairs(String policy, String eventType, int count);
+
+    /**
+     * Estimates how many responses fired a reason code, whether or not it is among the most frequent. The estimate is
+     * never below the true count.
+     *
+     * @param policy The ThreatMetrix policy.
+     * @param eventType The event type.
+     * @param reasonCode The reason code.
+     * @return The estimated count.
+     */
+    long estimateReasonCodeCount(String policy, String eventType, String reasonCode);
+
+    /**
+     * Clears all counts.
+     */
+    void reset();
+}
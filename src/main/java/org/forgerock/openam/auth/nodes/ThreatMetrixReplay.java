@@ -0,0 +1,435 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REASON_CODE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_PARENT;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Offline replay of recorded ThreatMetrix responses through the nodes, to compare decision throughput between plugin
+ * versions on production-shaped data.
+ * <p>
+ * The responses captured by {@link ThreatMetrixResponseRecorder} are served round robin by an in-process handler in
+ * place of the ThreatMetrix API, and each simulated login runs the Session Query, Review Status, Policy Score and
+ * Reason Code nodes in turn on a fixed number of threads. The nodes are built by {@link ThreatMetrixOfflineNodes}, so
+ * the tool reads no advanced server properties, writes no files and publishes nothing over JMX. After a warm-up
+ * period, the throughput, the latency percentiles of a whole login and the bytes allocated per login are reported.
+ * Run it with the plugin and the AM libraries on the classpath:
+ * <pre>
+ * java -cp threatmetrix-auth-tree-nodes.jar:am/WEB-INF/lib/* org.forgerock.openam.auth.nodes.ThreatMetrixReplay \
+ *     --threads=8 --duration=60 --warmup=20 responses.tmx
+ * </pre>
+ * With {@code --latency}, each response is held back as a slow ThreatMetrix would, so the threads spend most of their
+ * time blocked waiting. Comparing a run with {@code --virtual-threads} (Java 21 and later) to one without, at a few
+ * thousand threads, shows what blocking costs on platform threads. Latencies are recorded in one fixed-size histogram
+ * shared by all threads, so the thread count does not change the memory the samples take.
+ */
+public final class ThreatMetrixReplay {
+
+    private static final String USAGE = "Usage: ThreatMetrixReplay [--threads=N] [--duration=SECONDS] "
+            + "[--warmup=SECONDS] [--encoding=JSON|COMPRESSED|RAW] [--latency=MILLISECONDS] [--virtual-threads] "
+            + "REPLAY_FILE";
+    private static final int MAX_REASON_CODE_OUTCOMES = 10;
+
+    private final int threads;
+    private final ThreadFactory threadFactory;
+    private final int responseCount;
+    private final ThreatMetrixOfflineNodes.CannedResponseHandler handler;
+    private final List<Node> nodes = new ArrayList<>();
+
+    private ThreatMetrixReplay(Options options, List<byte[]> responses, List<String> reasonCodes) {
+        this.threads = options.threads;
+        this.threadFactory = options.virtualThreads ? ThreatMetrixExecutor.virtualThreadFactory("ThreatMetrix replay ")
+                : ThreatMetrixExecutor.platformThreadFactory("ThreatMetrix replay ");
+        this.responseCount = responses.size();
+        this.handler = new ThreatMetrixOfflineNodes.CannedResponseHandler(responses, options.latencyMillis);
+        ThreatMetrixTracer tracer = ThreatMetrixOfflineNodes.tracer();
+        nodes.add(ThreatMetrixOfflineNodes.sessionQuery(
+                new ThreatMetrixOfflineNodes.SessionQueryConfig(options.encoding), handler, tracer));
+        nodes.add(new ThreatMetrixReviewStatusNode(tracer));
+        nodes.add(new ThreatMetrixPolicyScoreNode(new ThreatMetrixPolicyScoreNode.Config() { }, tracer));
+        nodes.add(new ThreatMetrixReasonCodeNode(() -> reasonCodes, tracer));
+    }
+
+    /**
+     * Replays a file of recorded responses and prints the results.
+     *
+     * @param args The options and the replay file.
+     * @throws Exception If the replay file cannot be read or a node cannot be created.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.virtualThreads && ThreatMetrixExecutor.virtualThreadFactory("") == null) {
+            System.err.println("Virtual threads need Java 21 or later");
+            System.exit(2);
+            return;
+        }
+        ThreatMetrixReplay replay = load(options);
+        System.out.println("Replaying " + replay.responseCount + " responses from " + options.file + " on "
+                                   + options.threads + (options.virtualThreads ? " virtual" : "") + " threads");
+        replay.run(options.warmupSeconds);
+        System.out.println(replay.run(options.durationSeconds));
+        replay.handler.shutdown();
+        System.exit(0);
+    }
+
+    private static ThreatMetrixReplay load(Options options) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<byte[]> responses = new ArrayList<>();
+        Set<String> reasonCodes = new LinkedHashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(options.file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JsonValue response = ThreatMetrixSharedStateCodec.decode(line);
+                responses.add(mapper.writeValueAsBytes(response.getObject()));
+                List<String> fired = response.get(REASON_CODE).asList(String.class);
+                if (fired != null && reasonCodes.size() < MAX_REASON_CODE_OUTCOMES) {
+                    reasonCodes.addAll(fired);
+                }
+            }
+        }
+        if (responses.isEmpty()) {
+            throw new IOException("No responses in " + options.file);
+        }
+        List<String> outcomes = new ArrayList<>(reasonCodes);
+        return new ThreatMetrixReplay(options, responses,
+                                      outcomes.subList(0, Math.min(outcomes.size(), MAX_REASON_CODE_OUTCOMES)));
+    }
+
+    /**
+     * Runs the nodes on every thread for the given time.
+     *
+     * @param seconds How long to run for.
+     * @return The results.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private Result run(int seconds) throws InterruptedException {
+        Worker[] workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        LatencyRecorder latencies = new LatencyRecorder();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, nodes, start, latencies);
+            workerThreads[i] = threadFactory.newThread(workers[i]);
+            workerThreads[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        for (Worker worker : workers) {
+            worker.running = false;
+        }
+        for (Thread workerThread : workerThreads) {
+            workerThread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return new Result(workers, latencies, elapsed);
+    }
+
+    /**
+     * Runs simulated logins until stopped, recording the latency of each and the bytes the thread allocated.
+     */
+    private static final class Worker implements Runnable {
+        private final int id;
+        private final List<Node> nodes;
+        private final CountDownLatch start;
+        private final LatencyRecorder latencies;
+        private volatile boolean running = true;
+        private long logins;
+        private long errors;
+        private long allocatedBytes = -1;
+
+        private Worker(int id, List<Node> nodes, CountDownLatch start, LatencyRecorder latencies) {
+            this.id = id;
+            this.nodes = nodes;
+            this.start = start;
+            this.latencies = latencies;
+        }
+
+        @Override
+        public void run() {
+            ExternalRequestContext request = new ExternalRequestContext.Builder().build();
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long allocatedBefore = allocatedBytes();
+            while (running) {
+                JsonValue sharedState = json(object(field(ORG_ID, "replay"),
+                                                    field(SESSION_ID, "replay-" + id + "-" + logins),
+                                                    field(TMX_TRACE_PARENT,
+                                                          ThreatMetrixTracer.NOT_SAMPLED_TRACE_PARENT)));
+                TreeContext context = new TreeContext(sharedState, json(object()), request, emptyList(),
+                                                      Optional.empty());
+                long begin = System.nanoTime();
+                try {
+                    for (Node node : nodes) {
+                        node.process(context);
+                    }
+                } catch (Exception e) {
+                    errors++;
+                }
+                latencies.record(System.nanoTime() - begin);
+                logins++;
+            }
+            long allocatedAfter = allocatedBytes();
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                allocatedBytes = allocatedAfter - allocatedBefore;
+            }
+        }
+
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) threads)
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Histogram of login latencies shared by all the threads of a run, in the manner of HdrHistogram: every power of
+     * two is split into 128 linear buckets, so percentiles are accurate to within 1% whatever the number of logins or
+     * threads, in 35KB.
+     */
+    private static final class LatencyRecorder {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        /** Latencies are capped at about 18 minutes. */
+        private static final long MAX_NANOS = (1L << 40) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(index(MAX_NANOS) + 1);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, Math.min(nanos, MAX_NANOS))));
+        }
+
+        /**
+         * The bucket of a latency: the latency itself below {@code 2 * SUB_BUCKETS}, and above that its top
+         * {@code SUB_BUCKET_BITS + 1} bits, offset by the number of bits shifted out.
+         */
+        private static int index(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+            return (shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift);
+        }
+
+        /**
+         * The highest latency counted in a bucket.
+         */
+        private static long highestValue(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index >>> SUB_BUCKET_BITS) - 1;
+            return ((long) (index - (shift << SUB_BUCKET_BITS)) + 1 << shift) - 1;
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * The combined results of all threads over one run.
+     */
+    static final class Result {
+        private final long logins;
+        private final long errors;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final long[] latencyCounts;
+        private final long samples;
+
+        private Result(Worker[] workers, LatencyRecorder latencies, long elapsedNanos) {
+            long logins = 0;
+            long errors = 0;
+            long allocated = 0;
+            for (Worker worker : workers) {
+                logins += worker.logins;
+                errors += worker.errors;
+                allocated = allocated < 0 || worker.allocatedBytes < 0 ? -1 : allocated + worker.allocatedBytes;
+            }
+            this.logins = logins;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocated;
+            this.latencyCounts = latencies.snapshot();
+            long samples = 0;
+            for (long count : latencyCounts) {
+                samples += count;
+            }
+            this.samples = samples;
+        }
+
+        double throughput() {
+            return logins * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns a latency percentile.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The latency in microseconds, or -1 if there were no logins.
+         */
+        double latencyMicros(double percentile) {
+            if (samples == 0) {
+                return -1;
+            }
+            long target = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+            long seen = 0;
+            int last = 0;
+            for (int i = 0; i < latencyCounts.length; i++) {
+                if (latencyCounts[i] == 0) {
+                    continue;
+                }
+                last = i;
+                seen += latencyCounts[i];
+                if (seen >= target) {
+                    break;
+                }
+            }
+            return LatencyRecorder.highestValue(last) / 1e3;
+        }
+
+        /**
+         * The bytes allocated per login by the threads running the nodes.
+         *
+         * @return The bytes per login, or -1 if the JVM does not measure allocation.
+         */
+        long allocatedBytesPerLogin() {
+            return allocatedBytes < 0 || logins == 0 ? -1 : allocatedBytes / logins;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("Logins: %d in %.1fs, %d errors%n", logins, elapsedNanos / 1e9, errors));
+            result.append(String.format("Throughput: %.1f logins/s%n", throughput()));
+            result.append(String.format("Latency (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                                        latencyMicros(50), latencyMicros(90), latencyMicros(99), latencyMicros(99.9),
+                                        latencyMicros(100)));
+            if (allocatedBytes < 0) {
+                result.append("Allocation: not measured by this JVM");
+            } else {
+                result.append(String.format("Allocation: %d bytes/login, %.1f MB/s", allocatedBytesPerLogin(),
+                                            allocatedBytes / 1e6 / (elapsedNanos / 1e9)));
+            }
+            return result.toString();
+        }
+    }
+
+    private static final class Options {
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int durationSeconds = 60;
+        private int warmupSeconds = 20;
+        private long latencyMillis;
+        private boolean virtualThreads;
+        private ThreatMetrixSessionQueryNode.SharedStateEncoding encoding =
+                ThreatMetrixSessionQueryNode.SharedStateEncoding.JSON;
+        private Path file;
+
+        /**
+         * Parses the command line.
+         *
+         * @param args The arguments.
+         * @return The options, or null if the arguments are invalid.
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            try {
+                for (String arg : args) {
+                    if (arg.startsWith("--threads=")) {
+                        options.threads = Integer.parseInt(value(arg));
+                    } else if (arg.startsWith("--duration=")) {
+                        options.durationSeconds = Integer.parseInt(value(arg));
+                    } else if (arg.startsWith("--warmup=")) {
+                        options.warmupSeconds = Integer.parseInt(value(arg));
+                    } else if (arg.startsWith("--encoding=")) {
+                        options.encoding = ThreatMetrixSessionQueryNode.SharedStateEncoding.valueOf(value(arg));
+                    } else if (arg.startsWith("--latency=")) {
+                        options.latencyMillis = Long.parseLong(value(arg));
+                    } else if (arg.equals("--virtual-threads")) {
+                        options.virtualThreads = true;
+                    } else if (arg.startsWith("--") || options.file != null) {
+                        return null;
+                    } else {
+                        options.file = Paths.get(arg);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (options.file == null || options.threads < 1 || options.durationSeconds < 1
+                    || options.warmupSeconds < 0 || options.latencyMillis < 0) {
+                return null;
+            }
+            return options;
+        }
+
+        private static String value(String arg) {
+            return arg.substring(arg.indexOf('=') + 1);
+        }
+    }
+}
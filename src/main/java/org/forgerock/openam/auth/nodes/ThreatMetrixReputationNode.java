@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEVICE_ID;
+
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.InputState;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.ThreatMetrixReputationStore.Reputation;
+import org.forgerock.openam.auth.nodes.ThreatMetrixReputationStore.Verdict;
+import org.forgerock.util.i18n.PreferredLocales;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.assistedinject.Assisted;
+
+@Node.Metadata(outcomeProvider = ThreatMetrixReputationNode.ThreatMetrixReputationOutcomeProvider.class,
+        configClass = ThreatMetrixReputationNode.Config.class, tags = {"risk"})
+public class ThreatMetrixReputationNode implements Node {
+
+    private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixReputationNode";
+    private final Config config;
+    private final ThreatMetrixReputationStore reputationStore;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+
+        /**
+         * Should the reputation of the device in shared state be checked
+         */
+        @Attribute(order = 100)
+        default boolean checkDevice() {
+            return true;
+        }
+
+        /**
+         * Should the reputation of the client IP be checked
+         */
+        @Attribute(order = 200)
+        default boolean checkIp() {
+            return true;
+        }
+
+        /**
+         * The maximum age, in seconds, of a verdict that is taken into account
+         */
+        @Attribute(order = 300)
+        default int maxVerdictAge() {
+            return 86400;
+        }
+    }
+
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param config The service config.
+     * @param reputationStore The store of device and IP reputations fed by the ThreatMetrix Session Query Node.
+     */
+    @Inject
+    public ThreatMetrixReputationNode(@Assisted Config config, ThreatMetrixReputationStore reputationStore) {
+        this.config = config;
+        this.reputationStore = reputationStore;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        long oldest = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.maxVerdictAge());
+        Verdict device = config.checkDevice()
+                ? verdict(reputationStore.getDevice(context.sharedState.get(TMX_DEVICE_ID).asString()), oldest)
+                : Verdict.UNKNOWN;
+        Verdict ip = config.checkIp()
+                ? verdict(reputationStore.getIp(context.request.clientIp), oldest)
+                : Verdict.UNKNOWN;
+        if (device == Verdict.REJECT || ip == Verdict.REJECT) {
+            return Action.goTo(ThreatMetrixReputationOutcome.KNOWN_BAD.name()).build();
+        }
+        // a pass on one signal never outweighs a challenge or review on the other, such as a shared or NAT'd IP
+        if ((device == Verdict.PASS || ip == Verdict.PASS) && isPassOrUnknown(device) && isPassOrUnknown(ip)) {
+            return Action.goTo(ThreatMetrixReputationOutcome.KNOWN_GOOD.name()).build();
+        }
+        return Action.goTo(ThreatMetrixReputationOutcome.UNKNOWN.name()).build();
+    }
+
+    private static boolean isPassOrUnknown(Verdict verdict) {
+        return verdict == Verdict.PASS || verdict == Verdict.UNKNOWN;
+    }
+
+    private static Verdict verdict(Reputation reputation, long oldest) {
+        if (reputation == null || reputation.timestamp < oldest) {
+            return Verdict.UNKNOWN;
+        }
+        return reputation.verdict;
+    }
+
+    /**
+     * The possible outcomes for the ThreatMetrix Reputation Node.
+     */
+    private enum ThreatMetrixReputationOutcome {
+        KNOWN_BAD,
+        KNOWN_GOOD,
+        UNKNOWN
+    }
+
+    /**
+     * Defines the possible outcomes from this ThreatMetrix Reputation Node.
+     */
+    public static class ThreatMetrixReputationOutcomeProvider implements OutcomeProvider {
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+                                                                       ThreatMetrixReputationNode.class
+                                                                               .getClassLoader());
+            return ImmutableList.of(
+                    new Outcome(ThreatMetrixReputationOutcome.KNOWN_BAD.name(), bundle.getString("knownBadOutcome")),
+                    new Outcome(ThreatMetrixReputationOutcome.KNOWN_GOOD.name(), bundle.getString("knownGoodOutcome")),
+                    new Outcome(ThreatMetrixReputationOutcome.UNKNOWN.name(), bundle.getString("unknownOutcome")));
+        }
+    }
+
+    @Override
+    public InputState[] getInputs() {
+        return new InputState[] {new InputState(TMX_DEVICE_ID, false)};
+    }
+}
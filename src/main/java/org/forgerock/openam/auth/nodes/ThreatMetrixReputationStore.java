@@ -0,0 +1,321 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.EXACT_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY_SCORE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REVIEW_STATUS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Fixed-capacity, off-heap store of the last ThreatMetrix verdict seen for each device ({@code exact_id}) and client
+ * IP. The IP is the client address as AM resolved it for the login, not the {@code true_ip} that ThreatMetrix saw, so
+ * that the ThreatMetrix Reputation Node, which runs before any query, can look it up. Behind a proxy or load balancer
+ * AM must be configured to resolve the client address from the forwarded header, or every login shares one IP.
+ * <p>
+ * Entries live in a direct or memory-mapped {@link ByteBuffer} as fixed-size slots addressed by a 64-bit hash of the
+ * key, so the store holds millions of entries without adding objects to the heap. Collisions are resolved by linear
+ * probing over a short window; when the window is full the oldest entry in it is evicted. If a file is configured
+ * the buffer is mapped from it and the store survives restarts.
+ */
+@Singleton
+class ThreatMetrixReputationStore implements ThreatMetrixReputationStoreMXBean {
+
+    static final String CAPACITY_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.reputationStore.capacity";
+    static final String FILE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.reputationStore.file";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+
+    private static final int MAGIC = 0x544d5852;
+    private static final int VERSION = 1;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int PROBE_WINDOW = 8;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SIZE_FIELD = 12;
+    private static final int HEADER_EVICTIONS = 16;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_HASH = 0;
+    private static final int SLOT_TIMESTAMP = 8;
+    private static final int SLOT_SCORE = 16;
+    private static final int SLOT_VERDICT = 20;
+
+    private static final String DEVICE_PREFIX = "device:";
+    private static final String IP_PREFIX = "ip:";
+
+    private final StampedLock lock = new StampedLock();
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final boolean persistent;
+
+    ThreatMetrixReputationStore() {
+        this(SystemProperties.getAsInt(CAPACITY_PROPERTY, 1 << 20), SystemProperties.get(FILE_PROPERTY));
+        ThreatMetrixMonitoring.register("ReputationStore", this, ThreatMetrixReputationStoreMXBean.class);
+    }
+
+    /**
+     * Creates a store held in memory only, which is neither persisted nor published over JMX.
+     *
+     * @param capacity The number of slots, rounded up to a power of two.
+     */
+    ThreatMetrixReputationStore(int capacity) {
+        this(capacity, null);
+    }
+
+    private ThreatMetrixReputationStore(int requestedCapacity, String file) {
+        int requested = Math.min(Math.max(requestedCapacity, PROBE_WINDOW), MAX_CAPACITY);
+        this.capacity = Integer.highestOneBit(requested - 1) << 1;
+        long bytes = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        ByteBuffer mapped = StringUtils.isBlank(file) ? null : map(Paths.get(file), bytes);
+        this.persistent = mapped != null;
+        this.buffer = persistent ? mapped : ByteBuffer.allocateDirect((int) bytes);
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_CAPACITY) != capacity) {
+            for (int i = 0; i < bytes; i += Long.BYTES) {
+                buffer.putLong(i, 0L);
+            }
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+        }
+    }
+
+    private static ByteBuffer map(Path path, long bytes) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException e) {
+            logger.warn("Unable to map ThreatMetrix reputation store file " + path + ", falling back to memory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Records the verdict of a session query response against its device and the client IP of the login.
+     *
+     * @param response The session query response.
+     * @param clientIp The client IP address of the login, as AM resolved it, or null if unknown.
+     */
+    void record(JsonValue response, String clientIp) {
+        Verdict verdict = Verdict.fromReviewStatus(response.get(REVIEW_STATUS).asString());
+        int score = policyScore(response);
+        long now = System.currentTimeMillis();
+        String exactId = response.get(EXACT_ID).asString();
+        if (StringUtils.isNotEmpty(exactId)) {
+            put(hash(DEVICE_PREFIX + exactId), verdict, score, now);
+        }
+        if (StringUtils.isNotEmpty(clientIp)) {
+            put(hash(IP_PREFIX + clientIp), verdict, score, now);
+        }
+    }
+
+    /**
+     * Reads the policy score of a response. A missing or malformed score counts as zero rather than losing the verdict
+     * of the whole record.
+     *
+     * @param response The session query response.
+     * @return The policy score, or zero if there is no valid score.
+     */
+    private static int policyScore(JsonValue response) {
+        Object policyScore = response.get(POLICY_SCORE).getObject();
+        if (policyScore instanceof Number) {
+            return ((Number) policyScore).intValue();
+        }
+        if (!(policyScore instanceof String) || StringUtils.isEmpty((String) policyScore)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(((String) policyScore).trim());
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring malformed TMX policy score " + policyScore);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the last recorded reputation of a device.
+     *
+     * @param exactId The ThreatMetrix {@code exact_id} of the device.
+     * @return The reputation, or null if the device has not been seen.
+     */
+    Reputation getDevice(String exactId) {
+        return StringUtils.isEmpty(exactId) ? null : get(hash(DEVICE_PREFIX + exactId));
+    }
+
+    /**
+     * Returns the last recorded reputation of a client IP.
+     *
+     * @param clientIp The client IP address, as AM resolved it.
+     * @return The reputation, or null if the IP has not been seen.
+     */
+    Reputation getIp(String clientIp) {
+        return StringUtils.isEmpty(clientIp) ? null : get(hash(IP_PREFIX + clientIp));
+    }
+
+    private void put(long hash, Verdict verdict, int score, long timestamp) {
+        long stamp = lock.writeLock();
+        try {
+            int target = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_WINDOW; i++) {
+                int slot = slotOffset(hash, i);
+                long slotHash = buffer.getLong(slot + SLOT_HASH);
+                if (slotHash == hash) {
+                    target = slot;
+                    break;
+                }
+                if (slotHash == 0L) {
+                    target = slot;
+                    buffer.putInt(HEADER_SIZE_FIELD, buffer.getInt(HEADER_SIZE_FIELD) + 1);
+                    break;
+                }
+                long slotTimestamp = buffer.getLong(slot + SLOT_TIMESTAMP);
+                if (slotTimestamp < oldest) {
+                    oldest = slotTimestamp;
+                    target = slot;
+                }
+                if (i == PROBE_WINDOW - 1) {
+                    buffer.putLong(HEADER_EVICTIONS, buffer.getLong(HEADER_EVICTIONS) + 1);
+                }
+            }
+            buffer.putLong(target + SLOT_HASH, hash);
+            buffer.putLong(target + SLOT_TIMESTAMP, timestamp);
+            buffer.putInt(target + SLOT_SCORE, score);
+            buffer.put(target + SLOT_VERDICT, (byte) verdict.ordinal());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private Reputation get(long hash) {
+        long stamp = lock.tryOptimisticRead();
+        Reputation reputation = find(hash);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                reputation = find(hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return reputation;
+    }
+
+    private Reputation find(long hash) {
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = slotOffset(hash, i);
+            long slotHash = buffer.getLong(slot + SLOT_HASH);
+            if (slotHash == hash) {
+                int verdict = buffer.get(slot + SLOT_VERDICT);
+                Verdict[] verdicts = Verdict.values();
+                return new Reputation(verdict >= 0 && verdict < verdicts.length ? verdicts[verdict] : Verdict.UNKNOWN,
+                                      buffer.getInt(slot + SLOT_SCORE), buffer.getLong(slot + SLOT_TIMESTAMP));
+            }
+            if (slotHash == 0L) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private int slotOffset(long hash, int probe) {
+        int index = (int) ((hash + probe) & (capacity - 1));
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private static long hash(String key) {
+        long hash = Hashing.murmur3_128().hashUnencodedChars(key).asLong();
+        // zero marks an empty slot
+        return hash == 0L ? 1L : hash;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getSize() {
+        return buffer.getInt(HEADER_SIZE_FIELD);
+    }
+
+    @Override
+    public long getEvictions() {
+        return buffer.getLong(HEADER_EVICTIONS);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * The verdict recorded for a device or IP, derived from the ThreatMetrix review status.
+     */
+    enum Verdict {
+        UNKNOWN,
+        PASS,
+        CHALLENGE,
+        REVIEW,
+        REJECT;
+
+        static Verdict fromReviewStatus(String reviewStatus) {
+            for (Verdict verdict : values()) {
+                if (verdict.name().equalsIgnoreCase(reviewStatus)) {
+                    return verdict;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * The last verdict, policy score and time recorded for a device or IP.
+     */
+    static final class Reputation {
+        final Verdict verdict;
+        final int score;
+        final long timestamp;
+
+        private Reputation(Verdict verdict, int score, long timestamp) {
+            this.verdict = verdict;
+            this.score = score;
+            this.timestamp = timestamp;
+        }
+    }
+}
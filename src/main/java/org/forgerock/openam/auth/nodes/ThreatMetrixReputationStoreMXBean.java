@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix device reputation store.
+ */
+public interface ThreatMetrixReputationStoreMXBean {
+
+    /**
+     * The number of slots in the store.
+     *
+     * @return The fixed capacity.
+     */
+    int getCapacity();
+
+    /**
+     * The number of occupied slots.
+     *
+     * @return The current size.
+     */
+    int getSize();
+
+    /**
+     * The number of entries overwritten to make room for new ones since the store was created.
+     *
+     * @return The eviction count.
+     */
+    long getEvictions();
+
+    /**
+     * Whether the store is backed by a memory-mapped file and therefore survives restarts.
+     *
+     * @return True if the store is persistent.
+     */
+    boolean isPersistent();
+}
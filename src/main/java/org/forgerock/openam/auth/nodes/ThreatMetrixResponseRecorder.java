@@ -0,0 +1,276 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Captures a sample of real session query responses into a replay file for {@link ThreatMetrixReplay}.
+ * <p>
+ * Identifiers, personal data and addresses are replaced before anything is written, including the geolocation and
+ * network owner of each address and every value inside nested objects such as {@code tmx_variables}. Values are
+ * pseudonymised with a keyed hash whose key is generated at startup and never stored, so the same device or user maps
+ * to the same value within one file and repeated logins keep their shape, but the original values cannot be
+ * recovered. IP addresses are mapped into the benchmarking ranges {@code 198.18.0.0/15} and {@code 2001:db8::/32} so
+ * that they still parse. Each response is written as one line in the compact shared state encoding. Responses are
+ * handed to a background writer and dropped rather than queued if it falls behind. The recorder is disabled unless a
+ * file is configured.
+ */
+@Singleton
+class ThreatMetrixResponseRecorder {
+
+    static final String FILE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.recorder.file";
+    static final String SAMPLE_RATE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.recorder.sampleRate";
+    static final String MAX_RESPONSES_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.recorder.maxResponses";
+    static final String REDACTED_ATTRIBUTES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.recorder.redactedAttributes";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String DEFAULT_REDACTED_ATTRIBUTES = "account_address_city,account_address_country,"
+            + "account_address_state,account_address_street1,account_address_street2,account_address_zip,"
+            + "account_email,account_login,account_name,account_number,account_telephone,agent_id,browser_language,"
+            + "browser_string,cc_number_hash,device_id,exact_id,fuzzy_device_id,http_referer,org_id,request_id,"
+            + "session_id,smart_id";
+    private static final Set<String> IP_ATTRIBUTES = new HashSet<>(Arrays.asList("api_caller_ip", "dns_ip",
+            "input_ip_address", "proxy_ip", "true_ip"));
+    private static final String HMAC = "HmacSHA256";
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Path file;
+    private final int sampleRate;
+    private final long maxResponses;
+    private final Set<String> redactedAttributes;
+    private final AtomicLong accepted = new AtomicLong();
+    private final BlockingQueue<JsonValue> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running;
+
+    ThreatMetrixResponseRecorder() {
+        this(file(), SystemProperties.getAsInt(SAMPLE_RATE_PROPERTY, 1),
+             SystemProperties.getAsLong(MAX_RESPONSES_PROPERTY, 100000), redactedAttributes());
+    }
+
+    /**
+     * Creates a recorder with the given settings rather than the advanced server properties.
+     *
+     * @param file The file the responses are appended to, or null for a recorder that records nothing.
+     * @param sampleRate The percentage of responses recorded, from 0 to 100.
+     * @param maxResponses The number of responses after which recording stops.
+     * @param redactedAttributes The attributes removed from the recorded responses.
+     */
+    ThreatMetrixResponseRecorder(Path file, int sampleRate, long maxResponses, Set<String> redactedAttributes) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.maxResponses = maxResponses;
+        this.redactedAttributes = redactedAttributes;
+        if (file == null) {
+            this.writer = null;
+        } else {
+            this.running = true;
+            this.writer = new Thread(this::drain, "ThreatMetrix response recorder");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static Path file() {
+        String path = SystemProperties.get(FILE_PROPERTY);
+        return StringUtils.isBlank(path) ? null : Paths.get(path);
+    }
+
+    private static Set<String> redactedAttributes() {
+        Set<String> redactedAttributes = new HashSet<>();
+        for (String attribute : SystemProperties.get(REDACTED_ATTRIBUTES_PROPERTY, DEFAULT_REDACTED_ATTRIBUTES)
+                                                .split(",")) {
+            if (StringUtils.isNotBlank(attribute)) {
+                redactedAttributes.add(attribute.trim());
+            }
+        }
+        return redactedAttributes;
+    }
+
+    /**
+     * Queues a sample of the responses for recording without blocking.
+     *
+     * @param response A session query response received from ThreatMetrix.
+     */
+    void record(JsonValue response) {
+        if (!running || ThreadLocalRandom.current().nextInt(100) >= sampleRate) {
+            return;
+        }
+        if (accepted.incrementAndGet() > maxResponses) {
+            return;
+        }
+        if (!queue.offer(response.copy())) {
+            accepted.decrementAndGet();
+        }
+    }
+
+    private void drain() {
+        Mac mac;
+        try {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+        } catch (GeneralSecurityException e) {
+            logger.error("Unable to start the ThreatMetrix response recorder", e);
+            running = false;
+            return;
+        }
+        long written = 0;
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                                  StandardOpenOption.APPEND)) {
+            while (running || !queue.isEmpty()) {
+                JsonValue response = queue.poll(1, TimeUnit.SECONDS);
+                if (response == null) {
+                    continue;
+                }
+                out.write(ThreatMetrixSharedStateCodec.encode(redact(response, mac)));
+                out.write('\n');
+                written++;
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write ThreatMetrix responses to " + file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            logger.info("Recorded " + written + " ThreatMetrix responses to " + file);
+        }
+    }
+
+    private JsonValue redact(JsonValue response, Mac mac) {
+        if (!response.isMap()) {
+            return response;
+        }
+        for (Map.Entry<String, Object> attribute : response.asMap().entrySet()) {
+            attribute.setValue(redact(attribute.getKey(), attribute.getValue(), mac, false));
+        }
+        return response;
+    }
+
+    /**
+     * Replaces a value if it is an identifier or personal data. Everything below the top level, such as the custom
+     * {@code tmx_variables}, is free form, so every value inside a nested object is replaced whatever its name.
+     */
+    @SuppressWarnings("unchecked")
+    private Object redact(String name, Object value, Mac mac, boolean nested) {
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> attribute : ((Map<String, Object>) value).entrySet()) {
+                attribute.setValue(redact(attribute.getKey(), attribute.getValue(), mac, true));
+            }
+            return value;
+        }
+        if (value instanceof List) {
+            for (ListIterator<Object> element = ((List<Object>) value).listIterator(); element.hasNext();) {
+                element.set(redact(name, element.next(), mac, nested));
+            }
+            return value;
+        }
+        boolean ip = IP_ATTRIBUTES.contains(name);
+        if (value == null || (!ip && !nested && !isRedacted(name))) {
+            return value;
+        }
+        if (!(value instanceof String)) {
+            return "redacted";
+        }
+        byte[] hash = mac.doFinal(((String) value).getBytes(StandardCharsets.UTF_8));
+        if (!ip) {
+            return "redacted-" + toHex(hash, 8);
+        } else if (((String) value).indexOf(':') >= 0) {
+            return "2001:db8:" + toHex(hash, 2) + ':' + toHex(Arrays.copyOfRange(hash, 2, 4), 2)
+                    + "::" + toHex(Arrays.copyOfRange(hash, 4, 6), 2);
+        } else {
+            return "198." + (18 + (hash[0] & 1)) + '.' + (hash[1] & 0xff) + '.' + (hash[2] & 0xff);
+        }
+    }
+
+    /**
+     * Whether a top level attribute is replaced. Besides the configured attributes this covers everything derived from
+     * an address, such as {@code true_ip_city}, {@code dns_ip_isp} or {@code proxy_ip_organization}, whose names vary
+     * between ThreatMetrix policies.
+     */
+    private boolean isRedacted(String name) {
+        if (redactedAttributes.contains(name)) {
+            return true;
+        }
+        for (String ip : IP_ATTRIBUTES) {
+            if (name.startsWith(ip + '_')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes the responses still queued and closes the file.
+     */
+    void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
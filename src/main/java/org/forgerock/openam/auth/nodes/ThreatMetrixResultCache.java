@@ -0,0 +1,265 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Cache of session query results that is shared between the servers of a deployment through a pluggable
+ * {@link ThreatMetrixResultStore}, so that a login whose tree steps land on different servers queries ThreatMetrix
+ * only once.
+ * <p>
+ * Results are keyed by a SHA-256 hash of the org ID, session ID, policy, event type and service type, so that stores
+ * never see session IDs, and are held in the {@link ThreatMetrixSharedStateCodec} encoding. When the store is not
+ * the in-memory one, recent results are also kept in a small near cache on this server, bounded in size and in age
+ * and invalidated when the store reports a change made by another server. The default in-memory store is not shared
+ * between servers, which is logged the first time a result is looked up. Writes to the store are made on the
+ * {@link ThreatMetrixExecutor}, so a slow remote store does not hold up the login that queried ThreatMetrix. When the
+ * executor is saturated the write is dropped and counted: the result stays in the near cache of this server, and
+ * other servers query ThreatMetrix themselves.
+ */
+@Singleton
+class ThreatMetrixResultCache implements ThreatMetrixResultCacheMXBean {
+
+    static final String STORE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.resultCache.store";
+    static final String NEAR_CACHE_MAX_ENTRIES_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.resultCache.nearCache.maxEntries";
+    static final String NEAR_CACHE_TTL_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.resultCache.nearCache.ttlSeconds";
+
+    /**
+     * The longest time a result may be cached for, whatever the node configuration.
+     */
+    static final long MAX_TTL_SECONDS = 3600;
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String MEMORY = "memory";
+    private static final String FILE = "file";
+
+    private final ThreatMetrixResultStore store;
+    private final ThreatMetrixExecutor executor;
+    private final Cache<String, Entry> nearCache;
+    private final AtomicLong nearCacheHits = new AtomicLong();
+    private final AtomicLong storeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private final AtomicBoolean warnedNotShared = new AtomicBoolean();
+
+    @Inject
+    ThreatMetrixResultCache(ThreatMetrixExecutor executor) {
+        this(executor, createStore(SystemProperties.get(STORE_PROPERTY, MEMORY)),
+             SystemProperties.getAsInt(NEAR_CACHE_MAX_ENTRIES_PROPERTY, 10000),
+             SystemProperties.getAsLong(NEAR_CACHE_TTL_PROPERTY, 5));
+        ThreatMetrixMonitoring.register("ResultCache", this, ThreatMetrixResultCacheMXBean.class);
+    }
+
+    /**
+     * Creates a cache over the given store. It is not published over JMX.
+     *
+     * @param executor Runs the writes to the store, which are dropped if it refuses them.
+     * @param store The store of the results.
+     * @param nearCacheMaxEntries The maximum number of results kept in memory in front of a store that is not.
+     * @param nearCacheTtlSeconds How long a result is kept in memory in front of a store that is not.
+     */
+    ThreatMetrixResultCache(ThreatMetrixExecutor executor, ThreatMetrixResultStore store, int nearCacheMaxEntries,
+            long nearCacheTtlSeconds) {
+        this.executor = executor;
+        this.store = store;
+        if (store instanceof ThreatMetrixInMemoryResultStore) {
+            this.nearCache = null;
+        } else {
+            this.nearCache = CacheBuilder.newBuilder()
+                                         .maximumSize(nearCacheMaxEntries)
+                                         .expireAfterWrite(nearCacheTtlSeconds, TimeUnit.SECONDS)
+                                         .build();
+            store.setInvalidationListener(key -> {
+                if (nearCache.asMap().remove(key) != null) {
+                    invalidations.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    private static ThreatMetrixResultStore createStore(String type) {
+        try {
+            if (MEMORY.equalsIgnoreCase(type)) {
+                return new ThreatMetrixInMemoryResultStore();
+            } else if (FILE.equalsIgnoreCase(type)) {
+                return new ThreatMetrixFileResultStore();
+            }
+            return Class.forName(type.trim()).asSubclass(ThreatMetrixResultStore.class).getConstructor()
+                        .newInstance();
+        } catch (IOException | ReflectiveOperationException | ClassCastException e) {
+            logger.warn("Unable to create ThreatMetrix result store " + type + ", using the in-memory store", e);
+            return new ThreatMetrixInMemoryResultStore();
+        }
+    }
+
+    /**
+     * Builds the key of a session query result.
+     *
+     * @param orgId The ThreatMetrix org ID.
+     * @param sessionId The profiling session ID.
+     * @param policy The policy the session was queried with.
+     * @param eventType The event type the session was queried with.
+     * @param serviceType The service type the session was queried with.
+     * @return The key.
+     */
+    static String key(String orgId, String sessionId, String policy, String eventType, String serviceType) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String part : new String[] {orgId, sessionId, policy, eventType, serviceType}) {
+            hasher.putString(StringUtils.defaultString(part), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns the cached result for a key.
+     *
+     * @param key The key, from {@link #key(String, String, String, String, String)}.
+     * @return The session query response, or empty if there is none.
+     */
+    Optional<JsonValue> get(String key) {
+        if (nearCache == null && warnedNotShared.compareAndSet(false, true)) {
+            logger.warn("The ThreatMetrix shared result cache uses the in-memory store, so results are reused only on "
+                                + "the server that queried them. Set " + STORE_PROPERTY
+                                + " to a store that all servers can reach to share them.");
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = nearCache == null ? null : nearCache.getIfPresent(key);
+        String value;
+        if (entry != null && entry.expires >= now) {
+            nearCacheHits.incrementAndGet();
+            value = entry.value;
+        } else {
+            value = store.get(key);
+            if (value == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+            storeHits.incrementAndGet();
+        }
+        try {
+            return Optional.of(ThreatMetrixSharedStateCodec.decode(value));
+        } catch (IOException e) {
+            logger.warn("Discarding unreadable ThreatMetrix result", e);
+            invalidate(key);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key The key, from {@link #key(String, String, String, String, String)}.
+     * @param response The session query response.
+     * @param ttlSeconds How long the result may be used for, at most {@value #MAX_TTL_SECONDS}.
+     */
+    void put(String key, JsonValue response, long ttlSeconds) {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(Math.min(Math.max(ttlSeconds, 0), MAX_TTL_SECONDS));
+        String value = ThreatMetrixSharedStateCodec.encode(response);
+        if (nearCache != null) {
+            if (!executor.tryExecute(() -> store.put(key, value, ttlMillis))) {
+                droppedWrites.incrementAndGet();
+                logger.debug("ThreatMetrix background tasks are saturated, not sharing result " + key);
+            }
+            nearCache.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+        } else {
+            store.put(key, value, ttlMillis);
+        }
+    }
+
+    /**
+     * Removes a result from this server and from the store.
+     *
+     * @param key The key, from {@link #key(String, String, String, String, String)}.
+     */
+    void invalidate(String key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+        store.invalidate(key);
+    }
+
+    /**
+     * Releases the store.
+     */
+    void shutdown() {
+        store.close();
+    }
+
+    @Override
+    public String getStoreType() {
+        return store.getClass().getName();
+    }
+
+    @Override
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    @Override
+    public long getStoreHits() {
+        return storeHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getDroppedWrites() {
+        return droppedWrites.get();
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long expires;
+
+        private Entry(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the shared cache of ThreatMetrix session query results.
+ */
+public interface ThreatMetrixResultCacheMXBean {
+
+    /**
+     * The class of the store behind the cache.
+     *
+     * @return The store class name.
+     */
+    String getStoreType();
+
+    /**
+     * The number of lookups answered by the near cache of this server.
+     *
+     * @return The near cache hit count.
+     */
+    long getNearCacheHits();
+
+    /**
+     * The number of lookups answered by the store.
+     *
+     * @return The store hit count.
+     */
+    long getStoreHits();
+
+    /**
+     * The number of lookups that found no result, and so queried ThreatMetrix.
+     *
+     * @return The miss count.
+     */
+    long getMisses();
+
+    /**
+     * The number of near cache entries dropped because another server changed them in the store.
+     *
+     * @return The invalidation count.
+     */
+    long getInvalidations();
+
+    /**
+     * The number of writes to the store dropped because the background task executor was saturated.
+     *
+     * @return The dropped write count.
+     */
+    long getDroppedWrites();
+}
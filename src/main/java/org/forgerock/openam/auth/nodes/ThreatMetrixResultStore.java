@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.function.Consumer;
+
+/**
+ * A store of session query results that may be shared by every server of a deployment, so that a login whose tree
+ * steps are balanced across servers queries ThreatMetrix only once.
+ * <p>
+ * Implementations are selected with the {@value ThreatMetrixResultCache#STORE_PROPERTY} advanced server property and
+ * need a public no-argument constructor. Keys and values are opaque strings; values are already encoded and are
+ * usually a few kilobytes. Implementations must be thread safe, and should treat errors of the underlying store as
+ * misses rather than throw, since a missing result only costs a query.
+ */
+public interface ThreatMetrixResultStore {
+
+    /**
+     * Returns the value stored under a key, if it has not expired.
+     *
+     * @param key The key.
+     * @return The value, or null if there is none.
+     */
+    String get(String key);
+
+    /**
+     * Stores a value, replacing any previous value for the key.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @param ttlMillis How long, in milliseconds, the value may be returned for.
+     */
+    void put(String key, String value, long ttlMillis);
+
+    /**
+     * Removes the value stored under a key.
+     *
+     * @param key The key.
+     */
+    void invalidate(String key);
+
+    /**
+     * Registers the listener that is told of keys written or invalidated by other servers, so that values held in
+     * front of the store can be dropped. Stores that cannot observe other servers ignore it, in which case near
+     * cached values are only bounded by their own TTL.
+     *
+     * @param listener Called with each key changed elsewhere.
+     */
+    default void setInvalidationListener(Consumer<String> listener) {
+    }
+
+    /**
+     * Releases any resources held by the store.
+     */
+    default void close() {
+    }
+}
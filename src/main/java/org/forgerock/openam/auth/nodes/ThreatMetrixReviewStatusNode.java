@@ -3,11 +3,13 @@ package org.forgerock.openam.auth.nodes;
 
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REVIEW_STATUS;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_QUERY_RESPONSE;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryResponse;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryAttribute;
 
 import java.util.List;
 import java.util.ResourceBundle;
 
+import javax.inject.Inject;
+
 import org.apache.commons.lang.StringUtils;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
@@ -25,6 +27,7 @@ import com.google.common.collect.ImmutableList;
 public class ThreatMetrixReviewStatusNode implements Node {
 
     private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixReviewStatusNode";
+    private final ThreatMetrixTracer tracer;
 
     /**
      * Configuration for the node.
@@ -33,11 +36,24 @@ public class ThreatMetrixReviewStatusNode implements Node {
 
     }
 
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param tracer Creates the span of the decision.
+     */
+    @Inject
+    public ThreatMetrixReviewStatusNode(ThreatMetrixTracer tracer) {
+        this.tracer = tracer;
+    }
+
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
+        return tracer.trace("tmx.review_status", context.sharedState, span -> decide(context));
+    }
 
-        JsonValue sessionQueryResponse = getSessionQueryResponse(context);
-        String reviewStatus = sessionQueryResponse.get(REVIEW_STATUS).asString();
+    private Action decide(TreeContext context) throws NodeProcessException {
+        String reviewStatus = getSessionQueryAttribute(context.sharedState, REVIEW_STATUS).asString();
         if (StringUtils.isEmpty(reviewStatus)) {
             throw new NodeProcessException("Unable to find " + REVIEW_STATUS + " in " + SESSION_QUERY_RESPONSE +
                                                    ". To use the ThreatMetrix Review Status Node, the ThreatMetrix " +
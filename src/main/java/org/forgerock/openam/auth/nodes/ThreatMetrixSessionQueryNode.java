@@ -17,55 +17,99 @@
 
 package org.forgerock.openam.auth.nodes;
 
+import static java.util.Collections.emptyList;
 import static org.forgerock.http.protocol.Responses.noopExceptionFunction;
+import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.API_KEY;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.BUDGET_EXHAUSTED_OUTCOME;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.EVENT_TYPE;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.NEXT_OUTCOME;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.POLICY_SCORE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REASON_CODE;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REVIEW_STATUS;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SERVICE_TYPE;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_QUERY_CHALLENGER_RESPONSES;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_QUERY_RESPONSE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEADLINE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEVICE_ID;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_SESSION_QUERY_PARAMETERS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_VERDICT_SOURCE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.VERDICT_SOURCE_CACHE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.VERDICT_SOURCE_CHALLENGER;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.VERDICT_SOURCE_DEGRADED;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.VERDICT_SOURCE_REMOTE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.VERDICT_SOURCE_SHARED_CACHE;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.getSessionQueryResponse;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.httpStatus;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.remainingLoginTime;
 import static org.forgerock.util.CloseSilentlyFunction.closeSilently;
-import static org.forgerock.util.Closeables.closeSilentlyAsync;
 
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
 
-import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.InputState;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
 import org.forgerock.openam.auth.node.api.OutputState;
-import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.sm.annotations.adapters.Password;
-import org.forgerock.services.context.RootContext;
 import org.forgerock.util.Function;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.assistedinject.Assisted;
 
-@Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
+@Node.Metadata(outcomeProvider = ThreatMetrixSessionQueryNode.ThreatMetrixSessionQueryOutcomeProvider.class,
         configClass = ThreatMetrixSessionQueryNode.Config.class, tags = {"risk"})
-public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
+public class ThreatMetrixSessionQueryNode implements Node {
 
+    private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixSessionQueryNode";
     private final Logger logger = LoggerFactory.getLogger("amAuth");
     private final Config config;
-    private final HttpClientHandler clientHandler;
+    private final ThreatMetrixEndpointRouter endpointRouter;
+    private final ThreatMetrixVerdictCache verdictCache;
+    private final ThreatMetrixReputationStore reputationStore;
+    private final ThreatMetrixIpBlocklist ipBlocklist;
+    private final ThreatMetrixKnownBadDeviceFilter knownBadDeviceFilter;
+    private final ThreatMetrixInFlightCalls inFlightCalls;
+    private final ThreatMetrixHedging hedging;
+    private final ThreatMetrixTracer tracer;
+    private final ThreatMetrixAuditLog auditLog;
+    private final ThreatMetrixResponseRecorder recorder;
+    private final ThreatMetrixReasonCodeStats reasonCodeStats;
+    private final ThreatMetrixPolicyScoreStats policyScoreStats;
+    private final ThreatMetrixResultCache resultCache;
+    private final ThreatMetrixErrorCache errorCache;
 
     /**
      * Configuration for the node.
@@ -112,6 +156,14 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
             return "https://h-api.online-metrix.net/api/session-query";
         }
 
+        /**
+         * Session query URIs to fail over to
+         */
+        @Attribute(order = 650)
+        default List<String> failoverUris() {
+            return emptyList();
+        }
+
         /**
          * Should shared state variables be added to request
          */
@@ -119,6 +171,191 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
         default boolean addSharedStateVariablesToRequest() {
             return false;
         }
+
+        /**
+         * The shared state variables that may be added to the request. All of them are added if empty
+         */
+        @Attribute(order = 750)
+        default List<String> sharedStateVariableNames() {
+            return emptyList();
+        }
+
+        /**
+         * The longest value, in characters, of a declared shared state variable that is added to the request
+         */
+        @Attribute(order = 760)
+        default int maxSharedStateVariableLength() {
+            return 256;
+        }
+
+        /**
+         * Should a recent pass verdict for the same user and device be reused instead of querying ThreatMetrix. The
+         * device ID in shared state must come from a trusted source, never from the client. Off by default.
+         */
+        @Attribute(order = 800)
+        default boolean trustedDeviceFastPath() {
+            return false;
+        }
+
+        /**
+         * How long, in seconds, a pass verdict may be reused for
+         */
+        @Attribute(order = 900)
+        default int trustedDeviceTtl() {
+            return 14400;
+        }
+
+        /**
+         * Percentage of trusted device logins that are still sent to ThreatMetrix
+         */
+        @Attribute(order = 1000)
+        default int trustedDeviceSamplingRate() {
+            return 10;
+        }
+
+        /**
+         * Reason codes that add the true IP of the response to the IP blocklist
+         */
+        @Attribute(order = 1100)
+        default List<String> blocklistReasonCodes() {
+            return emptyList();
+        }
+
+        /**
+         * Prefix length of the network blocked for a flagged IPv4 true IP
+         */
+        @Attribute(order = 1200)
+        default int blocklistIpv4PrefixLength() {
+            return 32;
+        }
+
+        /**
+         * Prefix length of the network blocked for a flagged IPv6 true IP
+         */
+        @Attribute(order = 1300)
+        default int blocklistIpv6PrefixLength() {
+            return 64;
+        }
+
+        /**
+         * Should a degraded verdict be returned instead of calling ThreatMetrix when too many calls are in flight
+         */
+        @Attribute(order = 1400)
+        default boolean loadShedding() {
+            return false;
+        }
+
+        /**
+         * The number of ThreatMetrix calls in flight from this server above which load is shed
+         */
+        @Attribute(order = 1500)
+        default int maxInFlightRequests() {
+            return 100;
+        }
+
+        /**
+         * The review status of the degraded verdict used when no previous verdict is cached
+         */
+        @Attribute(order = 1600)
+        default ReviewStatus degradedReviewStatus() {
+            return ReviewStatus.REVIEW;
+        }
+
+        /**
+         * The policy score of the degraded verdict used when no previous verdict is cached
+         */
+        @Attribute(order = 1700)
+        default int degradedPolicyScore() {
+            return 0;
+        }
+
+        /**
+         * Should a second identical query be sent when the first is slow
+         */
+        @Attribute(order = 1800)
+        default boolean hedgeRequests() {
+            return false;
+        }
+
+        /**
+         * The percentile of recent query latencies to wait for before sending the second query
+         */
+        @Attribute(order = 1900)
+        default int hedgeDelayPercentile() {
+            return 95;
+        }
+
+        /**
+         * The maximum number of hedged queries per minute as a percentage of all queries
+         */
+        @Attribute(order = 2000)
+        default int hedgeBudgetPercent() {
+            return 5;
+        }
+
+        /**
+         * Should the query be bounded by the login deadline set by the ThreatMetrix Profiler Node
+         */
+        @Attribute(order = 2100)
+        default boolean useLoginTimeBudget() {
+            return false;
+        }
+
+        /**
+         * The minimum remaining login time, in milliseconds, needed to start a query
+         */
+        @Attribute(order = 2200)
+        default int minimumQueryTime() {
+            return 100;
+        }
+
+        /**
+         * How the session query response is held in shared state
+         */
+        @Attribute(order = 2300)
+        default SharedStateEncoding sharedStateEncoding() {
+            return SharedStateEncoding.JSON;
+        }
+
+        /**
+         * Should the result of a session already queried by this or another server be reused
+         */
+        @Attribute(order = 2400)
+        default boolean sharedResultCache() {
+            return false;
+        }
+
+        /**
+         * How long, in seconds, a result may be reused for
+         */
+        @Attribute(order = 2500)
+        default int sharedResultCacheTtl() {
+            return 300;
+        }
+
+        /**
+         * Policies queried alongside the policy for shadow evaluation
+         */
+        @Attribute(order = 2600)
+        default List<String> challengerPolicies() {
+            return emptyList();
+        }
+
+        /**
+         * The number of challenger responses to wait for once the policy response is in
+         */
+        @Attribute(order = 2700)
+        default int challengerQuorum() {
+            return 0;
+        }
+
+        /**
+         * The longest time, in milliseconds, to wait for challenger responses once the policy response is in
+         */
+        @Attribute(order = 2800)
+        default int challengerTimeout() {
+            return 200;
+        }
     }
 
 
@@ -126,55 +363,543 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
      * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
      * from the plugin.
      * @param config The service config.
+     * @param endpointRouter Routes calls to the fastest healthy session query endpoint.
+     * @param verdictCache The store of recent verdicts used by the trusted device fast path.
+     * @param reputationStore The device and IP reputation store fed by every response.
+     * @param ipBlocklist The known bad networks, fed by flagged responses.
+     * @param knownBadDeviceFilter The filter of rejected devices, fed by rejected responses.
+     * @param inFlightCalls The count of ThreatMetrix calls in flight, used for load shedding.
+     * @param hedging Decides when slow queries are hedged.
+     * @param tracer Creates the spans of the query.
+     * @param auditLog Records every query.
+     * @param recorder Captures a sample of the responses for offline replay.
+     * @param reasonCodeStats Counts the reason codes of every response.
+     * @param policyScoreStats Counts the policy scores of every response.
+     * @param resultCache The results of sessions already queried, shared with the other servers.
+     * @param errorCache The recent authentication and configuration errors, which fail calls fast.
      */
     @Inject
-    public ThreatMetrixSessionQueryNode(@Assisted Config config, HttpClientHandler client) {
+    public ThreatMetrixSessionQueryNode(@Assisted Config config, ThreatMetrixEndpointRouter endpointRouter,
+            ThreatMetrixVerdictCache verdictCache, ThreatMetrixReputationStore reputationStore,
+            ThreatMetrixIpBlocklist ipBlocklist, ThreatMetrixKnownBadDeviceFilter knownBadDeviceFilter,
+            ThreatMetrixInFlightCalls inFlightCalls, ThreatMetrixHedging hedging, ThreatMetrixTracer tracer,
+            ThreatMetrixAuditLog auditLog, ThreatMetrixResponseRecorder recorder,
+            ThreatMetrixReasonCodeStats reasonCodeStats, ThreatMetrixPolicyScoreStats policyScoreStats,
+            ThreatMetrixResultCache resultCache, ThreatMetrixErrorCache errorCache) {
         this.config = config;
-        this.clientHandler = client;
+        this.endpointRouter = endpointRouter;
+        this.verdictCache = verdictCache;
+        this.reputationStore = reputationStore;
+        this.ipBlocklist = ipBlocklist;
+        this.knownBadDeviceFilter = knownBadDeviceFilter;
+        this.inFlightCalls = inFlightCalls;
+        this.hedging = hedging;
+        this.tracer = tracer;
+        this.auditLog = auditLog;
+        this.recorder = recorder;
+        this.reasonCodeStats = reasonCodeStats;
+        this.policyScoreStats = policyScoreStats;
+        this.resultCache = resultCache;
+        this.errorCache = errorCache;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
-        JsonValue sharedState = context.sharedState;
+        return tracer.trace("tmx.session_query", context.sharedState, span -> {
+            Action action = process(context.sharedState, context.request.clientIp, span);
+            if (span.isSampled() && context.sharedState.isDefined(SESSION_QUERY_RESPONSE)) {
+                JsonValue response = getSessionQueryResponse(context.sharedState);
+                span.setAttribute("tmx.verdict_source", context.sharedState.get(TMX_VERDICT_SOURCE).asString())
+                    .setAttribute("tmx.review_status", response.get(REVIEW_STATUS).asString())
+                    .setAttribute("tmx.policy_score", response.get(POLICY_SCORE).asString());
+            }
+            return action;
+        });
+    }
+
+    private Action process(JsonValue sharedState, String clientIp, ThreatMetrixSpan span) throws NodeProcessException {
         String sessionId = sharedState.get(SESSION_ID).asString();
         if (!sharedState.isDefined(ORG_ID) || !sharedState.isDefined(SESSION_ID)) {
             throw new NodeProcessException(
                     "Either the TMX Org ID or the Session ID is not present in shared state. Please check " +
                             "configuration");
         }
-        Request request;
+        span.setAttribute("tmx.org_id", sharedState.get(ORG_ID).asString())
+            .setAttribute("tmx.event_type", config.eventType().toString())
+            .setAttribute("tmx.service_type", config.serviceType().toString())
+            .setAttribute("tmx.policy", config.policy());
+        if (config.trustedDeviceFastPath()) {
+            Optional<JsonValue> verdict = verdictCache.getTrustedVerdict(sharedState.get(USERNAME).asString(),
+                                                                         sharedState.get(TMX_DEVICE_ID).asString(),
+                                                                         config.trustedDeviceTtl());
+            if (verdict.isPresent()
+                    && ThreadLocalRandom.current().nextInt(100) >= config.trustedDeviceSamplingRate()) {
+                logger.debug("Reusing cached TMX verdict for session: " + sessionId);
+                return reuse(sharedState, verdict.get(), VERDICT_SOURCE_CACHE);
+            }
+        }
+        if (config.sharedResultCache()) {
+            Optional<JsonValue> result = resultCache.get(resultCacheKey(sharedState));
+            if (result.isPresent()) {
+                logger.debug("Reusing shared TMX result for session: " + sessionId);
+                return reuse(sharedState, result.get(), VERDICT_SOURCE_SHARED_CACHE);
+            }
+        }
+        long deadline = Long.MAX_VALUE;
+        if (config.useLoginTimeBudget()) {
+            long remaining = remainingLoginTime(sharedState);
+            if (remaining < config.minimumQueryTime()) {
+                logger.warn("Login time budget exhausted before TMX query for session: " + sessionId);
+                if (auditLog.isEnabled()) {
+                    auditLog.record(auditEntry(sharedState).error("Login time budget exhausted").build());
+                }
+                return budgetExhausted(sharedState);
+            }
+            if (remaining != Long.MAX_VALUE) {
+                deadline = System.currentTimeMillis() + remaining;
+            }
+        }
+        return query(sharedState, clientIp, sessionId, deadline, span);
+    }
+
+    /**
+     * Uses the last verdict cached for the user on this device or, if there is none, the configured degraded verdict.
+     *
+     * @param sharedState The shared state.
+     * @return The action.
+     */
+    private Action degraded(JsonValue sharedState) {
+        JsonValue verdict = verdictCache.getLatestVerdict(sharedState.get(USERNAME).asString(),
+                                                          sharedState.get(TMX_DEVICE_ID).asString())
+                                        .orElseGet(() -> json(object(
+                                                field(REVIEW_STATUS, config.degradedReviewStatus().toString()),
+                                                field(POLICY_SCORE, String.valueOf(config.degradedPolicyScore())))));
+        return reuse(sharedState, verdict, VERDICT_SOURCE_DEGRADED);
+    }
+
+    /**
+     * Queries ThreatMetrix, unless a recent error or load shedding stops it. A recent authentication or configuration
+     * error fails the login as the call that returned it did. The query counts as a call in flight until its response
+     * arrives or it is cancelled, even if the login stops waiting for it first.
+     *
+     * @param sharedState The shared state.
+     * @param clientIp The client IP address of the login, as AM resolved it.
+     * @param sessionId The session ID.
+     * @param deadline The login deadline in epoch milliseconds, or {@link Long#MAX_VALUE} for none.
+     * @param span The span of the node.
+     * @return The action.
+     * @throws NodeProcessException If the query fails or ThreatMetrix recently rejected the configuration.
+     */
+    private Action query(JsonValue sharedState, String clientIp, String sessionId, long deadline,
+            ThreatMetrixSpan span) throws NodeProcessException {
+        String orgId = sharedState.get(ORG_ID).asString();
+        String apiKey = String.valueOf(config.apiKey());
+        Status cachedError = errorCache.getCachedError(orgId, apiKey, endpointRouter.order(endpoints()).get(0));
+        if (cachedError != null) {
+            // fails the same way as the call that returned the error, rather than passing logins on a stale verdict
+            if (auditLog.isEnabled()) {
+                auditLog.record(auditEntry(sharedState).httpStatus(cachedError.getCode())
+                                                       .error("Cached TMX error " + cachedError)
+                                                       .build());
+            }
+            throw new NodeProcessException("Unable to process request. TMX recently returned " + cachedError
+                                                   + " for org " + orgId + ", check the org ID, API key and session"
+                                                   + " query URI");
+        }
+        if (!inFlightCalls.tryAcquire(config.loadShedding() ? config.maxInFlightRequests() : 0)) {
+            logger.warn("Too many TMX calls in flight, using a degraded verdict for session: " + sessionId);
+            return degraded(sharedState);
+        }
+        ThreatMetrixEndpointRouter.RequestFactory requestFactory =
+                requestFactory(requestBody(sharedState, sessionId, config.policy()));
+        ThreatMetrixSpan http = span.child("tmx.http");
+        ThreatMetrixAuditLog.Entry.Builder auditEntry = auditLog.isEnabled() ? auditEntry(sharedState) : null;
+        long start = System.nanoTime();
+        Promise<Response, NeverThrowsException> response;
+        try {
+            response = send(orgId, apiKey, requestFactory);
+        } catch (NodeProcessException | RuntimeException e) {
+            inFlightCalls.release();
+            throw e;
+        }
+        response = response.thenAlways(inFlightCalls::release)
+                           .thenOnResult(result -> hedging.recordQuery(
+                                   TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        CountDownLatch quorum = new CountDownLatch(Math.max(0, Math.min(config.challengerQuorum(),
+                                                                        config.challengerPolicies().size())));
+        List<Challenger> challengers = sendChallengers(sharedState, sessionId, quorum, span);
+        if (config.hedgeRequests()) {
+            response = hedge(response, requestFactory, deadline, orgId, apiKey);
+        }
+        if (http.isSampled()) {
+            response = response.thenOnResult(result -> {
+                http.setAttribute("http.response.status_code", (long) result.getStatus().getCode());
+                http.end();
+            });
+        }
+        Promise<JsonValue, NodeProcessException> tmxResponse =
+                response.then(closeSilently(mapToJsonValue(span,
+                                                           config.sharedStateEncoding() == SharedStateEncoding.RAW)),
+                              noopExceptionFunction());
+
         try {
-            request = new Request().setUri(config.uri() + "?output_format=json");
-        } catch (URISyntaxException e) {
+            JsonValue json = deadline == Long.MAX_VALUE
+                    ? tmxResponse.getOrThrow()
+                    : tmxResponse.getOrThrow(Math.max(0, deadline - System.currentTimeMillis()),
+                                             TimeUnit.MILLISECONDS);
+            storeResponse(sharedState, clientIp).apply(json);
+            if (auditEntry != null) {
+                auditLog.record(describe(auditEntry, json, VERDICT_SOURCE_REMOTE)
+                                        .httpStatus(httpStatus(response))
+                                        .latency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                                        .build());
+            }
+        } catch (TimeoutException e) {
+            http.recordException(e);
+            response.cancel(true);
+            cancel(challengers);
+            logger.warn("Login time budget exhausted waiting for TMX response for session: " + sessionId);
+            if (auditEntry != null) {
+                auditLog.record(auditEntry.latency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                                          .error("Login time budget exhausted")
+                                          .build());
+            }
+            return budgetExhausted(sharedState);
+        } catch (Exception e) {
+            cancel(challengers);
+            logger.error("Unable to get TMX response for session: " + sessionId);
+            if (auditEntry != null) {
+                auditLog.record(auditEntry.httpStatus(httpStatus(response))
+                                          .latency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                                          .error(String.valueOf(e.getMessage()))
+                                          .build());
+            }
             throw new NodeProcessException(e);
+        } finally {
+            // ended when the response arrives, unless the node gave up on it first
+            http.end();
         }
-        final Form form = new Form();
+        storeChallengers(sharedState, challengers, quorum, deadline);
+
+        return Action.goTo(NEXT_OUTCOME).replaceSharedState(sharedState).build();
+    }
+
+    /**
+     * Builds the form-encoded body of a session query. When shared state variable names are declared, only those are
+     * read from shared state, and they are appended to the body without copying the parameter map.
+     *
+     * @param sharedState The shared state the query is made from.
+     * @param sessionId The session ID.
+     * @param policy The policy to query.
+     * @return The request body.
+     */
+    private String requestBody(JsonValue sharedState, String sessionId, String policy) {
+        Form form = new Form();
         form.add(ORG_ID, sharedState.get(ORG_ID).asString());
         form.add(API_KEY, String.valueOf(config.apiKey()));
         form.add(SESSION_ID, sessionId);
         form.add(SERVICE_TYPE, config.serviceType().toString());
         form.add(EVENT_TYPE, config.eventType().toString());
-        form.add(POLICY, config.policy());
-        if (config.addSharedStateVariablesToRequest()) {
+        form.add(POLICY, policy);
+        if (!config.addSharedStateVariablesToRequest()) {
+            return form.toFormString();
+        }
+        if (config.sharedStateVariableNames().isEmpty()) {
             Map<String, String> parameters = sharedState.get(TMX_SESSION_QUERY_PARAMETERS).asMap(String.class);
             for (Map.Entry<String, String> entry : parameters.entrySet()){
                 form.add(entry.getKey(), entry.getValue());
             }
+            return form.toFormString();
+        }
+        StringBuilder body = new StringBuilder(512).append(form.toFormString());
+        ThreatMetrixQueryParameters.of(config.sharedStateVariableNames())
+                                   .appendTo(body, sharedState.get(TMX_SESSION_QUERY_PARAMETERS).getObject(),
+                                             config.maxSharedStateVariableLength());
+        return body.toString();
+    }
+
+    private static ThreatMetrixEndpointRouter.RequestFactory requestFactory(String body) {
+        return uri -> {
+            Request request = new Request().setMethod("POST").setUri(uri);
+            request.getHeaders().put("Content-Type", "application/x-www-form-urlencoded");
+            request.getEntity().setString(body);
+            return request;
+        };
+    }
+
+    /**
+     * Sends the challenger queries, at the same time as the query for the configured policy. Each challenger query
+     * counts as a call in flight, and is skipped when load is being shed.
+     *
+     * @param sharedState The shared state the queries are made from.
+     * @param sessionId The session ID.
+     * @param quorum Counted down as each challenger query completes.
+     * @param span The span of the query.
+     * @return The challenger queries in flight.
+     * @throws NodeProcessException If an endpoint URI is invalid.
+     */
+    private List<Challenger> sendChallengers(JsonValue sharedState, String sessionId, CountDownLatch quorum,
+            ThreatMetrixSpan span) throws NodeProcessException {
+        if (config.challengerPolicies().isEmpty()) {
+            return emptyList();
+        }
+        String orgId = sharedState.get(ORG_ID).asString();
+        String apiKey = String.valueOf(config.apiKey());
+        List<Challenger> challengers = new ArrayList<>(config.challengerPolicies().size());
+        for (String policy : config.challengerPolicies()) {
+            if (!inFlightCalls.tryAcquire(config.loadShedding() ? config.maxInFlightRequests() : 0)) {
+                logger.debug("Too many TMX calls in flight, skipping challenger " + policy + " for session: "
+                        + sessionId);
+                quorum.countDown();
+                continue;
+            }
+            Promise<Response, NeverThrowsException> response;
+            try {
+                response = send(orgId, apiKey, requestFactory(requestBody(sharedState, sessionId, policy)));
+            } catch (NodeProcessException | RuntimeException e) {
+                inFlightCalls.release();
+                cancel(challengers);
+                throw e;
+            }
+            response = response.thenAlways(inFlightCalls::release);
+            Promise<JsonValue, NodeProcessException> result =
+                    response.then(closeSilently(mapToJsonValue(span, false)), noopExceptionFunction())
+                            .thenAlways(quorum::countDown);
+            challengers.add(new Challenger(policy, response, result));
         }
-        form.toRequestEntity(request);
-        Promise tmxResponse = clientHandler.handle(new RootContext(), request)
-                                           .thenAlways(closeSilentlyAsync(request))
-                                           .then(closeSilently(mapToJsonValue()), noopExceptionFunction())
-                                           .then(storeResponse(sharedState));
+        return challengers;
+    }
 
+    /**
+     * Waits, within the login deadline, for the configured number of challenger responses and stores a summary of
+     * every challenger response that is in by then. The rest are cancelled. Challenger responses feed the reason
+     * code and policy score statistics under their own policy, but never the caches or the blocklists.
+     *
+     * @param sharedState The shared state to store the summaries in.
+     * @param challengers The challenger queries.
+     * @param quorum Counted down as each challenger query completes.
+     * @param deadline The login deadline in epoch milliseconds.
+     */
+    private void storeChallengers(JsonValue sharedState, List<Challenger> challengers, CountDownLatch quorum,
+            long deadline) {
+        if (challengers.isEmpty()) {
+            return;
+        }
+        long wait = Math.min(config.challengerTimeout(), deadline - System.currentTimeMillis());
         try {
-            tmxResponse.getOrThrow();
-        } catch (Exception e) {
-            logger.error("Unable to get TMX response for session: " + sessionId);
+            if (wait > 0) {
+                quorum.await(wait, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        JsonValue results = json(object());
+        for (Challenger challenger : challengers) {
+            if (!challenger.result.isDone()) {
+                challenger.response.cancel(true);
+                continue;
+            }
+            try {
+                JsonValue response = challenger.result.getOrThrowUninterruptibly();
+                results.put(challenger.policy, object(field(REQUEST_ID, response.get(REQUEST_ID).asString()),
+                                                      field(POLICY_SCORE, response.get(POLICY_SCORE).asString()),
+                                                      field(REVIEW_STATUS, response.get(REVIEW_STATUS).asString()),
+                                                      field(REASON_CODE, response.get(REASON_CODE).getObject())));
+                reasonCodeStats.record(challenger.policy, config.eventType().toString(), response);
+                policyScoreStats.record(challenger.policy, config.eventType().toString(), response);
+                if (auditLog.isEnabled()) {
+                    auditLog.record(describe(auditEntry(sharedState).policy(challenger.policy), response,
+                                             VERDICT_SOURCE_CHALLENGER).build());
+                }
+            } catch (NodeProcessException e) {
+                logger.warn("TMX challenger query with policy " + challenger.policy + " failed", e);
+            }
+        }
+        sharedState.put(SESSION_QUERY_CHALLENGER_RESPONSES, results);
+    }
+
+    private static void cancel(List<Challenger> challengers) {
+        for (Challenger challenger : challengers) {
+            challenger.response.cancel(true);
+        }
+    }
+
+    /**
+     * Waits for the first request up to the configured latency percentile and, if it has not answered by then and the
+     * hedge budget allows, sends a second identical request. Whichever answers first without a server error wins and
+     * the other is cancelled. A server error is only returned once both requests have failed with one. The hedge
+     * counts as a call in flight like any other, so no hedge is sent while load is being shed, and its response feeds
+     * the error cache.
+     *
+     * @param first The first request.
+     * @param requestFactory Creates the hedge request.
+     * @param deadline The login deadline in epoch milliseconds. No hedge is sent if it would be reached first.
+     * @param orgId The org ID, for the error cache.
+     * @param apiKey The API key, for the error cache.
+     * @return The response that answered first, preferring one without a server error.
+     * @throws NodeProcessException If the thread was interrupted or an endpoint URI is invalid.
+     */
+    private Promise<Response, NeverThrowsException> hedge(Promise<Response, NeverThrowsException> first,
+            ThreatMetrixEndpointRouter.RequestFactory requestFactory, long deadline, String orgId, String apiKey)
+            throws NodeProcessException {
+        long delay = hedging.hedgeDelay(config.hedgeDelayPercentile());
+        if (delay < 0 || delay >= deadline - System.currentTimeMillis()) {
+            return first;
+        }
+        try {
+            first.getOrThrow(delay, TimeUnit.MILLISECONDS);
+            return first;
+        } catch (TimeoutException e) {
+            if (!inFlightCalls.tryAcquire(config.loadShedding() ? config.maxInFlightRequests() : 0)) {
+                logger.debug("Too many TMX calls in flight, not hedging the TMX session query");
+                return first;
+            }
+            if (!hedging.tryHedge(config.hedgeBudgetPercent())) {
+                inFlightCalls.release();
+                return first;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new NodeProcessException(e);
+        } catch (NeverThrowsException e) {
+            throw new IllegalStateException(e);
         }
+        logger.debug("Hedging TMX session query after " + delay + "ms");
+        Promise<Response, NeverThrowsException> second;
+        try {
+            second = send(orgId, apiKey, requestFactory);
+        } catch (NodeProcessException | RuntimeException e) {
+            inFlightCalls.release();
+            throw e;
+        }
+        second = second.thenAlways(inFlightCalls::release);
+        PromiseImpl<Response, NeverThrowsException> winner = PromiseImpl.create();
+        AtomicReference<Response> serverError = new AtomicReference<>();
+        race(first, second, winner, serverError);
+        race(second, first, winner, serverError);
+        return winner;
+    }
 
-        return goToNext().replaceSharedState(sharedState).build();
+    /**
+     * Completes the winner of a hedged query with the response of one of the requests. A server error is held back
+     * until the other request has answered, in case that one succeeds.
+     *
+     * @param own The request whose response is handled.
+     * @param other The other request, which is cancelled if this one wins.
+     * @param winner The promise of the winning response.
+     * @param serverError The server error response held back, shared by both requests.
+     */
+    private static void race(Promise<Response, NeverThrowsException> own, Promise<Response, NeverThrowsException> other,
+            PromiseImpl<Response, NeverThrowsException> winner, AtomicReference<Response> serverError) {
+        own.thenOnResult(response -> {
+            if (!response.getStatus().isServerError()) {
+                if (winner.tryHandleResult(response)) {
+                    other.cancel(true);
+                    closeHeldBack(serverError);
+                } else {
+                    response.close();
+                }
+            } else if (serverError.compareAndSet(null, response)) {
+                if (winner.isDone() && serverError.compareAndSet(response, null)) {
+                    response.close();
+                }
+            } else if (winner.tryHandleResult(response)) {
+                closeHeldBack(serverError);
+            } else {
+                response.close();
+            }
+        });
+    }
+
+    private static void closeHeldBack(AtomicReference<Response> serverError) {
+        Response response = serverError.getAndSet(null);
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    /**
+     * Uses a verdict that ThreatMetrix returned for an earlier query. A shared result is keyed by the session ID, so it
+     * is this login's own query and keeps its {@code request_id}. A cached or degraded verdict belongs to another
+     * login, so no {@code request_id} is set for it and the ThreatMetrix Update Review Node leaves the earlier request
+     * alone.
+     *
+     * @param sharedState The shared state to store the verdict in.
+     * @param verdict The earlier session query response.
+     * @param source Where the verdict came from.
+     * @return The action of the node.
+     */
+    private Action reuse(JsonValue sharedState, JsonValue verdict, String source) {
+        putSessionQueryResponse(sharedState, verdict);
+        if (VERDICT_SOURCE_SHARED_CACHE.equals(source) && verdict.isDefined(REQUEST_ID)) {
+            sharedState.put(REQUEST_ID, verdict.get(REQUEST_ID).getObject());
+        } else {
+            sharedState.remove(REQUEST_ID);
+        }
+        sharedState.put(TMX_VERDICT_SOURCE, source);
+        audit(sharedState, verdict, source);
+        return Action.goTo(NEXT_OUTCOME).replaceSharedState(sharedState).build();
+    }
+
+    private ThreatMetrixAuditLog.Entry.Builder auditEntry(JsonValue sharedState) {
+        return new ThreatMetrixAuditLog.Entry.Builder("session_query")
+                .orgId(sharedState.get(ORG_ID).asString())
+                .sessionId(sharedState.get(SESSION_ID).asString())
+                .eventType(config.eventType().toString())
+                .policy(config.policy());
+    }
+
+    private void audit(JsonValue sharedState, JsonValue response, String source) {
+        if (auditLog.isEnabled()) {
+            auditLog.record(describe(auditEntry(sharedState), response, source).build());
+        }
+    }
+
+    private static ThreatMetrixAuditLog.Entry.Builder describe(ThreatMetrixAuditLog.Entry.Builder entry,
+            JsonValue response, String source) {
+        return entry.requestId(response.get(REQUEST_ID).asString())
+                    .policyScore(response.get(POLICY_SCORE).asString())
+                    .reviewStatus(response.get(REVIEW_STATUS).asString())
+                    .reasonCodes(response.get(REASON_CODE).asList(String.class))
+                    .source(source);
+    }
+
+    private Action budgetExhausted(JsonValue sharedState) {
+        return Action.goTo(BUDGET_EXHAUSTED_OUTCOME).replaceSharedState(sharedState).build();
+    }
+
+    /**
+     * Sends a session query through the endpoint router and caches an authentication or configuration error against
+     * the endpoint that returned it. The router only fails over on server errors, so that is the endpoint of the last
+     * request created for the query.
+     *
+     * @param orgId The org ID, for the error cache.
+     * @param apiKey The API key, for the error cache.
+     * @param requestFactory Creates the request for an endpoint.
+     * @return The response.
+     * @throws NodeProcessException If an endpoint URI is invalid.
+     */
+    private Promise<Response, NeverThrowsException> send(String orgId, String apiKey,
+            ThreatMetrixEndpointRouter.RequestFactory requestFactory) throws NodeProcessException {
+        AtomicReference<String> endpoint = new AtomicReference<>();
+        return endpointRouter.send(endpoints(), uri -> {
+            endpoint.set(uri.toString());
+            return requestFactory.apply(uri);
+        }).thenOnResult(result -> errorCache.record(orgId, apiKey, endpoint.get(), result));
+    }
+
+    /**
+     * The session query endpoints, primary first.
+     *
+     * @return The endpoint URIs.
+     */
+    private List<String> endpoints() {
+        List<String> endpoints = new ArrayList<>(1 + config.failoverUris().size());
+        endpoints.add(config.uri() + "?output_format=json");
+        for (String uri : config.failoverUris()) {
+            endpoints.add(uri + "?output_format=json");
+        }
+        return endpoints;
     }
 
     /**
@@ -182,36 +907,117 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
      * that returns the HTTP entity content as JsonValue, and throws an {@link NodeProcessException} if
      * the response is not successful (200 family status code).
      *
+     * @param span The span of the query, under which the parsing is traced.
+     * @param raw Whether the response is only indexed, to be decoded attribute by attribute when read.
      * @return response entity as a JsonValue.
      */
-    private static Function<Response, JsonValue, NodeProcessException> mapToJsonValue() {
+    private static Function<Response, JsonValue, NodeProcessException> mapToJsonValue(ThreatMetrixSpan span,
+            boolean raw) {
         return response -> {
+            ThreatMetrixSpan parse = span.child("tmx.parse");
             try {
                 if (!response.getStatus().isSuccessful()) {
-                    throw response.getCause();
+                    throw new NodeProcessException("Unable to process request. TMX returned " + response.getStatus(),
+                                                   response.getCause());
+                }
+                if (parse.isSampled()) {
+                    parse.setAttribute("http.response.body.size", (long) response.getEntity().getBytes().length);
+                }
+                if (raw) {
+                    return new JsonValue(ThreatMetrixRawResponse.parse(response.getEntity().getString()));
                 }
                 return json(response.getEntity().getJson());
+            } catch (NodeProcessException e) {
+                parse.recordException(e);
+                throw e;
             } catch (Exception e) {
-                throw new NodeProcessException("Unable to process request. " + response.getEntity().toString(), e);
+                parse.recordException(e);
+                throw new NodeProcessException("Unable to process request. Invalid TMX response", e);
+            } finally {
+                parse.end();
             }
         };
     }
 
     /**
-     * Stores all the information received from an authentication or authorization server.
+     * Stores all the information received from an authentication or authorization server. The response goes to the
+     * shared state first; the caches, stores and statistics that it also feeds are each written separately, and an
+     * error in one of them is logged rather than failing the login.
      *
      * @param sharedState JsonValue to store the response
+     * @param clientIp The client IP address of the login, as AM resolved it.
      * @return Void when storage is complete.
      */
-    private Function<JsonValue, Void, NodeProcessException> storeResponse(final JsonValue sharedState) {
+    private Function<JsonValue, Void, NodeProcessException> storeResponse(final JsonValue sharedState,
+            final String clientIp) {
         return response -> {
             // store the token response in the jwt token
-            sharedState.put(SESSION_QUERY_RESPONSE, response);
+            putSessionQueryResponse(sharedState, response);
             sharedState.put(REQUEST_ID, response.get(REQUEST_ID));
+            sharedState.put(TMX_VERDICT_SOURCE, VERDICT_SOURCE_REMOTE);
+            String eventType = config.eventType().toString();
+            record("verdict cache", () -> verdictCache.put(sharedState.get(USERNAME).asString(), response));
+            record("reputation store", () -> reputationStore.record(response, clientIp));
+            record("known bad device filter", () -> knownBadDeviceFilter.record(response));
+            record("response recorder", () -> recorder.record(response));
+            record("reason code statistics", () -> reasonCodeStats.record(config.policy(), eventType, response));
+            record("policy score statistics", () -> policyScoreStats.record(config.policy(), eventType, response));
+            if (config.sharedResultCache()) {
+                record("shared result cache", () -> resultCache.put(resultCacheKey(sharedState), response,
+                                                                    config.sharedResultCacheTtl()));
+            }
+            if (!config.blocklistReasonCodes().isEmpty()) {
+                record("IP blocklist", () -> ipBlocklist.learn(response, config.blocklistReasonCodes(),
+                                                               config.blocklistIpv4PrefixLength(),
+                                                               config.blocklistIpv6PrefixLength()));
+            }
             return null;
         };
     }
 
+    private void record(String store, Runnable write) {
+        try {
+            write.run();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to record the TMX response in the " + store, e);
+        }
+    }
+
+    private String resultCacheKey(JsonValue sharedState) {
+        return ThreatMetrixResultCache.key(sharedState.get(ORG_ID).asString(), sharedState.get(SESSION_ID).asString(),
+                                           config.policy(), config.eventType().toString(),
+                                           config.serviceType().toString());
+    }
+
+    private void putSessionQueryResponse(JsonValue sharedState, JsonValue response) {
+        if (config.sharedStateEncoding() == SharedStateEncoding.COMPRESSED) {
+            sharedState.put(SESSION_QUERY_RESPONSE, ThreatMetrixSharedStateCodec.encode(response));
+        } else if (config.sharedStateEncoding() == SharedStateEncoding.RAW) {
+            sharedState.put(SESSION_QUERY_RESPONSE, ThreatMetrixRawResponse.encode(response));
+        } else if (response.getObject() instanceof ThreatMetrixRawResponse) {
+            // a raw response cached by a node with the raw encoding, which scripts could not modify
+            sharedState.put(SESSION_QUERY_RESPONSE, response.copy());
+        } else {
+            sharedState.put(SESSION_QUERY_RESPONSE, response);
+        }
+    }
+
+    /**
+     * A challenger policy query in flight.
+     */
+    private static final class Challenger {
+        private final String policy;
+        private final Promise<Response, NeverThrowsException> response;
+        private final Promise<JsonValue, NodeProcessException> result;
+
+        private Challenger(String policy, Promise<Response, NeverThrowsException> response,
+                Promise<JsonValue, NodeProcessException> result) {
+            this.policy = policy;
+            this.response = response;
+            this.result = result;
+        }
+    }
+
     /**
      * Restricts which output fields are returned based on the level of access that a customer has.
      * The service type is linked to an API Key and verified during a call. Generally, the most common service type
@@ -259,6 +1065,44 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
     }
 
 
+    /**
+     * How the session query response is held in shared state.
+     */
+    public enum SharedStateEncoding {
+        /**
+         * As a JSON object, readable by any node or script.
+         */
+        JSON,
+        /**
+         * Compressed, readable only by the ThreatMetrix nodes.
+         */
+        COMPRESSED,
+        /**
+         * As the JSON text received, indexed rather than parsed and readable only by the ThreatMetrix nodes.
+         */
+        RAW
+    }
+
+    /**
+     * The review status of a degraded verdict.
+     */
+    public enum ReviewStatus {
+        PASS("pass"),
+        CHALLENGE("challenge"),
+        REVIEW("review"),
+        REJECT("reject");
+
+        private final String reviewStatus;
+        ReviewStatus(String reviewStatus) {
+            this.reviewStatus = reviewStatus;
+        }
+
+        @Override
+        public String toString(){
+            return reviewStatus;
+        }
+    }
+
     /**
      * Specifies the type of transaction or event.
      */
@@ -298,15 +1142,40 @@ public class ThreatMetrixSessionQueryNode extends SingleOutcomeNode {
         }
     }
 
+    /**
+     * Defines the possible outcomes from this ThreatMetrix Session Query Node. The budget exhausted outcome is only
+     * offered when the login time budget is used.
+     */
+    public static class ThreatMetrixSessionQueryOutcomeProvider
+            implements OutcomeProvider {
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+                                                                       ThreatMetrixSessionQueryNode.class
+                                                                               .getClassLoader());
+            List<Outcome> outcomes = new ArrayList<>();
+            outcomes.add(new Outcome(NEXT_OUTCOME, bundle.getString("outcome")));
+            if (nodeAttributes != null && nodeAttributes.get("useLoginTimeBudget").defaultTo(false).asBoolean()) {
+                outcomes.add(new Outcome(BUDGET_EXHAUSTED_OUTCOME, bundle.getString("budgetExhaustedOutcome")));
+            }
+            return outcomes;
+        }
+    }
+
     @Override
     public InputState[] getInputs() {
         return new InputState[]{new InputState(SESSION_ID, true), new InputState(ORG_ID, true), new InputState(
-                TMX_SESSION_QUERY_PARAMETERS, false)};
+                TMX_SESSION_QUERY_PARAMETERS, false), new InputState(USERNAME, false), new InputState(TMX_DEVICE_ID,
+                false), new InputState(TMX_DEADLINE, false)};
     }
 
     @Override
     public OutputState[] getOutputs() {
-        return new OutputState[]{new OutputState(SESSION_QUERY_RESPONSE, ImmutableMap.of("outcome", true)),
-                new OutputState(REQUEST_ID, ImmutableMap.of("outcome", true))};
+        Map<String, Boolean> outcomes = ImmutableMap.of(NEXT_OUTCOME, true, BUDGET_EXHAUSTED_OUTCOME, false);
+        return new OutputState[]{new OutputState(SESSION_QUERY_RESPONSE, outcomes),
+                new OutputState(REQUEST_ID, ImmutableMap.of(NEXT_OUTCOME, false, BUDGET_EXHAUSTED_OUTCOME, false)),
+                new OutputState(TMX_VERDICT_SOURCE, outcomes),
+                new OutputState(SESSION_QUERY_CHALLENGER_RESPONSES, ImmutableMap.of(NEXT_OUTCOME, false,
+                                                                                    BUDGET_EXHAUSTED_OUTCOME, false))};
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.forgerock.json.JsonValue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compact encoding of ThreatMetrix responses held in shared state.
+ * <p>
+ * A response is serialized to JSON and deflated with a preset dictionary of the attribute names and common values
+ * that ThreatMetrix returns, so that even the first occurrence of each name is coded as a back reference, and the
+ * result is stored as a Base64 string with a version prefix. On a typical 4KB session-policy response this stores
+ * about a third of the characters of the plain JSON. Decoding is left to the nodes that read the response.
+ */
+final class ThreatMetrixSharedStateCodec {
+
+    private static final String PREFIX = "tmx1:";
+    private static final int MAX_DECODED_BYTES = 1024 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * Deflate favours the end of the dictionary for short distances, so the most common strings come last. Changing
+     * the dictionary requires a new prefix, as existing sessions may hold values encoded with this one.
+     */
+    private static final byte[] DICTIONARY = ("\"account_address_city\":\"\",\"account_email\":\"\",\"account_login\":"
+            + "\"\",\"browser_string_hash\":\"\",\"headers_name_value_hash\":\"\",\"headers_order_string_hash\":\"\","
+            + "\"mime_type_hash\":\"\",\"plugin_hash\":\"\",\"js_fonts_hash\":\"\",\"js_fonts_number\":\"\","
+            + "\"css_image_loaded\":\"yes\",\"image_loaded\":\"yes\",\"image_anomaly\":\"\",\"flash_anomaly\":\"\","
+            + "\"url_anomaly\":\"\",\"system_state\":\"\",\"enabled_ck\":\"yes\",\"enabled_fl\":\"no\","
+            + "\"enabled_im\":\"yes\",\"enabled_js\":\"yes\",\"cookies_enabled\":\"yes\",\"unknown_session\":\"no\","
+            + "\"ua_mobile\":\"no\",\"ua_browser\":\"\",\"ua_os\":\"\",\"ua_platform\":\"\",\"screen_aspect_ratio\":"
+            + "\"\",\"screen_color_depth\":\"\",\"screen_dpi\":\"\",\"screen_res\":\"\",\"time_zone\":\"\","
+            + "\"time_zone_dst_offset\":\"\",\"page_time_on\":\"\",\"http_os_signature\":\"\",\"http_os_sig_raw\":\"\","
+            + "\"js_browser\":\"\",\"js_browser_string\":\"Mozilla/5.0 \",\"browser_string\":\"Mozilla/5.0 \","
+            + "\"browser\":\"\",\"browser_language\":\"\",\"browser_version\":\"\",\"os\":\"\",\"os_version\":\"\","
+            + "\"agent_type\":\"browser_computer\",\"device_attributes\":\"\",\"device_fingerprint\":\"\","
+            + "\"device_fingerprint_score\":\"\",\"api_call_datetime\":\"\",\"api_caller_ip\":\"\",\"api_type\":"
+            + "\"session-query\",\"api_version\":\"\",\"event_datetime\":\"\",\"profiling_datetime\":\"\","
+            + "\"policy_engine_version\":\"\",\"request_duration\":\"\",\"dns_ip\":\"\",\"dns_ip_city\":\"\","
+            + "\"dns_ip_geo\":\"\",\"dns_ip_isp\":\"\",\"dns_ip_latitude\":\"\",\"dns_ip_longitude\":\"\","
+            + "\"dns_ip_organization\":\"\",\"dns_ip_region\":\"\",\"input_ip_address\":\"\",\"input_ip_city\":\"\","
+            + "\"input_ip_first_seen\":\"\",\"input_ip_geo\":\"\",\"input_ip_isp\":\"\",\"input_ip_last_event\":\"\","
+            + "\"input_ip_last_update\":\"\",\"input_ip_latitude\":\"\",\"input_ip_longitude\":\"\","
+            + "\"input_ip_organization\":\"\",\"input_ip_region\":\"\",\"input_ip_result\":\"success\","
+            + "\"input_ip_score\":\"0\",\"input_ip_worst_score\":\"0\",\"true_ip_city\":\"\",\"true_ip_first_seen\":"
+            + "\"\",\"true_ip_geo\":\"\",\"true_ip_isp\":\"\",\"true_ip_last_event\":\"\",\"true_ip_last_update\":"
+            + "\"\",\"true_ip_latitude\":\"\",\"true_ip_longitude\":\"\",\"true_ip_organization\":\"\","
+            + "\"true_ip_region\":\"\",\"true_ip_result\":\"success\",\"true_ip_score\":\"0\","
+            + "\"true_ip_worst_score\":\"0\",\"true_ip\":\"\",\"fuzzy_device_first_seen\":\"\",\"fuzzy_device_id\":"
+            + "\"\",\"fuzzy_device_id_confidence\":\"100.00\",\"fuzzy_device_last_event\":\"\","
+            + "\"fuzzy_device_last_update\":\"\",\"fuzzy_device_match_result\":\"success\",\"fuzzy_device_result\":"
+            + "\"success\",\"fuzzy_device_score\":\"0\",\"fuzzy_device_worst_score\":\"0\",\"device_first_seen\":\"\","
+            + "\"device_id\":\"\",\"device_last_event\":\"\",\"device_last_update\":\"\",\"device_match_result\":"
+            + "\"success\",\"device_result\":\"success\",\"device_score\":\"0\",\"device_worst_score\":\"0\","
+            + "\"smart_id_confidence\":\"100.00\",\"smart_id_first_seen\":\"\",\"smart_id_last_event\":\"\","
+            + "\"smart_id_last_update\":\"\",\"smart_id_result\":\"success\",\"smart_id_score\":\"0\","
+            + "\"smart_id_worst_score\":\"0\",\"smart_id\":\"\",\"exact_id\":\"\",\"tmx_reason_code\":[],"
+            + "\"tmx_summary_reason_code\":[],\"tmx_risk_rating\":\"neutral\",\"risk_rating\":\"neutral\","
+            + "\"summary_risk_score\":\"0\",\"service_type\":\"session-policy\",\"event_type\":\"login\","
+            + "\"policy\":\"default\",\"org_id\":\"\",\"session_id\":\"\",\"request_id\":\"\",\"request_result\":"
+            + "\"success\",\"reason_code\":[],\"policy_score\":\"0\",\"review_status\":\"pass\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private ThreatMetrixSharedStateCodec() {
+    }
+
+    /**
+     * Encodes a response.
+     *
+     * @param response The response.
+     * @return The encoded response.
+     */
+    static String encode(JsonValue response) {
+        try {
+            byte[] json = MAPPER.writeValueAsBytes(response.getObject());
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(json);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2);
+                byte[] buffer = new byte[2048];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return PREFIX + Base64.getEncoder().encodeToString(out.toByteArray());
+            } finally {
+                deflater.end();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode ThreatMetrix response", e);
+        }
+    }
+
+    /**
+     * Whether a shared state value was produced by {@link #encode(JsonValue)}.
+     *
+     * @param value The shared state value.
+     * @return True if the value is an encoded response.
+     */
+    static boolean isEncoded(JsonValue value) {
+        return value.isString() && value.asString().startsWith(PREFIX);
+    }
+
+    /**
+     * Decodes a response.
+     *
+     * @param encoded The encoded response.
+     * @return The response.
+     * @throws IOException If the value is not a valid encoded response.
+     */
+    static JsonValue decode(String encoded) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = Base64.getDecoder().decode(encoded.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid encoded ThreatMetrix response", e);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw deflate streams do not announce the dictionary, so it is always set up front
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated encoded ThreatMetrix response");
+                }
+                out.write(buffer, 0, length);
+                if (out.size() > MAX_DECODED_BYTES) {
+                    throw new IOException("Encoded ThreatMetrix response is too large");
+                }
+            }
+            return new JsonValue(MAPPER.readValue(out.toByteArray(), Map.class));
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid encoded ThreatMetrix response", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timed operation of a ThreatMetrix node, following the OpenTelemetry span model.
+ * <p>
+ * Spans that were not sampled are all the same shared instance, whose methods do nothing, so that instrumentation
+ * costs next to nothing when tracing is off.
+ */
+public final class ThreatMetrixSpan {
+
+    static final ThreatMetrixSpan NOT_SAMPLED = new ThreatMetrixSpan();
+
+    private final ThreatMetrixTracer tracer;
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final long startEpochNanos;
+    private final long startNanoTime;
+    private final Map<String, Object> attributes;
+    private final AtomicLong endEpochNanos = new AtomicLong();
+    private volatile boolean error;
+
+    private ThreatMetrixSpan() {
+        this.tracer = null;
+        this.name = "";
+        this.traceId = "";
+        this.spanId = "";
+        this.parentSpanId = null;
+        this.startEpochNanos = 0;
+        this.startNanoTime = 0;
+        this.attributes = Collections.emptyMap();
+    }
+
+    ThreatMetrixSpan(ThreatMetrixTracer tracer, String name, String traceId, String spanId, String parentSpanId,
+            long startEpochMillis) {
+        this.tracer = tracer;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.startNanoTime = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, System.currentTimeMillis() - startEpochMillis));
+        this.startEpochNanos = TimeUnit.MILLISECONDS.toNanos(startEpochMillis);
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Whether the span is recorded. Use this to skip work that only feeds span attributes.
+     *
+     * @return True if the span was sampled.
+     */
+    public boolean isSampled() {
+        return tracer != null;
+    }
+
+    /**
+     * Starts a span for part of the work of this span.
+     *
+     * @param childName The name of the child span.
+     * @return The child span, not sampled if this span is not.
+     */
+    ThreatMetrixSpan child(String childName) {
+        if (tracer == null) {
+            return this;
+        }
+        return new ThreatMetrixSpan(tracer, childName, traceId, tracer.newSpanId(), spanId,
+                                    System.currentTimeMillis());
+    }
+
+    /**
+     * Sets an attribute of the span.
+     *
+     * @param key The attribute name, following OpenTelemetry semantic conventions where one exists.
+     * @param value A string, boolean, long or double value. Null values are ignored.
+     * @return This span.
+     */
+    ThreatMetrixSpan setAttribute(String key, Object value) {
+        if (tracer != null && value != null) {
+            synchronized (attributes) {
+                attributes.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Marks the span as failed and records the exception type and message.
+     *
+     * @param exception The exception.
+     * @return This span.
+     */
+    ThreatMetrixSpan recordException(Throwable exception) {
+        if (tracer != null) {
+            error = true;
+            setAttribute("exception.type", exception.getClass().getName());
+            setAttribute("exception.message", exception.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Ends the span and exports it. Only the first call has any effect.
+     */
+    void end() {
+        if (tracer == null || endEpochNanos.get() != 0) {
+            return;
+        }
+        // the response callback and the waiting thread can both end the HTTP span, only one of them exports it
+        if (endEpochNanos.compareAndSet(0, startEpochNanos + Math.max(0, System.nanoTime() - startNanoTime))) {
+            tracer.export(this);
+        }
+    }
+
+    /**
+     * The span name.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The trace the span belongs to.
+     *
+     * @return The trace ID as 32 lowercase hex digits.
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * The span identifier.
+     *
+     * @return The span ID as 16 lowercase hex digits.
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * The identifier of the parent span.
+     *
+     * @return The parent span ID, or null for a root span.
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * When the span started.
+     *
+     * @return The start time in nanoseconds since the epoch.
+     */
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    /**
+     * When the span ended.
+     *
+     * @return The end time in nanoseconds since the epoch, or zero if the span has not ended.
+     */
+    public long getEndEpochNanos() {
+        return endEpochNanos.get();
+    }
+
+    /**
+     * The span attributes.
+     *
+     * @return A snapshot of the attributes, in the order they were set.
+     */
+    public Map<String, Object> getAttributes() {
+        synchronized (attributes) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        }
+    }
+
+    /**
+     * Whether the operation failed.
+     *
+     * @return True if an exception was recorded.
+     */
+    public boolean isError() {
+        return error;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Receives the ThreatMetrix node spans that were sampled.
+ * <p>
+ * Implementations are discovered with {@link java.util.ServiceLoader}: add a jar containing the implementation and a
+ * {@code META-INF/services/org.forgerock.openam.auth.nodes.ThreatMetrixSpanExporter} file to the AM classpath, for
+ * example to forward spans to an OpenTelemetry SDK. When none is found, spans are written as OTLP JSON lines to the
+ * {@code amAuth} debug log or to a file.
+ * <p>
+ * Spans are exported on the thread that ends them, which is usually an authentication thread, so implementations
+ * should hand spans off rather than block.
+ */
+public interface ThreatMetrixSpanExporter {
+
+    /**
+     * Exports an ended span.
+     *
+     * @param span The span.
+     */
+    void export(ThreatMetrixSpan span);
+
+    /**
+     * Flushes and releases any resources held by the exporter. Called when the plugin shuts down.
+     */
+    default void shutdown() {
+    }
+}
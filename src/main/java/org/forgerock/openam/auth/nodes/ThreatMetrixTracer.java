@@ -0,0 +1,220 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_PARENT;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_ROOT;
+
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Creates the spans of the ThreatMetrix nodes and hands them to the configured {@link ThreatMetrixSpanExporter}.
+ * <p>
+ * The sampling decision is made once per login, by the first node that starts a span, and carried to the following
+ * nodes in shared state as a W3C {@code traceparent}. Its span ID is taken by the first span started for the login,
+ * which is the root of the trace, and every later node span of the login is a child of that root. When
+ * the sample rate is zero, the default, no decision is made, nothing is written to shared state and every span is the
+ * shared not sampled instance.
+ */
+@Singleton
+class ThreatMetrixTracer {
+
+    static final String SAMPLE_RATE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.tracing.sampleRate";
+    static final String FILE_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.tracing.file";
+    static final String NOT_SAMPLED_TRACE_PARENT = "00-00000000000000000000000000000000-0000000000000000-00";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String VERSION = "00-";
+    private static final String SAMPLED = "-01";
+
+    private final int sampleRate;
+    private final ThreatMetrixSpanExporter exporter;
+
+    ThreatMetrixTracer() {
+        this.sampleRate = Math.min(100, SystemProperties.getAsInt(SAMPLE_RATE_PROPERTY, 0));
+        this.exporter = sampleRate > 0 ? loadExporter() : null;
+    }
+
+    /**
+     * Creates a tracer that exports to the given exporter rather than the configured one.
+     *
+     * @param sampleRate The percentage of logins traced, or zero for a tracer that samples nothing.
+     * @param exporter The exporter of the sampled spans. May be null if the sample rate is zero.
+     */
+    ThreatMetrixTracer(int sampleRate, ThreatMetrixSpanExporter exporter) {
+        this.sampleRate = Math.min(100, sampleRate);
+        this.exporter = exporter;
+    }
+
+    private static ThreatMetrixSpanExporter loadExporter() {
+        Iterator<ThreatMetrixSpanExporter> exporters = ServiceLoader.load(ThreatMetrixSpanExporter.class,
+                ThreatMetrixTracer.class.getClassLoader()).iterator();
+        if (exporters.hasNext()) {
+            ThreatMetrixSpanExporter exporter = exporters.next();
+            logger.info("Exporting ThreatMetrix spans with " + exporter.getClass().getName());
+            return exporter;
+        }
+        String file = SystemProperties.get(FILE_PROPERTY);
+        if (StringUtils.isNotBlank(file)) {
+            return ThreatMetrixJsonSpanExporter.toFile(Paths.get(file));
+        }
+        return ThreatMetrixJsonSpanExporter.toLog();
+    }
+
+    /**
+     * Decides whether the login is traced, if no earlier node has, and records the decision in shared state.
+     *
+     * @param sharedState The tree shared state.
+     * @return True if the login is traced.
+     */
+    boolean sample(JsonValue sharedState) {
+        if (sampleRate <= 0) {
+            return false;
+        }
+        String traceParent = sharedState.get(TMX_TRACE_PARENT).asString();
+        if (traceParent == null) {
+            if (ThreadLocalRandom.current().nextInt(100) >= sampleRate) {
+                sharedState.put(TMX_TRACE_PARENT, NOT_SAMPLED_TRACE_PARENT);
+                return false;
+            }
+            sharedState.put(TMX_TRACE_PARENT, VERSION + newTraceId() + '-' + newSpanId() + SAMPLED);
+            sharedState.put(TMX_TRACE_ROOT, true);
+            return true;
+        }
+        return traceParent.endsWith(SAMPLED);
+    }
+
+    /**
+     * Starts a span for a node of a login.
+     *
+     * @param name The span name.
+     * @param sharedState The tree shared state, which carries the trace of the login.
+     * @return The span, which must be ended.
+     */
+    ThreatMetrixSpan startSpan(String name, JsonValue sharedState) {
+        return startSpan(name, sharedState, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a span for a node of a login that began at an earlier time, for example in a previous request of the
+     * same login. The first span started for a login is its root, and takes the span ID of the trace parent.
+     *
+     * @param name The span name.
+     * @param sharedState The tree shared state, which carries the trace of the login.
+     * @param startEpochMillis When the operation started.
+     * @return The span, which must be ended.
+     */
+    ThreatMetrixSpan startSpan(String name, JsonValue sharedState, long startEpochMillis) {
+        if (!sample(sharedState)) {
+            return ThreatMetrixSpan.NOT_SAMPLED;
+        }
+        // 00-<32 hex trace id>-<16 hex parent span id>-01
+        String traceParent = sharedState.get(TMX_TRACE_PARENT).asString();
+        String traceId = traceParent.substring(3, 35);
+        String rootSpanId = traceParent.substring(36, 52);
+        if (sharedState.isDefined(TMX_TRACE_ROOT)) {
+            sharedState.remove(TMX_TRACE_ROOT);
+            return new ThreatMetrixSpan(this, name, traceId, rootSpanId, null, startEpochMillis);
+        }
+        return new ThreatMetrixSpan(this, name, traceId, newSpanId(), rootSpanId, startEpochMillis);
+    }
+
+    /**
+     * Runs a node's processing within a span that records the outcome or the failure.
+     *
+     * @param name The span name.
+     * @param sharedState The tree shared state, which carries the trace of the login.
+     * @param processing The processing of the node.
+     * @return The action returned by the processing.
+     * @throws NodeProcessException If the processing fails.
+     */
+    Action trace(String name, JsonValue sharedState, TracedProcessing processing) throws NodeProcessException {
+        ThreatMetrixSpan span = startSpan(name, sharedState);
+        try {
+            Action action = processing.process(span);
+            span.setAttribute("tmx.outcome", action.outcome);
+            return action;
+        } catch (NodeProcessException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Shuts the exporter down.
+     */
+    void shutdown() {
+        if (exporter != null) {
+            exporter.shutdown();
+        }
+    }
+
+    void export(ThreatMetrixSpan span) {
+        try {
+            exporter.export(span);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to export ThreatMetrix span " + span.getName(), e);
+        }
+    }
+
+    String newSpanId() {
+        return hex(ThreadLocalRandom.current().nextLong() | 1L, 16);
+    }
+
+    private static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return hex(random.nextLong(), 16) + hex(random.nextLong() | 1L, 16);
+    }
+
+    private static String hex(long value, int digits) {
+        String hex = Long.toHexString(value);
+        return StringUtils.leftPad(hex, digits, '0');
+    }
+
+    /**
+     * The processing of a node, given the span it runs in.
+     */
+    @FunctionalInterface
+    interface TracedProcessing {
+
+        /**
+         * Processes the node.
+         *
+         * @param span The node span, to which the processing may add attributes and child spans.
+         * @return The node action.
+         * @throws NodeProcessException If the processing fails.
+         */
+        Action process(ThreatMetrixSpan span) throws NodeProcessException;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.http.protocol.Responses.noopExceptionFunction;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ACTION;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.API_KEY;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.FINAL_REVIEW_STATUS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.LINE_OF_BUSINESS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.NOTES;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_RESULT;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_RESULT_SUCCESS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TAG_CONTEXT;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TAG_NAME;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.UPDATE_REVIEW_STATUS;
+import static org.forgerock.util.CloseSilentlyFunction.closeSilently;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Client of the ThreatMetrix update API, shared by the ThreatMetrix Update Review Node and
+ * {@link ThreatMetrixBulkUpdate}.
+ * <p>
+ * {@link #send(List, Update)} sends one update straight away, and {@link #sendNow(List, Update)} does the same for
+ * a caller that does not wait but wants the {@link Result}. {@link #submit(List, Update)} is for bulk work: the
+ * update is held for the coalescing window, during which a later update for the same org and request replaces it, and
+ * is then sent with at most the configured number of updates in flight, so that thousands of updates go over the
+ * shared client's persistent connections without opening one per update. Each submitted update completes with its
+ * own {@link Result}.
+ */
+@Singleton
+class ThreatMetrixUpdateClient implements ThreatMetrixUpdateClientMXBean {
+
+    static final String COALESCE_WINDOW_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.updateClient.coalesceWindowMillis";
+    static final String MAX_CONCURRENCY_PROPERTY =
+            "org.forgerock.openam.auth.nodes.threatmetrix.updateClient.maxConcurrency";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+
+    private final ThreatMetrixEndpointRouter endpointRouter;
+    private final ThreatMetrixErrorCache errorCache;
+    private final long coalesceWindowMillis;
+    private final int maxConcurrency;
+    private final ScheduledExecutorService scheduler;
+    /** Updates in their coalescing window, by org and request. Guards {@link #ready} and {@link #inFlight}. */
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Deque<Pending> ready = new ArrayDeque<>();
+    private int inFlight;
+    /** Whether a thread is in the {@link #dispatch()} loop, which any other caller leaves to that thread. */
+    private boolean dispatching;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendTimeouts = new AtomicLong();
+
+    @Inject
+    ThreatMetrixUpdateClient(ThreatMetrixEndpointRouter endpointRouter, ThreatMetrixErrorCache errorCache) {
+        this(endpointRouter, errorCache, SystemProperties.getAsLong(COALESCE_WINDOW_PROPERTY, 1000),
+             SystemProperties.getAsInt(MAX_CONCURRENCY_PROPERTY, 16));
+        ThreatMetrixMonitoring.register("UpdateClient", this, ThreatMetrixUpdateClientMXBean.class);
+    }
+
+    /**
+     * Creates a client with the given settings rather than the advanced server properties. It is not published over
+     * JMX.
+     *
+     * @param endpointRouter Sends the updates.
+     * @param errorCache Remembers the recent errors of each org.
+     * @param coalesceWindowMillis How long a submitted update waits for later updates of the same request.
+     * @param maxConcurrency The maximum number of coalesced updates in flight.
+     */
+    ThreatMetrixUpdateClient(ThreatMetrixEndpointRouter endpointRouter, ThreatMetrixErrorCache errorCache,
+            long coalesceWindowMillis, int maxConcurrency) {
+        this.endpointRouter = endpointRouter;
+        this.errorCache = errorCache;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ThreatMetrix update coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends an update straight away. If ThreatMetrix recently rejected the org's credentials or the endpoint, the
+     * same error response is returned without sending the update.
+     *
+     * @param endpoints The equivalent update endpoint URIs, in configured order.
+     * @param update The update.
+     * @return The HTTP response.
+     * @throws NodeProcessException If an endpoint URI is invalid.
+     */
+    Promise<Response, NeverThrowsException> send(List<String> endpoints, Update update) throws NodeProcessException {
+        sent.incrementAndGet();
+        Status cachedError = errorCache.getCachedError(update.orgId, update.apiKey,
+                                                       endpointRouter.order(endpoints).get(0));
+        if (cachedError != null) {
+            return newResultPromise(new Response(cachedError));
+        }
+        Form form = update.toForm();
+        // the router only fails over on server errors, so the last endpoint a request was created for answered
+        AtomicReference<String> endpoint = new AtomicReference<>();
+        return endpointRouter.send(endpoints, uri -> {
+            endpoint.set(uri.toString());
+            Request request = new Request().setUri(uri);
+            form.toRequestEntity(request);
+            return request;
+        }).thenOnResult(response -> errorCache.record(update.orgId, update.apiKey, endpoint.get(), response));
+    }
+
+    /**
+     * Counts an update sent with {@link #send(List, Update)} whose caller stopped waiting before it completed.
+     */
+    void recordSendTimeout() {
+        sendTimeouts.incrementAndGet();
+    }
+
+    /**
+     * Queues an update to be sent once its coalescing window closes. If another update for the same org and request
+     * is submitted within the window, this one is not sent and completes as coalesced.
+     *
+     * @param endpoints The equivalent update endpoint URIs, in configured order.
+     * @param update The update.
+     * @return The result of the update.
+     */
+    Promise<Result, NeverThrowsException> submit(List<String> endpoints, Update update) {
+        submitted.incrementAndGet();
+        String key = update.orgId + '\u0000' + update.requestId;
+        PromiseImpl<Result, NeverThrowsException> promise = PromiseImpl.create();
+        Pending replaced = null;
+        synchronized (pending) {
+            Pending entry = pending.get(key);
+            if (entry == null) {
+                entry = new Pending(endpoints, update, promise);
+                pending.put(key, entry);
+                scheduler.schedule(() -> release(key), coalesceWindowMillis, TimeUnit.MILLISECONDS);
+            } else {
+                replaced = new Pending(entry.endpoints, entry.update, entry.promise);
+                entry.endpoints = endpoints;
+                entry.update = update;
+                entry.promise = promise;
+            }
+        }
+        if (replaced != null) {
+            coalesced.incrementAndGet();
+            replaced.promise.handleResult(new Result(replaced.update.requestId, Result.Status.COALESCED, 0, null,
+                                                     null));
+        }
+        return promise;
+    }
+
+    /**
+     * Closes every coalescing window now, so that all submitted updates are sent.
+     */
+    void flush() {
+        synchronized (pending) {
+            ready.addAll(pending.values());
+            pending.clear();
+        }
+        dispatch();
+    }
+
+    private void release(String key) {
+        synchronized (pending) {
+            Pending entry = pending.remove(key);
+            if (entry == null) {
+                return;
+            }
+            ready.add(entry);
+        }
+        dispatch();
+    }
+
+    /**
+     * Sends ready updates while fewer than the maximum are in flight. An update can complete before its send returns,
+     * for example with a cached error, and its completion calls this method again. Only one thread runs the loop at a
+     * time, and a call made while it runs returns at once, because the loop re-checks for work under the same lock.
+     * So a flush of thousands of updates that complete at once is sent in a loop rather than by recursion.
+     */
+    private void dispatch() {
+        synchronized (pending) {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Pending next;
+                synchronized (pending) {
+                    if (inFlight >= maxConcurrency || ready.isEmpty()) {
+                        dispatching = false;
+                        done = true;
+                        return;
+                    }
+                    next = ready.poll();
+                    inFlight++;
+                }
+                sendPending(next);
+            }
+        } finally {
+            if (!done) {
+                synchronized (pending) {
+                    dispatching = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends an update straight away, without a coalescing window, and counts its outcome as {@link #submit} does. This
+     * suits single updates whose caller does not wait, which should not be held back or lost with the queue.
+     *
+     * @param endpoints The equivalent update endpoint URIs, in configured order.
+     * @param update The update.
+     * @return The result of the update, which is never coalesced.
+     */
+    Promise<Result, NeverThrowsException> sendNow(List<String> endpoints, Update update) {
+        return sendForResult(endpoints, update).thenOnResult(this::count);
+    }
+
+    private Promise<Result, NeverThrowsException> sendForResult(List<String> endpoints, Update update) {
+        String requestId = update.requestId;
+        AtomicInteger httpStatus = new AtomicInteger();
+        Promise<JsonValue, NodeProcessException> response;
+        try {
+            response = send(endpoints, update)
+                    .thenOnResult(result -> httpStatus.set(result.getStatus().getCode()))
+                    .then(closeSilently(mapToJsonValue()), noopExceptionFunction());
+        } catch (NodeProcessException e) {
+            return newResultPromise(new Result(requestId, Result.Status.FAILED, 0, null, e.getMessage()));
+        }
+        return response.then(json -> new Result(requestId, Result.Status.UPDATED, httpStatus.get(), json, null),
+                             e -> new Result(requestId, Result.Status.FAILED, httpStatus.get(), null,
+                                             String.valueOf(e.getMessage())));
+    }
+
+    private void sendPending(Pending entry) {
+        sendForResult(entry.endpoints, entry.update).thenOnResult(result -> complete(entry, result));
+    }
+
+    private void complete(Pending entry, Result result) {
+        count(result);
+        synchronized (pending) {
+            inFlight--;
+        }
+        entry.promise.handleResult(result);
+        dispatch();
+    }
+
+    private void count(Result result) {
+        if (result.status == Result.Status.UPDATED) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+            logger.warn("TMX update failed for request " + result.requestId + ": " + result.error);
+        }
+    }
+
+    /**
+     * Sends the updates still waiting for their coalescing window and stops the scheduler.
+     */
+    void shutdown() {
+        flush();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A {@link Function} that returns the HTTP entity content of a {@link Response} from a TMX Server as JsonValue,
+     * and throws a {@link NodeProcessException} if the response is not successful (200 family status code) or
+     * ThreatMetrix did not accept the update, for example with a {@code request_result} of {@code fail_access}.
+     *
+     * @return response entity as a JsonValue.
+     */
+    static Function<Response, JsonValue, NodeProcessException> mapToJsonValue() {
+        return response -> {
+            if (!response.getStatus().isSuccessful()) {
+                throw new NodeProcessException("Unable to process request. TMX returned " + response.getStatus(),
+                                               response.getCause());
+            }
+            JsonValue json;
+            try {
+                json = json(response.getEntity().getJson());
+            } catch (Exception e) {
+                throw new NodeProcessException("Unable to process request. Invalid TMX response", e);
+            }
+            String requestResult = json.isMap() ? json.get(REQUEST_RESULT).asString() : null;
+            if (!REQUEST_RESULT_SUCCESS.equals(requestResult)) {
+                throw new NodeProcessException("Unable to process request. TMX returned request_result "
+                                                       + requestResult);
+            }
+            return json;
+        };
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getSent() {
+        return sent.get();
+    }
+
+    @Override
+    public long getSendTimeouts() {
+        return sendTimeouts.get();
+    }
+
+    @Override
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size() + ready.size() + inFlight;
+        }
+    }
+
+    private static final class Pending {
+        private List<String> endpoints;
+        private Update update;
+        private PromiseImpl<Result, NeverThrowsException> promise;
+
+        private Pending(List<String> endpoints, Update update, PromiseImpl<Result, NeverThrowsException> promise) {
+            this.endpoints = endpoints;
+            this.update = update;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * One review status or trust tag update of a ThreatMetrix request.
+     */
+    static final class Update {
+        private final String orgId;
+        private final String apiKey;
+        private final String requestId;
+        private String finalReviewStatus;
+        private String notes;
+        private String tagName;
+        private String tagContext;
+        private String lineOfBusiness;
+
+        /**
+         * Starts an update.
+         *
+         * @param orgId The ThreatMetrix org ID.
+         * @param apiKey The API key.
+         * @param requestId The {@code request_id} of the session query being updated.
+         */
+        Update(String orgId, String apiKey, String requestId) {
+            this.orgId = orgId;
+            this.apiKey = apiKey;
+            this.requestId = requestId;
+        }
+
+        Update finalReviewStatus(String finalReviewStatus) {
+            this.finalReviewStatus = finalReviewStatus;
+            return this;
+        }
+
+        Update notes(String notes) {
+            this.notes = notes;
+            return this;
+        }
+
+        Update trustTag(String tagName, String tagContext) {
+            this.tagName = tagName;
+            this.tagContext = tagContext;
+            return this;
+        }
+
+        Update lineOfBusiness(String lineOfBusiness) {
+            this.lineOfBusiness = lineOfBusiness;
+            return this;
+        }
+
+        String getRequestId() {
+            return requestId;
+        }
+
+        Form toForm() {
+            Form form = new Form();
+            form.add(ORG_ID, orgId);
+            form.add(API_KEY, apiKey);
+            form.add(REQUEST_ID, requestId);
+            form.add(ACTION, UPDATE_REVIEW_STATUS);
+            if (StringUtils.isNotEmpty(finalReviewStatus)) {
+                form.add(FINAL_REVIEW_STATUS, finalReviewStatus);
+            }
+            if (StringUtils.isNotEmpty(notes)) {
+                form.add(NOTES, notes);
+            }
+            if (StringUtils.isNotEmpty(tagName)) {
+                form.add(TAG_NAME, tagName);
+                form.add(TAG_CONTEXT, tagContext);
+            }
+            if (StringUtils.isNotEmpty(lineOfBusiness)) {
+                form.add(LINE_OF_BUSINESS, lineOfBusiness);
+            }
+            return form;
+        }
+    }
+
+    /**
+     * The outcome of one submitted update.
+     */
+    static final class Result {
+
+        /**
+         * What happened to the update.
+         */
+        enum Status {
+            /** ThreatMetrix accepted the update. */
+            UPDATED,
+            /** A later update for the same request replaced this one before it was sent. */
+            COALESCED,
+            /** The update was sent and failed, or could not be sent. */
+            FAILED
+        }
+
+        private final String requestId;
+        private final Status status;
+        private final int httpStatus;
+        private final JsonValue response;
+        private final String error;
+
+        private Result(String requestId, Status status, int httpStatus, JsonValue response, String error) {
+            this.requestId = requestId;
+            this.status = status;
+            this.httpStatus = httpStatus;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * The result of an update that was rejected before it was submitted.
+         *
+         * @param requestId The request ID of the update, which may be empty.
+         * @param error Why the update was rejected.
+         * @return The failed result.
+         */
+        static Result rejected(String requestId, String error) {
+            return new Result(requestId, Status.FAILED, 0, null, error);
+        }
+
+        String getRequestId() {
+            return requestId;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The HTTP status of the update call.
+         *
+         * @return The status code, or 0 if no call was made or it did not complete.
+         */
+        int getHttpStatus() {
+            return httpStatus;
+        }
+
+        /**
+         * The response of ThreatMetrix to an accepted update.
+         *
+         * @return The response, or null if the update was not accepted.
+         */
+        JsonValue getResponse() {
+            return response;
+        }
+
+        /**
+         * Why the update failed.
+         *
+         * @return The error message, or null if the update did not fail.
+         */
+        String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix update client.
+ */
+public interface ThreatMetrixUpdateClientMXBean {
+
+    /**
+     * The number of updates submitted for batched sending.
+     *
+     * @return The submitted count.
+     */
+    long getSubmitted();
+
+    /**
+     * The number of submitted updates replaced by a later update for the same request before being sent.
+     *
+     * @return The coalesced count.
+     */
+    long getCoalesced();
+
+    /**
+     * The number of submitted or detached updates accepted by ThreatMetrix.
+     *
+     * @return The success count.
+     */
+    long getSucceeded();
+
+    /**
+     * The number of submitted or detached updates that failed.
+     *
+     * @return The failure count.
+     */
+    long getFailed();
+
+    /**
+     * The number of updates sent straight away, by nodes that wait for the result and by the submitted updates
+     * themselves.
+     *
+     * @return The sent count.
+     */
+    long getSent();
+
+    /**
+     * The number of updates sent straight away whose caller stopped waiting before they completed.
+     *
+     * @return The timeout count.
+     */
+    long getSendTimeouts();
+
+    /**
+     * The number of submitted updates waiting for their coalescing window to close or for a free connection.
+     *
+     * @return The pending count.
+     */
+    int getPending();
+}
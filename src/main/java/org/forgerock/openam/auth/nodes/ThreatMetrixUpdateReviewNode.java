@@ -17,33 +17,30 @@
 
 package org.forgerock.openam.auth.nodes;
 
+import static java.util.Collections.emptyList;
 import static org.forgerock.http.protocol.Responses.noopExceptionFunction;
-import static org.forgerock.json.JsonValue.json;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ACTION;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.API_KEY;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.FINAL_REVIEW_STATUS;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.LINE_OF_BUSINESS;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.NOTES;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.BUDGET_EXHAUSTED_OUTCOME;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.NEXT_OUTCOME;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_ID;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_QUERY_RESPONSE;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TAG_CONTEXT;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TAG_NAME;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_DEADLINE;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_SESSION_QUERY_PARAMETERS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_VERDICT_SOURCE;
 import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.UPDATE_RESPONSE;
-import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.UPDATE_REVIEW_STATUS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.httpStatus;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.remainingLoginTime;
 import static org.forgerock.util.CloseSilentlyFunction.closeSilently;
-import static org.forgerock.util.Closeables.closeSilentlyAsync;
 
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang.StringUtils;
-import org.forgerock.http.handler.HttpClientHandler;
-import org.forgerock.http.protocol.Form;
-import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -51,25 +48,32 @@ import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.InputState;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
 import org.forgerock.openam.auth.node.api.OutputState;
-import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.sm.annotations.adapters.Password;
-import org.forgerock.services.context.RootContext;
 import org.forgerock.util.Function;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.assistedinject.Assisted;
 
-@Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
+@Node.Metadata(outcomeProvider = ThreatMetrixUpdateReviewNode.ThreatMetrixUpdateReviewOutcomeProvider.class,
         configClass = ThreatMetrixUpdateReviewNode.Config.class, tags = {"risk"})
-public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
+public class ThreatMetrixUpdateReviewNode implements Node {
 
+    private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ThreatMetrixUpdateReviewNode";
+    private static final String TIMEOUT_OUTCOME = "TIMEOUT";
+    private static final String FAILED_OUTCOME = "FAILED";
     private final Logger logger = LoggerFactory.getLogger("amAuth");
     private final Config config;
-    private final HttpClientHandler clientHandler;
+    private final ThreatMetrixUpdateClient updateClient;
+    private final ThreatMetrixTracer tracer;
+    private final ThreatMetrixAuditLog auditLog;
 
     /**
      * Configuration for the node.
@@ -132,6 +136,37 @@ public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
             return "https://h-api.online-metrix.net/api/update";
         }
 
+        /**
+         * Update URIs to fail over to
+         */
+        @Attribute(order = 800)
+        default List<String> failoverUris() {
+            return emptyList();
+        }
+
+        /**
+         * Should the update be skipped once the login deadline set by the ThreatMetrix Profiler Node has passed
+         */
+        @Attribute(order = 900)
+        default boolean useLoginTimeBudget() {
+            return false;
+        }
+
+        /**
+         * Whether the node waits for the update to complete
+         */
+        @Attribute(order = 1000)
+        default CompletionMode completionMode() {
+            return CompletionMode.DETACHED;
+        }
+
+        /**
+         * The longest time, in milliseconds, to wait for the update in the bounded await mode
+         */
+        @Attribute(order = 1100)
+        default int awaitTimeout() {
+            return 1000;
+        }
 
     }
 
@@ -141,58 +176,58 @@ public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param updateClient Sends the update.
+     * @param tracer Creates the spans of the update.
+     * @param auditLog Records every update.
      */
     @Inject
-    public ThreatMetrixUpdateReviewNode(@Assisted Config config, HttpClientHandler client) {
+    public ThreatMetrixUpdateReviewNode(@Assisted Config config, ThreatMetrixUpdateClient updateClient,
+            ThreatMetrixTracer tracer, ThreatMetrixAuditLog auditLog) {
         this.config = config;
-        this.clientHandler = client;
-    }
-
-    /**
-     * A {@link Function} that handles a {@link Response} from an TMX Server
-     * that returns the HTTP entity content as JsonValue, and throws an {@link NodeProcessException} if
-     * the response is not successful (200 family status code).
-     *
-     * @return response entity as a JsonValue.
-     */
-    private static Function<Response, JsonValue, NodeProcessException> mapToJsonValue() {
-        return response -> {
-            try {
-                if (!response.getStatus().isSuccessful()) {
-                    throw response.getCause();
-                }
-                return json(response.getEntity().getJson());
-            } catch (Exception e) {
-                throw new NodeProcessException("Unable to process request. " + response.getEntity().toString(), e);
-            }
-        };
+        this.updateClient = updateClient;
+        this.tracer = tracer;
+        this.auditLog = auditLog;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
-        JsonValue sharedState = context.sharedState;
-        Request request;
+        return tracer.trace("tmx.update_review", context.sharedState, span -> process(context.sharedState, span));
+    }
+
+    private Action process(JsonValue sharedState, ThreatMetrixSpan span) throws NodeProcessException {
+        if (sharedState.isDefined(ORG_ID) && !sharedState.isDefined(REQUEST_ID)
+                && sharedState.isDefined(TMX_VERDICT_SOURCE)) {
+            // the verdict was reused from an earlier login, so there is no request of this login to update
+            logger.debug("No TMX request to update for a " + sharedState.get(TMX_VERDICT_SOURCE).asString()
+                                 + " verdict");
+            return Action.goTo(NEXT_OUTCOME).replaceSharedState(sharedState).build();
+        }
         if (!sharedState.isDefined(ORG_ID) || !sharedState.isDefined(REQUEST_ID)) {
             throw new NodeProcessException(
                     "Either the TMX Org ID or the Request ID is not present in shared state. Please check " +
                             "configuration");
         }
         String requestId = sharedState.get(REQUEST_ID).asString();
-        try {
-            request = new Request().setUri(config.uri() + "?output_format=json");
-        } catch (URISyntaxException e) {
-            throw new NodeProcessException(e);
+        span.setAttribute("tmx.org_id", sharedState.get(ORG_ID).asString())
+            .setAttribute("tmx.request_id", requestId)
+            .setAttribute("tmx.final_review_status", config.finalReviewStatus().toString())
+            .setAttribute("tmx.completion_mode", config.completionMode().name());
+        if (config.useLoginTimeBudget() && remainingLoginTime(sharedState) <= 0) {
+            logger.warn("Login time budget exhausted before TMX update for request: " + requestId);
+            if (auditLog.isEnabled()) {
+                auditLog.record(auditEntry(sharedState.get(ORG_ID).asString(), requestId)
+                                        .error("Login time budget exhausted")
+                                        .build());
+            }
+            return Action.goTo(BUDGET_EXHAUSTED_OUTCOME).replaceSharedState(sharedState).build();
         }
-        final Form form = new Form();
-        form.add(ORG_ID, sharedState.get(ORG_ID).asString());
-        form.add(API_KEY, String.valueOf(config.apiKey()));
-        form.add(REQUEST_ID, requestId);
-        form.add(ACTION, UPDATE_REVIEW_STATUS);
+        ThreatMetrixUpdateClient.Update update =
+                new ThreatMetrixUpdateClient.Update(sharedState.get(ORG_ID).asString(),
+                                                    String.valueOf(config.apiKey()), requestId)
+                        .notes(config.notes())
+                        .lineOfBusiness(config.lineOfBusiness());
         if (!FinalReviewStatus.NONE.equals(config.finalReviewStatus())) {
-            form.add(FINAL_REVIEW_STATUS, config.finalReviewStatus().toString());
-        }
-        if (StringUtils.isNotEmpty(config.notes())) {
-            form.add(NOTES, config.notes());
+            update.finalReviewStatus(config.finalReviewStatus().toString());
         }
         if (config.trustTagName() != TrustTagName.NONE) {
             if (config.trustTagContext() == TrustTagContext.NONE) {
@@ -200,18 +235,118 @@ public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
                         "Trust Tag Name set to a value other than None, but Trust Tag Context is set to None. Please " +
                                 "set a value for Trust Tag Context");
             }
-            form.add(TAG_NAME, config.trustTagName().toString());
-            form.add(TAG_CONTEXT, config.trustTagContext().toString());
+            update.trustTag(config.trustTagName().toString(), config.trustTagContext().toString());
         }
-        if (StringUtils.isNotEmpty(config.lineOfBusiness())) {
-            form.add(LINE_OF_BUSINESS, config.lineOfBusiness());
+        ThreatMetrixSpan http = span.child("tmx.http");
+        long start = System.nanoTime();
+        if (config.completionMode() == CompletionMode.DETACHED) {
+            // the callback runs after the node has returned, so it must not touch the shared state
+            String orgId = sharedState.get(ORG_ID).asString();
+            updateClient.sendNow(endpoints(), update)
+                        .thenOnResult(result -> {
+                            http.setAttribute("http.response.status_code", (long) result.getHttpStatus());
+                            http.end();
+                            if (auditLog.isEnabled()) {
+                                auditLog.record(auditEntry(orgId, requestId)
+                                                        .httpStatus(result.getHttpStatus())
+                                                        .latency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                                                                                                       - start))
+                                                        .error(result.getError())
+                                                        .build());
+                            }
+                        });
+            return Action.goTo(NEXT_OUTCOME).replaceSharedState(sharedState).build();
         }
-        form.toRequestEntity(request);
-        clientHandler.handle(new RootContext(), request)
-                     .thenAlways(closeSilentlyAsync(request))
-                     .then(closeSilently(mapToJsonValue()), noopExceptionFunction())
-                     .then(storeResponse(sharedState));
-        return goToNext().replaceSharedState(sharedState).build();
+        return await(sharedState, update, http, start);
+    }
+
+    /**
+     * Sends the update and waits for it, up to the await timeout and the login deadline.
+     *
+     * @param sharedState The shared state, which receives the update response.
+     * @param update The update.
+     * @param http The span of the call.
+     * @param start When the update started, from {@link System#nanoTime()}.
+     * @return The action.
+     * @throws NodeProcessException If an endpoint URI is invalid or the thread was interrupted.
+     */
+    private Action await(JsonValue sharedState, ThreatMetrixUpdateClient.Update update, ThreatMetrixSpan http,
+            long start) throws NodeProcessException {
+        long timeout = config.awaitTimeout();
+        if (config.useLoginTimeBudget()) {
+            timeout = Math.min(timeout, remainingLoginTime(sharedState));
+        }
+        Promise<Response, NeverThrowsException> response = updateClient.send(endpoints(), update)
+                .thenOnResult(result -> {
+                    http.setAttribute("http.response.status_code", (long) result.getStatus().getCode());
+                    http.end();
+                });
+        try {
+            JsonValue result = response.then(closeSilently(ThreatMetrixUpdateClient.mapToJsonValue()),
+                                              noopExceptionFunction())
+                                       .getOrThrow(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+            storeResponse(sharedState).apply(result);
+            audit(sharedState, update, response, start, null);
+            return Action.goTo(NEXT_OUTCOME).replaceSharedState(sharedState).build();
+        } catch (TimeoutException e) {
+            http.recordException(e);
+            updateClient.recordSendTimeout();
+            logger.warn("TMX update for request " + update.getRequestId() + " did not complete within " + timeout
+                                + "ms");
+            audit(sharedState, update, response, start, "Timed out");
+            return Action.goTo(TIMEOUT_OUTCOME).replaceSharedState(sharedState).build();
+        } catch (NodeProcessException e) {
+            logger.warn("TMX update for request " + update.getRequestId() + " failed", e);
+            audit(sharedState, update, response, start, String.valueOf(e.getMessage()));
+            return Action.goTo(FAILED_OUTCOME).replaceSharedState(sharedState).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NodeProcessException(e);
+        } finally {
+            // ended when the response arrives, unless the node gave up on it first
+            http.end();
+        }
+    }
+
+    /**
+     * Records a call that the node waited for, once its outcome is known.
+     *
+     * @param sharedState The shared state.
+     * @param update The update.
+     * @param response The response, which holds the HTTP status if it has arrived.
+     * @param start When the update started, from {@link System#nanoTime()}.
+     * @param error Why the update failed, or null if it did not.
+     */
+    private void audit(JsonValue sharedState, ThreatMetrixUpdateClient.Update update,
+            Promise<Response, NeverThrowsException> response, long start, String error) {
+        if (auditLog.isEnabled()) {
+            auditLog.record(auditEntry(sharedState.get(ORG_ID).asString(), update.getRequestId())
+                                    .httpStatus(httpStatus(response))
+                                    .latency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                                    .error(error)
+                                    .build());
+        }
+    }
+
+    private ThreatMetrixAuditLog.Entry.Builder auditEntry(String orgId, String requestId) {
+        return new ThreatMetrixAuditLog.Entry.Builder("update_review")
+                .requestId(requestId)
+                .orgId(orgId)
+                .reviewStatus(config.finalReviewStatus().toString());
+    }
+
+    /**
+     * The update endpoints, primary first.
+     *
+     * @return The endpoint URIs.
+     */
+    private List<String> endpoints() {
+        List<String> endpoints = new ArrayList<>(1 + config.failoverUris().size());
+        endpoints.add(config.uri() + "?output_format=json");
+        for (String uri : config.failoverUris()) {
+            endpoints.add(uri + "?output_format=json");
+        }
+        return endpoints;
     }
 
     /**
@@ -276,6 +411,21 @@ public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
     }
 
 
+    /**
+     * Whether the node waits for the update to complete.
+     */
+    public enum CompletionMode {
+        /**
+         * The update is sent and the node returns straight away, without waiting for it. The response is not stored.
+         */
+        DETACHED,
+        /**
+         * The node waits for the update, up to the await timeout, and stores the response. A failed update routes to
+         * the failed outcome.
+         */
+        BOUNDED_AWAIT
+    }
+
     /**
      * Indicates the value of the new status that the transaction should be updated to.
      */
@@ -419,13 +569,41 @@ public class ThreatMetrixUpdateReviewNode extends SingleOutcomeNode {
         }
     }
 
+    /**
+     * Defines the possible outcomes from this ThreatMetrix Update Review Node. The budget exhausted outcome is only
+     * offered when the login time budget is used, and the timeout and failed outcomes only in the bounded await mode.
+     */
+    public static class ThreatMetrixUpdateReviewOutcomeProvider
+            implements OutcomeProvider {
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+                                                                       ThreatMetrixUpdateReviewNode.class
+                                                                               .getClassLoader());
+            List<Outcome> outcomes = new ArrayList<>();
+            outcomes.add(new Outcome(NEXT_OUTCOME, bundle.getString("outcome")));
+            if (nodeAttributes != null && nodeAttributes.get("useLoginTimeBudget").defaultTo(false).asBoolean()) {
+                outcomes.add(new Outcome(BUDGET_EXHAUSTED_OUTCOME, bundle.getString("budgetExhaustedOutcome")));
+            }
+            if (nodeAttributes != null && CompletionMode.BOUNDED_AWAIT.name().equals(
+                    nodeAttributes.get("completionMode").asString())) {
+                outcomes.add(new Outcome(TIMEOUT_OUTCOME, bundle.getString("timeoutOutcome")));
+                outcomes.add(new Outcome(FAILED_OUTCOME, bundle.getString("failedOutcome")));
+            }
+            return outcomes;
+        }
+    }
+
     @Override
     public InputState[] getInputs() {
-        return new InputState[]{new InputState(ORG_ID, true), new InputState(REQUEST_ID, true)};
+        return new InputState[]{new InputState(ORG_ID, true), new InputState(REQUEST_ID, false),
+                new InputState(TMX_VERDICT_SOURCE, false), new InputState(TMX_DEADLINE, false)};
     }
 
     @Override
     public OutputState[] getOutputs() {
-        return new OutputState[]{new OutputState(UPDATE_RESPONSE, ImmutableMap.of("outcome", true))};
+        return new OutputState[]{
+                new OutputState(UPDATE_RESPONSE, ImmutableMap.of(NEXT_OUTCOME, false, BUDGET_EXHAUSTED_OUTCOME, false,
+                                                                 TIMEOUT_OUTCOME, false, FAILED_OUTCOME, false))};
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.EXACT_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REVIEW_STATUS;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SMART_ID;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.json.JsonValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Bounded, TTL-expiring store of recent session query verdicts, keyed by user and device identifier.
+ * <p>
+ * Every successful session query response is recorded under both its {@code exact_id} and {@code smart_id}, so that
+ * a later login by the same user from the same device can be answered locally by the ThreatMetrix Session Query Node,
+ * or given a degraded verdict when ThreatMetrix is overloaded. The maximum
+ * number of entries and the upper bound on their lifetime are server-wide settings; each node applies its own,
+ * shorter, TTL on read.
+ */
+@Singleton
+class ThreatMetrixVerdictCache {
+
+    static final String MAX_ENTRIES_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.verdictCache.maxEntries";
+    static final String MAX_TTL_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.verdictCache.maxTtlSeconds";
+
+    private static final String PASS = "pass";
+
+    private final Cache<String, Verdict> verdicts;
+
+    ThreatMetrixVerdictCache() {
+        this(SystemProperties.getAsInt(MAX_ENTRIES_PROPERTY, 100000),
+             SystemProperties.getAsLong(MAX_TTL_PROPERTY, 86400));
+    }
+
+    /**
+     * Creates a cache bounded by the given limits rather than the advanced server properties.
+     *
+     * @param maxEntries The maximum number of cached verdicts.
+     * @param maxTtlSeconds How long a verdict is kept at most.
+     */
+    ThreatMetrixVerdictCache(int maxEntries, long maxTtlSeconds) {
+        this.verdicts = CacheBuilder.newBuilder()
+                                    .maximumSize(maxEntries)
+                                    .expireAfterWrite(maxTtlSeconds, TimeUnit.SECONDS)
+                                    .build();
+    }
+
+    /**
+     * Records the verdict of a session query response for the given user.
+     *
+     * @param username The user the query was made for. May be null if the user is not yet known.
+     * @param response The session query response.
+     */
+    void put(String username, JsonValue response) {
+        Verdict verdict = new Verdict(copy(response), System.currentTimeMillis());
+        String exactId = response.get(EXACT_ID).asString();
+        String smartId = response.get(SMART_ID).asString();
+        if (StringUtils.isNotEmpty(exactId)) {
+            verdicts.put(key(username, exactId), verdict);
+        }
+        if (StringUtils.isNotEmpty(smartId) && !StringUtils.equals(exactId, smartId)) {
+            verdicts.put(key(username, smartId), verdict);
+        }
+    }
+
+    /**
+     * Returns the most recent verdict for the user and device if it was a pass and is younger than the given TTL. Both
+     * the user and the device must match.
+     *
+     * @param username The user logging in. A device is never trusted for an unknown user.
+     * @param deviceId The device identifier, either an {@code exact_id} or {@code smart_id}.
+     * @param ttlSeconds The maximum age of the verdict.
+     * @return A copy of the cached session query response, or empty if the device is not trusted.
+     */
+    Optional<JsonValue> getTrustedVerdict(String username, String deviceId, long ttlSeconds) {
+        if (StringUtils.isEmpty(username) || StringUtils.isEmpty(deviceId)) {
+            return Optional.empty();
+        }
+        Verdict verdict = verdicts.getIfPresent(key(username, deviceId));
+        if (verdict == null
+                || System.currentTimeMillis() - verdict.timestamp > TimeUnit.SECONDS.toMillis(ttlSeconds)
+                || !PASS.equals(verdict.response.get(REVIEW_STATUS).asString())) {
+            return Optional.empty();
+        }
+        return Optional.of(copy(verdict.response));
+    }
+
+    /**
+     * Returns the most recent verdict, whatever its review status, for the user and device. A verdict for the user on
+     * another device, or for the device with another or no user, says nothing about this login and is not returned.
+     *
+     * @param username The user logging in. Nothing is returned for an unknown user.
+     * @param deviceId The device identifier. Nothing is returned for an unknown device.
+     * @return A copy of the cached session query response, or empty if there is none.
+     */
+    Optional<JsonValue> getLatestVerdict(String username, String deviceId) {
+        if (StringUtils.isEmpty(username) || StringUtils.isEmpty(deviceId)) {
+            return Optional.empty();
+        }
+        Verdict verdict = verdicts.getIfPresent(key(username, deviceId));
+        return verdict == null ? Optional.empty() : Optional.of(copy(verdict.response));
+    }
+
+    private static JsonValue copy(JsonValue response) {
+        // raw responses are read-only, so they are shared, but each caller gets its own JsonValue around one
+        if (response.getObject() instanceof ThreatMetrixRawResponse) {
+            return new JsonValue(response.getObject());
+        }
+        return response.copy();
+    }
+
+    private static String key(String username, String deviceId) {
+        return StringUtils.defaultString(username) + '\u0000' + deviceId;
+    }
+
+    private static final class Verdict {
+        private final JsonValue response;
+        private final long timestamp;
+
+        private Verdict(JsonValue response, long timestamp) {
+            this.response = response;
+            this.timestamp = timestamp;
+        }
+    }
+}
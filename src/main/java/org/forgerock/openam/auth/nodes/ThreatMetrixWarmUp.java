@@ -0,0 +1,180 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.services.context.RootContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Warms a freshly started server up before it takes logins.
+ * <p>
+ * When enabled, a background thread resolves the ThreatMetrix API hosts and opens connections to them through the
+ * shared HTTP client, so that the first logins find DNS cached and TLS sessions established. The connections are
+ * opened with a GET without parameters, like the endpoint health probe of {@link ThreatMetrixEndpointRouter}, which
+ * is not an API call. It then runs synthetic
+ * logins through the Profiler, Session Query, decision and Update Review nodes enough times for their hot paths,
+ * including request building, endpoint routing and response parsing, to be loaded and compiled. The nodes are built
+ * by {@link ThreatMetrixOfflineNodes} and answered by synthetic ThreatMetrix responses, so no query or update is sent
+ * to ThreatMetrix nor recorded in the verdict cache, reputation store, statistics or other state of the server.
+ */
+@Singleton
+class ThreatMetrixWarmUp implements ThreatMetrixWarmUpMXBean {
+
+    static final String ENABLED_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.warmUp.enabled";
+    static final String ENDPOINTS_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.warmUp.endpoints";
+    static final String ITERATIONS_PROPERTY = "org.forgerock.openam.auth.nodes.threatmetrix.warmUp.iterations";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String DEFAULT_ENDPOINTS = "https://h-api.online-metrix.net/api/session-query,"
+            + "https://h-api.online-metrix.net/api/update";
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final String SYNTHETIC_RESPONSE = "{\"org_id\":\"warmup\",\"request_id\":"
+            + "\"00000000-0000-0000-0000-000000000000\",\"request_result\":\"success\",\"review_status\":\"pass\","
+            + "\"policy_score\":\"0\",\"risk_rating\":\"neutral\",\"reason_code\":[\"warmup\"],\"exact_id\":"
+            + "\"warmup\",\"smart_id\":\"warmup\",\"true_ip\":\"192.0.2.1\",\"summary_risk_score\":\"0\"}";
+    private static final String SYNTHETIC_UPDATE_RESPONSE = "{\"request_id\":"
+            + "\"00000000-0000-0000-0000-000000000000\",\"request_result\":\"success\"}";
+
+    private final HttpClientHandler clientHandler;
+    private volatile boolean ready;
+    private volatile long durationMillis;
+
+    @Inject
+    ThreatMetrixWarmUp(HttpClientHandler clientHandler) {
+        this.clientHandler = clientHandler;
+        ThreatMetrixMonitoring.register("WarmUp", this, ThreatMetrixWarmUpMXBean.class);
+    }
+
+    /**
+     * Starts the warm-up on a background thread if it is enabled, otherwise reports the server as ready.
+     */
+    void start() {
+        if (!SystemProperties.getAsBoolean(ENABLED_PROPERTY, false)) {
+            ready = true;
+            return;
+        }
+        Thread thread = new Thread(this::run, "ThreatMetrix warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        try {
+            connect();
+            exerciseNodes(SystemProperties.getAsInt(ITERATIONS_PROPERTY, 10000));
+        } catch (Exception e) {
+            logger.warn("ThreatMetrix warm-up failed", e);
+        } finally {
+            durationMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            ready = true;
+            logger.info("ThreatMetrix warm-up finished in " + durationMillis + "ms");
+        }
+    }
+
+    private void connect() {
+        for (String endpoint : SystemProperties.get(ENDPOINTS_PROPERTY, DEFAULT_ENDPOINTS).split(",")) {
+            if (StringUtils.isBlank(endpoint)) {
+                continue;
+            }
+            try {
+                URI uri = new URI(endpoint.trim());
+                InetAddress.getAllByName(uri.getHost());
+                // the same bodiless GET as the endpoint health probe: any answer will do, it only opens a TLS
+                // connection for the nodes to reuse and is not a session query or update
+                Request request = new Request().setMethod("GET").setUri(uri);
+                clientHandler.handle(new RootContext(), request)
+                             .getOrThrow(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                             .close();
+                request.close();
+            } catch (UnknownHostException e) {
+                logger.warn("Unable to resolve ThreatMetrix endpoint " + endpoint + " during warm-up", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.warn("Unable to connect to ThreatMetrix endpoint " + endpoint + " during warm-up", e);
+            }
+        }
+    }
+
+    private void exerciseNodes(int iterations) throws Exception {
+        ThreatMetrixTracer tracer = ThreatMetrixOfflineNodes.tracer();
+        ThreatMetrixOfflineNodes.CannedResponseHandler sessionQueryHandler =
+                new ThreatMetrixOfflineNodes.CannedResponseHandler(SYNTHETIC_RESPONSE);
+        ThreatMetrixOfflineNodes.CannedResponseHandler updateHandler =
+                new ThreatMetrixOfflineNodes.CannedResponseHandler(SYNTHETIC_UPDATE_RESPONSE);
+        // in the order of a login, each node reading what the previous ones left in shared state
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(ThreatMetrixOfflineNodes.profiler(new ThreatMetrixOfflineNodes.ProfilerConfig("warmup"), tracer));
+        nodes.add(ThreatMetrixOfflineNodes.sessionQuery(new ThreatMetrixOfflineNodes.SessionQueryConfig(
+                ThreatMetrixSessionQueryNode.SharedStateEncoding.JSON), sessionQueryHandler, tracer));
+        nodes.add(new ThreatMetrixReviewStatusNode(tracer));
+        nodes.add(new ThreatMetrixPolicyScoreNode(new ThreatMetrixPolicyScoreNode.Config() { }, tracer));
+        nodes.add(new ThreatMetrixReasonCodeNode(() -> singletonList("warmup"), tracer));
+        nodes.add(ThreatMetrixOfflineNodes.updateReview(new ThreatMetrixOfflineNodes.UpdateReviewConfig(),
+                                                        updateHandler, tracer));
+        ExternalRequestContext request = new ExternalRequestContext.Builder().build();
+        for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+            JsonValue sharedState = json(object(field(ORG_ID, "warmup")));
+            TreeContext context = new TreeContext(sharedState, json(object()), request, emptyList(),
+                                                  Optional.empty());
+            for (Node node : nodes) {
+                node.process(context);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+}
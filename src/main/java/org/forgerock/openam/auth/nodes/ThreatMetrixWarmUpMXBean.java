@@ -0,0 +1,39 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Monitoring view of the ThreatMetrix plugin startup warm-up.
+ */
+public interface ThreatMetrixWarmUpMXBean {
+
+    /**
+     * Whether the warm-up has finished, or was not enabled. Load balancer health checks can use this to hold traffic
+     * back from a restarted server.
+     *
+     * @return True once the server is warm.
+     */
+    boolean isReady();
+
+    /**
+     * How long the warm-up took.
+     *
+     * @return The duration in milliseconds, or zero if the warm-up has not finished or did not run.
+     */
+    long getDurationMillis();
+}
@@ -0,0 +1,376 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2026 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.ORG_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.REQUEST_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.SESSION_ID;
+import static org.forgerock.openam.auth.nodes.ThreatMetrixHelper.TMX_TRACE_PARENT;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import jdk.jfr.Recording;
+
+/**
+ * Offline allocation and CPU time regression gate for the nodes, to catch a plugin change that makes a login more
+ * expensive before it is released.
+ * <p>
+ * Each of the Session Query, Update Review, Profiler, Review Status, Policy Score and Reason Code nodes is run
+ * repeatedly on one thread with the same inputs, and the bytes allocated and CPU time used by each call to
+ * {@code process} are measured with the thread's own counters, less the cost of measuring. ThreatMetrix is replaced
+ * by a {@link ThreatMetrixOfflineNodes.CannedResponseHandler} that returns fixed responses, and the nodes get the
+ * offline services, so nothing leaves the machine. The results are compared to a baseline file recorded earlier with
+ * {@code --record}, and the run exits with status 1 if a node allocates or takes more than its baseline plus the
+ * tolerance. A node with no baseline fails the run too, so that a gate without a recorded baseline cannot pass.
+ * <p>
+ * The gate is not part of the plugin jar. The {@code regression-gate} Maven profile runs it on the test classpath in
+ * the integration-test phase against {@code ThreatMetrixRegressionGate.baseline.properties} in the test resources:
+ * <pre>
+ * mvn verify -P regression-gate -DregressionGate.options=--record
+ * mvn verify -P regression-gate
+ * </pre>
+ * With {@code --jfr}, a JDK Flight Recorder recording of allocation and CPU samples is written for each node while
+ * it is measured, so that a regression can be traced to the code that caused it. CPU time depends on the machine and
+ * on whether recordings are made, so baselines should only be compared with runs made on the same machine and with
+ * the same options. Allocation is stable across machines for the same JVM.
+ */
+public final class ThreatMetrixRegressionGate {
+
+    private static final String USAGE = "Usage: ThreatMetrixRegressionGate [--iterations=N] [--warmup=N] "
+            + "[--tolerance=PERCENT] [--time-tolerance=PERCENT] [--encoding=JSON|COMPRESSED|RAW] [--jfr=DIRECTORY] "
+            + "[--record] BASELINE_FILE";
+    private static final String ALLOCATED_BYTES = ".allocatedBytes";
+    private static final String CPU_NANOS = ".cpuNanos";
+    private static final long ALLOCATION_SLACK_BYTES = 64;
+    private static final long CPU_SLACK_NANOS = 1000;
+    private static final String SESSION_QUERY_RESPONSE = "{\"org_id\":\"regression\",\"request_id\":"
+            + "\"00000000-0000-0000-0000-000000000000\",\"request_result\":\"success\",\"review_status\":\"review\","
+            + "\"policy_score\":\"-30\",\"risk_rating\":\"medium\",\"reason_code\":[\"DeviceNew\",\"IpProxy\","
+            + "\"AccountLoginVelocity\"],\"exact_id\":\"regression\",\"smart_id\":\"regression\",\"true_ip\":"
+            + "\"192.0.2.1\",\"summary_risk_score\":\"-30\",\"device_first_seen\":\"2026-01-01\","
+            + "\"tmx_variables\":{\"_sys_login_attempts\":\"1\"}}";
+    private static final String UPDATE_RESPONSE = "{\"request_id\":\"00000000-0000-0000-0000-000000000000\","
+            + "\"request_result\":\"success\"}";
+
+    private final Options options;
+    private final ExternalRequestContext request = new ExternalRequestContext.Builder().build();
+    private final com.sun.management.ThreadMXBean threads;
+    private final long threadId = Thread.currentThread().getId();
+
+    private ThreatMetrixRegressionGate(Options options, com.sun.management.ThreadMXBean threads) {
+        this.options = options;
+        this.threads = threads;
+    }
+
+    /**
+     * Measures the nodes, then either records the baseline or compares to it.
+     *
+     * @param args The options and the baseline file.
+     * @throws Exception If a node cannot be created or the baseline file cannot be read or written.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) || !threads.isCurrentThreadCpuTimeSupported()) {
+            System.err.println("This JVM does not measure thread allocation and CPU time");
+            System.exit(2);
+            return;
+        }
+        ThreatMetrixRegressionGate gate = new ThreatMetrixRegressionGate(options,
+                                                                       (com.sun.management.ThreadMXBean) threads);
+        Map<String, Measurement> measurements = gate.measureAll();
+        if (options.record) {
+            writeBaseline(options.file, measurements);
+            measurements.forEach((name, measurement) -> System.out.println(String.format(
+                    "%-14s %8d bytes %10d ns", name, measurement.allocatedBytes, measurement.cpuNanos)));
+            System.out.println("Baseline written to " + options.file);
+            System.exit(0);
+            return;
+        }
+        System.exit(gate.compare(measurements, readBaseline(options.file)) ? 0 : 1);
+    }
+
+    private Map<String, Measurement> measureAll() throws Exception {
+        ThreatMetrixTracer tracer = ThreatMetrixOfflineNodes.tracer();
+        Node sessionQuery = ThreatMetrixOfflineNodes.sessionQuery(
+                new ThreatMetrixOfflineNodes.SessionQueryConfig(options.encoding),
+                new ThreatMetrixOfflineNodes.CannedResponseHandler(SESSION_QUERY_RESPONSE), tracer);
+        Node updateReview = ThreatMetrixOfflineNodes.updateReview(new ThreatMetrixOfflineNodes.UpdateReviewConfig(),
+                new ThreatMetrixOfflineNodes.CannedResponseHandler(UPDATE_RESPONSE), tracer);
+        Node profiler = ThreatMetrixOfflineNodes.profiler(new ThreatMetrixOfflineNodes.ProfilerConfig("regression"),
+                                                          tracer);
+
+        // the decision nodes are given what the session query node leaves in shared state
+        JsonValue queried = newSharedState();
+        sessionQuery.process(context(queried));
+
+        Map<String, Measurement> measurements = new LinkedHashMap<>();
+        Measurement overhead = measure(null, new Node() {
+            @Override
+            public Action process(TreeContext context) {
+                return null;
+            }
+        }, () -> context(json(object())));
+        measurements.put("SessionQuery", measure("SessionQuery", sessionQuery, () -> context(newSharedState()))
+                .less(overhead));
+        measurements.put("UpdateReview", measure("UpdateReview", updateReview,
+                                                 () -> context(json(object(field(ORG_ID, "regression"),
+                                                                           field(REQUEST_ID, "regression")))))
+                .less(overhead));
+        measurements.put("Profiler", measure("Profiler", profiler, () -> context(newSharedState())).less(overhead));
+        measurements.put("ReviewStatus", measure("ReviewStatus", new ThreatMetrixReviewStatusNode(tracer),
+                                                 () -> context(queried.copy())).less(overhead));
+        Node policyScore = new ThreatMetrixPolicyScoreNode(new ThreatMetrixPolicyScoreNode.Config() { }, tracer);
+        measurements.put("PolicyScore", measure("PolicyScore", policyScore, () -> context(queried.copy()))
+                .less(overhead));
+        measurements.put("ReasonCode", measure("ReasonCode",
+                                               new ThreatMetrixReasonCodeNode(
+                                                       () -> Arrays.asList("DeviceNew", "IpProxy", "IpBlocklisted"),
+                                                       tracer),
+                                               () -> context(queried.copy())).less(overhead));
+        return measurements;
+    }
+
+    private static JsonValue newSharedState() {
+        return json(object(field(ORG_ID, "regression"), field(SESSION_ID, "regression"),
+                           field(TMX_TRACE_PARENT, ThreatMetrixTracer.NOT_SAMPLED_TRACE_PARENT)));
+    }
+
+    private TreeContext context(JsonValue sharedState) {
+        return new TreeContext(sharedState, json(object()), request, emptyList(), Optional.empty());
+    }
+
+    /**
+     * Runs a node for the warm-up iterations, then measures it for the measured iterations.
+     *
+     * @param name The name of the recording, or null for none.
+     * @param node The node.
+     * @param input Creates the context of each call. Not measured.
+     * @return The mean allocation and median CPU time of a call.
+     * @throws Exception If the node fails or the recording cannot be written.
+     */
+    private Measurement measure(String name, Node node, Supplier<TreeContext> input) throws Exception {
+        for (int i = 0; i < options.warmup; i++) {
+            node.process(input.get());
+        }
+        Recording recording = name == null || options.jfr == null ? null : startRecording(name);
+        long[] cpuNanos = new long[options.iterations];
+        long allocatedBytes = 0;
+        for (int i = 0; i < options.iterations; i++) {
+            TreeContext context = input.get();
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long cpuBefore = threads.getCurrentThreadCpuTime();
+            node.process(context);
+            cpuNanos[i] = threads.getCurrentThreadCpuTime() - cpuBefore;
+            allocatedBytes += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+        if (recording != null) {
+            recording.stop();
+            recording.dump(options.jfr.resolve(name + ".jfr"));
+            recording.close();
+        }
+        Arrays.sort(cpuNanos);
+        return new Measurement(allocatedBytes / options.iterations, cpuNanos[cpuNanos.length / 2]);
+    }
+
+    private static Recording startRecording(String name) {
+        Recording recording = new Recording();
+        recording.setName("ThreatMetrix " + name);
+        // the sampled allocation event replaced the TLAB events in Java 16, enabling both works on either
+        recording.enable("jdk.ObjectAllocationSample").withStackTrace();
+        recording.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+        recording.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+        recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(10));
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * Compares the measurements to the baseline and prints the result for each node.
+     *
+     * @param measurements The measurements.
+     * @param baseline The baseline.
+     * @return True if every node has a baseline and none regressed.
+     */
+    private boolean compare(Map<String, Measurement> measurements, Properties baseline) {
+        boolean passed = true;
+        boolean missing = false;
+        System.out.println(String.format("%-14s %12s %12s %12s %12s  %s", "Node", "Bytes", "Baseline", "CPU ns",
+                                         "Baseline", "Result"));
+        for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+            String name = entry.getKey();
+            Measurement measurement = entry.getValue();
+            long baselineBytes = Long.parseLong(baseline.getProperty(name + ALLOCATED_BYTES, "-1"));
+            long baselineNanos = Long.parseLong(baseline.getProperty(name + CPU_NANOS, "-1"));
+            String result;
+            if (baselineBytes < 0 || baselineNanos < 0) {
+                result = "NO BASELINE";
+                passed = false;
+                missing = true;
+            } else if (measurement.allocatedBytes > limit(baselineBytes, options.tolerance, ALLOCATION_SLACK_BYTES)) {
+                result = "ALLOCATION REGRESSION";
+                passed = false;
+            } else if (measurement.cpuNanos > limit(baselineNanos, options.timeTolerance, CPU_SLACK_NANOS)) {
+                result = "TIME REGRESSION";
+                passed = false;
+            } else {
+                result = "OK";
+            }
+            System.out.println(String.format("%-14s %12d %12d %12d %12d  %s", name, measurement.allocatedBytes,
+                                             baselineBytes, measurement.cpuNanos, baselineNanos, result));
+        }
+        if (missing) {
+            System.err.println("Nodes without a baseline in " + options.file + " fail the gate. Record one with "
+                                       + "mvn verify -P regression-gate -DregressionGate.options=--record");
+        }
+        return passed;
+    }
+
+    private static long limit(long baseline, double tolerancePercent, long slack) {
+        // the slack keeps measurement noise on near zero baselines from failing the run
+        return (long) (baseline * (1 + tolerancePercent / 100)) + slack;
+    }
+
+    private static void writeBaseline(Path file, Map<String, Measurement> measurements) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# ThreatMetrix node baselines, Java " + System.getProperty("java.version"));
+            writer.newLine();
+            for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+                writer.write(entry.getKey() + ALLOCATED_BYTES + "=" + entry.getValue().allocatedBytes);
+                writer.newLine();
+                writer.write(entry.getKey() + CPU_NANOS + "=" + entry.getValue().cpuNanos);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static Properties readBaseline(Path file) throws IOException {
+        Properties baseline = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            baseline.load(reader);
+        }
+        return baseline;
+    }
+
+    /**
+     * The cost of one call to {@code process}.
+     */
+    private static final class Measurement {
+        private final long allocatedBytes;
+        private final long cpuNanos;
+
+        private Measurement(long allocatedBytes, long cpuNanos) {
+            this.allocatedBytes = allocatedBytes;
+            this.cpuNanos = cpuNanos;
+        }
+
+        private Measurement less(Measurement overhead) {
+            return new Measurement(Math.max(0, allocatedBytes - overhead.allocatedBytes),
+                                   Math.max(0, cpuNanos - overhead.cpuNanos));
+        }
+    }
+
+    private static final class Options {
+        private int iterations = 20000;
+        private int warmup = 20000;
+        private double tolerance = 10;
+        private double timeTolerance = 50;
+        private ThreatMetrixSessionQueryNode.SharedStateEncoding encoding =
+                ThreatMetrixSessionQueryNode.SharedStateEncoding.JSON;
+        private Path jfr;
+        private boolean record;
+        private Path file;
+
+        /**
+         * Parses the command line.
+         *
+         * @param args The arguments.
+         * @return The options, or null if the arguments are invalid.
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            try {
+                for (String arg : args) {
+                    if (arg.isEmpty()) {
+                        // an unset option of the Maven profile
+                        continue;
+                    } else if (arg.startsWith("--iterations=")) {
+                        options.iterations = Integer.parseInt(value(arg));
+                    } else if (arg.startsWith("--warmup=")) {
+                        options.warmup = Integer.parseInt(value(arg));
+                    } else if (arg.startsWith("--tolerance=")) {
+                        options.tolerance = Double.parseDouble(value(arg));
+                    } else if (arg.startsWith("--time-tolerance=")) {
+                        options.timeTolerance = Double.parseDouble(value(arg));
+                    } else if (arg.startsWith("--encoding=")) {
+                        options.encoding = ThreatMetrixSessionQueryNode.SharedStateEncoding.valueOf(value(arg));
+                    } else if (arg.startsWith("--jfr=")) {
+                        options.jfr = Paths.get(value(arg));
+                    } else if (arg.equals("--record")) {
+                        options.record = true;
+                    } else if (arg.startsWith("--") || options.file != null) {
+                        return null;
+                    } else {
+                        options.file = Paths.get(arg);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (options.file == null || options.iterations < 1 || options.warmup < 0 || options.tolerance < 0
+                    || options.timeTolerance < 0 || (options.jfr != null && !Files.isDirectory(options.jfr))) {
+                return null;
+            }
+            return options;
+        }
+
+        private static String value(String arg) {
+            return arg.substring(arg.indexOf('=') + 1);
+        }
+    }
+}